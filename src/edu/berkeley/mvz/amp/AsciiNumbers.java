@@ -0,0 +1,274 @@
+/*
+ * Copyright 2009 University of California at Berkeley
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.berkeley.mvz.amp;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses numbers directly from ASCII bytes and formats numbers directly into
+ * a <code>StringBuilder</code>, without creating Strings.
+ * 
+ * Decimal numbers with at most 15 significant digits and a small exponent,
+ * which covers grid values and coordinates, are converted exactly with a
+ * single multiplication or division by a power of ten. Anything else falls
+ * back to <code>Double.parseDouble</code>, so results are always identical to
+ * it.
+ * 
+ * Note: This class is not designed for instantiation.
+ */
+class AsciiNumbers {
+
+  private static final float[] FLOAT_POWERS_OF_TEN = { 1e0f, 1e1f, 1e2f,
+      1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f };
+
+  private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4,
+      1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17,
+      1e18, 1e19, 1e20, 1e21, 1e22 };
+
+  /**
+   * Appends the double value with a fixed number of decimals. The result is
+   * identical to formatting it with <code>%.nf</code> in the root locale: the
+   * shortest decimal representation of the value is rounded half up.
+   * 
+   * @param sb the builder to append to
+   * @param value the value
+   * @param decimals the number of decimals, at most 18
+   * @return the builder
+   */
+  static StringBuilder appendFixed(StringBuilder sb, double value,
+      int decimals) {
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      return sb.append(value);
+    }
+    if (Double.doubleToRawLongBits(value) < 0) {
+      sb.append('-');
+      value = -value;
+    }
+    // Reads the shortest representation back as digits and a decimal point
+    // position, with a leading zero to absorb a carry:
+    int start = sb.length();
+    sb.append(value);
+    char[] digits = new char[24];
+    int n = 1, point = -1, exp = 0;
+    digits[0] = '0';
+    for (int i = start; i < sb.length(); i++) {
+      char c = sb.charAt(i);
+      if (c == '.') {
+        point = n;
+      } else if (c == 'E') {
+        for (int j = i + 1 + (sb.charAt(i + 1) == '-' ? 1 : 0); j < sb
+            .length(); j++) {
+          exp = exp * 10 + sb.charAt(j) - '0';
+        }
+        exp = sb.charAt(i + 1) == '-' ? -exp : exp;
+        break;
+      } else {
+        digits[n++] = c;
+      }
+    }
+    sb.setLength(start);
+    point += exp;
+
+    // Rounds half up at the last kept digit:
+    int keep = point + decimals;
+    if (keep < n) {
+      boolean up = keep >= 0 && digits[keep] >= '5';
+      n = Math.max(keep, 0);
+      for (int i = n - 1; up && i >= 0; i--) {
+        up = digits[i] == '9';
+        digits[i] = up ? '0' : (char) (digits[i] + 1);
+      }
+    }
+    int first = 0;
+    while (first < point - 1 && digits[first] == '0') {
+      first++;
+    }
+    for (int i = first; i < point; i++) {
+      sb.append(i < n ? digits[i] : '0');
+    }
+    if (point <= 0) {
+      sb.append('0');
+    }
+    if (decimals > 0) {
+      sb.append('.');
+      for (int i = point; i < keep; i++) {
+        sb.append(i >= 0 && i < n ? digits[i] : '0');
+      }
+    }
+    return sb;
+  }
+
+  /**
+   * Returns the double value of the ASCII bytes between start (inclusive) and
+   * end (exclusive).
+   * 
+   * @param b the bytes
+   * @param start the start offset
+   * @param end the end offset
+   * @throws NumberFormatException if the bytes aren't a number
+   * @return the double value
+   */
+  static double parseDouble(byte[] b, int start, int end) {
+    int i = start;
+    boolean negative = false;
+    if (i < end && (b[i] == '-' || b[i] == '+')) {
+      negative = b[i++] == '-';
+    }
+    long mantissa = 0;
+    int digits = 0, scale = 0;
+    boolean any = false;
+    for (; i < end && b[i] >= '0' && b[i] <= '9'; i++) {
+      any = true;
+      if (mantissa != 0 || b[i] != '0') {
+        mantissa = mantissa * 10 + (b[i] - '0');
+        digits++;
+      }
+    }
+    if (i < end && b[i] == '.') {
+      for (i++; i < end && b[i] >= '0' && b[i] <= '9'; i++) {
+        any = true;
+        if (mantissa != 0 || b[i] != '0') {
+          mantissa = mantissa * 10 + (b[i] - '0');
+          digits++;
+        }
+        scale--;
+      }
+    }
+    if (any && i < end && (b[i] == 'e' || b[i] == 'E')) {
+      int j = i + 1;
+      boolean negativeExp = false;
+      if (j < end && (b[j] == '-' || b[j] == '+')) {
+        negativeExp = b[j++] == '-';
+      }
+      int exp = 0;
+      int expStart = j;
+      for (; j < end && b[j] >= '0' && b[j] <= '9' && exp < 1000; j++) {
+        exp = exp * 10 + (b[j] - '0');
+      }
+      if (j > expStart) {
+        scale += negativeExp ? -exp : exp;
+        i = j;
+      }
+    }
+    if (!any || i != end || digits > 15 || scale < -22 || scale > 22) {
+      return slowParseDouble(b, start, end);
+    }
+    double value = mantissa;
+    if (scale < 0) {
+      value /= POWERS_OF_TEN[-scale];
+    } else if (scale > 0) {
+      value *= POWERS_OF_TEN[scale];
+    }
+    return negative ? -value : value;
+  }
+
+  /**
+   * Returns the float value of the ASCII bytes between start (inclusive) and
+   * end (exclusive). Numbers of up to 7 significant digits with a small
+   * exponent are converted exactly with float arithmetic, and anything else
+   * falls back to <code>Float.parseFloat</code>.
+   * 
+   * @param b the bytes
+   * @param start the start offset
+   * @param end the end offset
+   * @throws NumberFormatException if the bytes aren't a number
+   * @return the float value
+   */
+  static float parseFloat(byte[] b, int start, int end) {
+    int i = start;
+    boolean negative = false;
+    if (i < end && (b[i] == '-' || b[i] == '+')) {
+      negative = b[i++] == '-';
+    }
+    int mantissa = 0;
+    int digits = 0, scale = 0;
+    boolean any = false;
+    for (; i < end && b[i] >= '0' && b[i] <= '9'; i++) {
+      any = true;
+      if (mantissa != 0 || b[i] != '0') {
+        mantissa = mantissa * 10 + (b[i] - '0');
+        if (++digits > 7) {
+          return slowParseFloat(b, start, end);
+        }
+      }
+    }
+    if (i < end && b[i] == '.') {
+      for (i++; i < end && b[i] >= '0' && b[i] <= '9'; i++) {
+        any = true;
+        if (mantissa != 0 || b[i] != '0') {
+          mantissa = mantissa * 10 + (b[i] - '0');
+          if (++digits > 7) {
+            return slowParseFloat(b, start, end);
+          }
+        }
+        scale--;
+      }
+    }
+    if (!any || i != end || scale < -10) {
+      return slowParseFloat(b, start, end);
+    }
+    // Both operands are exact floats, so one operation rounds correctly:
+    float value = mantissa;
+    if (scale < 0) {
+      value /= FLOAT_POWERS_OF_TEN[-scale];
+    }
+    return negative ? -value : value;
+  }
+
+  /**
+   * Returns the int value of the ASCII bytes between start (inclusive) and
+   * end (exclusive).
+   * 
+   * @param b the bytes
+   * @param start the start offset
+   * @param end the end offset
+   * @throws NumberFormatException if the bytes aren't an int
+   * @return the int value
+   */
+  static int parseInt(byte[] b, int start, int end) {
+    int i = start;
+    boolean negative = false;
+    if (i < end && (b[i] == '-' || b[i] == '+')) {
+      negative = b[i++] == '-';
+    }
+    if (i == end || end - i > 9) {
+      return Integer.parseInt(toString(b, start, end));
+    }
+    int value = 0;
+    for (; i < end; i++) {
+      if (b[i] < '0' || b[i] > '9') {
+        return Integer.parseInt(toString(b, start, end));
+      }
+      value = value * 10 + (b[i] - '0');
+    }
+    return negative ? -value : value;
+  }
+
+  private static double slowParseDouble(byte[] b, int start, int end) {
+    return Double.parseDouble(toString(b, start, end));
+  }
+
+  private static float slowParseFloat(byte[] b, int start, int end) {
+    return Float.parseFloat(toString(b, start, end));
+  }
+
+  private static String toString(byte[] b, int start, int end) {
+    return new String(b, start, end - start, StandardCharsets.ISO_8859_1);
+  }
+
+  private AsciiNumbers() {
+  }
+}
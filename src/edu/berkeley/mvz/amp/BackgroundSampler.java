@@ -0,0 +1,320 @@
+/*
+ * Copyright 2009 University of California at Berkeley
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.berkeley.mvz.amp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class can be used to draw random background points from a stack of
+ * layers. A cell is a candidate background point only if it has data in every
+ * layer. Points are drawn without replacement and are located at cell centers.
+ * 
+ * The candidate cells are computed once, as a bit mask, the first time points
+ * are drawn. Each draw then picks distinct ranks among the candidate cells
+ * using Floyd's algorithm and resolves them with one pass over the mask, so
+ * the cost doesn't depend on how many cells are no data. The mask and the
+ * values of drawn points are read from a {@link LayerStack} of the layers.
+ * The masks of the most recently sampled layer files are shared by new
+ * samplers of the same files, as long as the files haven't changed.
+ * 
+ * This class is thread-safe and it is not designed for inheritance.
+ */
+public class BackgroundSampler {
+
+  /**
+   * A minimal open addressing set of non-negative longs.
+   */
+  private static class LongSet {
+    private final long[] slots;
+    private int size;
+
+    LongSet(int expected) {
+      int capacity = Integer.highestOneBit(Math.max(2, expected) * 2 - 1) << 1;
+      slots = new long[capacity];
+      Arrays.fill(slots, -1);
+    }
+
+    boolean add(long value) {
+      int mask = slots.length - 1;
+      int i = (int) (value ^ (value >>> 32)) * 0x9E3779B9 & mask;
+      while (slots[i] != -1) {
+        if (slots[i] == value) {
+          return false;
+        }
+        i = (i + 1) & mask;
+      }
+      slots[i] = value;
+      size++;
+      return true;
+    }
+
+    long[] toArray() {
+      long[] values = new long[size];
+      int n = 0;
+      for (long v : slots) {
+        if (v != -1) {
+          values[n++] = v;
+        }
+      }
+      return values;
+    }
+  }
+
+  /**
+   * The cells that have data in every layer, and how many there are.
+   */
+  private static class Mask {
+    final long[] bits;
+    final long count;
+
+    Mask(long[] bits, long count) {
+      this.bits = bits;
+      this.count = count;
+    }
+  }
+
+  /**
+   * The sample name given to background points.
+   */
+  public static final String SAMPLE_NAME = "background";
+
+  /**
+   * Maximum number of masks shared by new samplers.
+   */
+  private static final int MAX_SHARED_MASKS = 4;
+
+  private static Logger log = Logger.getLogger(BackgroundSampler.class);
+
+  /**
+   * Masks by the registry entries of their layer files, in least recently
+   * used order.
+   */
+  private static final Map<List<LayerRegistry.Entry>, Mask> shared =
+      new LinkedHashMap<List<LayerRegistry.Entry>, Mask>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<List<LayerRegistry.Entry>, Mask> e) {
+          return size() > MAX_SHARED_MASKS;
+        }
+      };
+
+  /**
+   * Returns a new background sampler for the given layers. The layers must
+   * share the same number of rows and columns, resolution, and extent.
+   * 
+   * @param layers the layers
+   * @throws IllegalArgumentException if there are no layers or the layers have
+   *           different geometries
+   * @return background sampler
+   */
+  public static BackgroundSampler newInstance(List<Layer> layers) {
+    if (layers == null || layers.isEmpty()) {
+      throw new IllegalArgumentException("At least one layer is required");
+    }
+    Layer first = layers.get(0);
+    for (Layer l : layers) {
+      if (l.getNRows() != first.getNRows()
+          || l.getNColumns() != first.getNColumns()
+          || l.getResolution() != first.getResolution()
+          || !l.getSwPoint().equals(first.getSwPoint())) {
+        throw new IllegalArgumentException(String.format(
+            "Layer %s doesn't have the same geometry as layer %s", l, first));
+      }
+    }
+    return new BackgroundSampler(layers);
+  }
+
+  /**
+   * Returns the distinct ranks, sorted, of n values chosen uniformly at random
+   * from [0, size) using Floyd's algorithm.
+   */
+  private static long[] chooseRanks(int n, long size, Random random) {
+    LongSet chosen = new LongSet(n);
+    for (long j = size - n; j < size; j++) {
+      long t = (long) (random.nextDouble() * (j + 1));
+      if (!chosen.add(t)) {
+        chosen.add(j);
+      }
+    }
+    long[] ranks = chosen.toArray();
+    Arrays.sort(ranks);
+    return ranks;
+  }
+
+  /**
+   * Returns the position of the k-th (zero based) set bit of the word.
+   */
+  private static int selectBit(long word, int k) {
+    for (int i = 0; i < k; i++) {
+      word &= word - 1;
+    }
+    return Long.numberOfTrailingZeros(word);
+  }
+
+  private final List<Layer> layers;
+
+  private final int nCols;
+
+  private final int nRows;
+
+  private volatile Mask mask;
+
+  private volatile LayerStack stack;
+
+  private BackgroundSampler(List<Layer> layers) {
+    this.layers = new ArrayList<Layer>(layers);
+    nRows = layers.get(0).getNRows();
+    nCols = layers.get(0).getNColumns();
+  }
+
+  /**
+   * Returns the number of cells that have data in every layer.
+   * 
+   * @return number of candidate background cells
+   */
+  public long getValidCellCount() {
+    return mask().count;
+  }
+
+  /**
+   * Draws n distinct random background points and returns them with their
+   * layer values. If there are fewer than n cells with data, every cell with
+   * data is returned.
+   * 
+   * @param n number of background points
+   * @param random the random number generator, which can be seeded for
+   *          repeatable draws
+   * @return background samples with data
+   */
+  public SamplesWithData sample(int n, Random random) {
+    if (n < 1) {
+      throw new IllegalArgumentException("n must be positive");
+    }
+    if (random == null) {
+      throw new NullPointerException("Random was null");
+    }
+    Mask m = mask();
+    long[] bits = m.bits;
+    long validCount = m.count;
+    long[] ranks;
+    if (n >= validCount) {
+      log.warn(String.format("Only %d cells with data for %d points",
+          validCount, n));
+      ranks = new long[(int) validCount];
+      for (int i = 0; i < ranks.length; i++) {
+        ranks[i] = i;
+      }
+    } else {
+      ranks = chooseRanks(n, validCount, random);
+    }
+
+    // Resolves the sorted ranks to cells with one pass over the mask:
+    Layer first = layers.get(0);
+    double res = first.getResolution();
+    double north = first.getNePoint().getLatitude();
+    double west = first.getSwPoint().getLongitude();
+    List<Sample> samples = new ArrayList<Sample>(ranks.length);
+    long rank = 0;
+    int next = 0;
+    for (int w = 0; w < bits.length && next < ranks.length; w++) {
+      long word = bits[w];
+      int count = Long.bitCount(word);
+      while (next < ranks.length && ranks[next] < rank + count) {
+        int bit = selectBit(word, (int) (ranks[next] - rank));
+        long cell = ((long) w << 6) + bit;
+        int row = (int) (cell / nCols);
+        int col = (int) (cell % nCols);
+        LatLng p = LatLng.newInstance(north - (row + 0.5) * res, west
+            + (col + 0.5) * res);
+        samples.add(Sample.newInstance(SAMPLE_NAME, Sample.UNKNOWN_YEAR, p));
+        next++;
+      }
+      rank += count;
+    }
+    return SamplesWithData.fromLayers(samples, stack);
+  }
+
+  /**
+   * Returns the mask of cells that have data in every layer, computing it the
+   * first time it's called unless a sampler of the same layer files already
+   * has. Bit <code>row * nCols + col</code> is set if the cell has data.
+   */
+  private Mask mask() {
+    Mask m = mask;
+    if (m == null) {
+      synchronized (this) {
+        m = mask;
+        if (m == null) {
+          stack = LayerStack.newInstance(layers);
+          List<LayerRegistry.Entry> key = new ArrayList<LayerRegistry.Entry>();
+          for (Layer l : layers) {
+            key.add(l.entry());
+          }
+          synchronized (shared) {
+            m = shared.get(key);
+            if (m == null) {
+              m = scan();
+              shared.put(key, m);
+            }
+          }
+          mask = m;
+        }
+      }
+    }
+    return m;
+  }
+
+  /**
+   * Computes the mask of cells that have data in every layer of the stack.
+   */
+  private Mask scan() {
+    long start = System.currentTimeMillis();
+    long cells = (long) nRows * nCols;
+    long[] bits = new long[(int) ((cells + 63) >>> 6)];
+    float[] noData = new float[layers.size()];
+    for (int i = 0; i < noData.length; i++) {
+      noData[i] = layers.get(i).getNoData();
+    }
+    double[] values = new double[noData.length];
+    long count = 0;
+    long bit = 0;
+    for (int row = 0; row < nRows; row++) {
+      for (int col = 0; col < nCols; col++, bit++) {
+        boolean valid = true;
+        stack.read(row, col, values);
+        for (int i = 0; i < values.length && valid; i++) {
+          valid = values[i] != noData[i];
+        }
+        if (valid) {
+          bits[(int) (bit >>> 6)] |= 1L << bit;
+          count++;
+        }
+      }
+    }
+    log.info(String.format("Background mask of %d cells in %f sec", count,
+        (System.currentTimeMillis() - start) / 1000.0));
+    return new Mask(bits, count);
+  }
+}
@@ -15,18 +15,28 @@
  */
 package edu.berkeley.mvz.amp;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * An immutable class that encapsulates the row and column number of a
  * {@link Layer} cell. It is not designed for inheritance and is therefore
- * prohibited.
+ * prohibited. Cells are safe to create from multiple threads.
  * 
  */
 public class Cell {
 
-  private static Map<String, Cell> cache = new HashMap<String, Cell>();
+  /**
+   * Number of slots in the interning cache. Must be a power of two.
+   */
+  private static final int CACHE_SIZE = 1 << 16;
+
+  /**
+   * A direct-mapped interning cache keyed on the packed row and column. A slot
+   * holds the most recently created cell that hashed to it, so the cache is
+   * bounded, lock-free, and doesn't allocate when it hits.
+   */
+  private static final AtomicReferenceArray<Cell> cache =
+      new AtomicReferenceArray<Cell>(CACHE_SIZE);
 
   /**
    * Factory method that returns a new cell object.
@@ -40,16 +50,52 @@ public class Cell {
       throw new IllegalArgumentException(
           "Cell row and column numbers can't be negative");
     }
-    Cell cell;
-    String key = String.format("%d-%d", row, col);
-    if (cache.keySet().contains(key)) {
-      cell = cache.get(key);
-    } else {
-      cache.put(key, cell = new Cell(row, col));
+    int slot = slot(pack(row, col));
+    Cell cell = cache.get(slot);
+    if (cell == null || cell.row != row || cell.col != col) {
+      cell = new Cell(row, col);
+      cache.lazySet(slot, cell);
     }
     return cell;
   }
 
+  /**
+   * Returns the row and column packed into a single long, with the row in the
+   * high 32 bits and the column in the low 32 bits.
+   * 
+   * @param row the cell row number
+   * @param col the cell column number
+   * @return the packed cell
+   */
+  public static long pack(int row, int col) {
+    return ((long) row << 32) | (col & 0xffffffffL);
+  }
+
+  /**
+   * Returns the column number of a packed cell.
+   * 
+   * @param packed the packed cell
+   * @return column number
+   */
+  public static int unpackColumn(long packed) {
+    return (int) packed;
+  }
+
+  /**
+   * Returns the row number of a packed cell.
+   * 
+   * @param packed the packed cell
+   * @return row number
+   */
+  public static int unpackRow(long packed) {
+    return (int) (packed >>> 32);
+  }
+
+  private static int slot(long packed) {
+    long h = packed * 0x9E3779B97F4A7C15L;
+    return (int) (h >>> 32) & (CACHE_SIZE - 1);
+  }
+
   private final int row, col;
 
   private volatile int hashCode;
@@ -59,6 +105,16 @@ public class Cell {
     this.col = col;
   }
 
+  /**
+   * Returns this cell packed into a single long.
+   * 
+   * @return the packed cell
+   * @see #pack(int, int)
+   */
+  public long asLong() {
+    return pack(row, col);
+  }
+
   /**
    * Sorts rows by row and then by column.
    * 
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2009 University of California at Berkeley
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.berkeley.mvz.amp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class is used to encapsulate the jackknife of variable importance for a
+ * MaxEnt model run. For each species it holds the gains of the model with all
+ * variables, of the models without each variable, and of the models with only
+ * each variable.
+ * 
+ */
+public class JackknifeResults {
+
+  /**
+   * Enumeration of the measures reported for each jackknife model.
+   */
+  public static enum Measure {
+    TEST_AUC("Test AUC"), TEST_GAIN("Test gain"), TRAINING_GAIN(
+        "Regularized training gain");
+
+    private final String column;
+
+    Measure(String column) {
+      this.column = column;
+    }
+
+    /**
+     * @return the maxentResults.csv column of this measure
+     */
+    public String getColumn() {
+      return column;
+    }
+  }
+
+  /**
+   * The name of the directory in the output directory that jackknife models
+   * are written to.
+   */
+  static final String DIRECTORY = "jackknife";
+
+  /**
+   * The name of the directory of the model with all variables.
+   */
+  static final String FULL = "full";
+
+  /**
+   * The prefix of the directory of a model with only one variable.
+   */
+  static final String ONLY = "only_";
+
+  /**
+   * The prefix of the directory of a model without one variable.
+   */
+  static final String WITHOUT = "without_";
+
+  /**
+   * Reads the results of the jackknife models from their output directories,
+   * which are named {@link #FULL}, {@link #WITHOUT} + variable and
+   * {@link #ONLY} + variable.
+   * 
+   * @param root the directory containing the model output directories
+   * @param variables the variables
+   * @return jackknife results
+   * @throws IOException problems reading a model's results
+   */
+  static JackknifeResults read(File root, List<String> variables)
+      throws IOException {
+    JackknifeResults results = new JackknifeResults(variables);
+    results.readModel(new File(root, FULL), FULL);
+    for (String v : variables) {
+      results.readModel(new File(root, WITHOUT + v), WITHOUT + v);
+      results.readModel(new File(root, ONLY + v), ONLY + v);
+    }
+    return results;
+  }
+
+  private final Set<String> species = new LinkedHashSet<String>();
+
+  /**
+   * Measures by model name and species.
+   */
+  private final Map<String, double[]> values = new HashMap<String, double[]>();
+
+  private final List<String> variables;
+
+  private JackknifeResults(List<String> variables) {
+    this.variables = Collections.unmodifiableList(new ArrayList<String>(
+        variables));
+  }
+
+  /**
+   * Returns a measure of the model with all variables, or NaN if it wasn't
+   * reported.
+   * 
+   * @param species the species name
+   * @param measure the measure
+   * @return the measure
+   */
+  public double getFull(String species, Measure measure) {
+    return get(FULL, species, measure);
+  }
+
+  /**
+   * Returns a measure of the model with only the variable, or NaN if it wasn't
+   * reported.
+   * 
+   * @param species the species name
+   * @param variable the variable name
+   * @param measure the measure
+   * @return the measure
+   */
+  public double getOnly(String species, String variable, Measure measure) {
+    return get(ONLY + variable, species, measure);
+  }
+
+  /**
+   * Returns the set of species names with jackknife results.
+   * 
+   * @return species names
+   */
+  public Set<String> getSpeciesNames() {
+    return Collections.unmodifiableSet(species);
+  }
+
+  /**
+   * Returns the names of the variables, in the order they were jackknifed.
+   * 
+   * @return variable names
+   */
+  public List<String> getVariables() {
+    return variables;
+  }
+
+  /**
+   * Returns a measure of the model without the variable, or NaN if it wasn't
+   * reported.
+   * 
+   * @param species the species name
+   * @param variable the variable name
+   * @param measure the measure
+   * @return the measure
+   */
+  public double getWithout(String species, String variable, Measure measure) {
+    return get(WITHOUT + variable, species, measure);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("{");
+    for (String s : species) {
+      sb.append(sb.length() == 1 ? "" : ", ").append(s).append("=[full=")
+          .append(getFull(s, Measure.TRAINING_GAIN));
+      for (String v : variables) {
+        sb.append(String.format(", %s=%s/%s", v, getWithout(s, v,
+            Measure.TRAINING_GAIN), getOnly(s, v, Measure.TRAINING_GAIN)));
+      }
+      sb.append(']');
+    }
+    return sb.append('}').toString();
+  }
+
+  private double get(String model, String species, Measure measure) {
+    if (species == null || measure == null) {
+      throw new NullPointerException("Species and measure can't be null");
+    }
+    double[] v = values.get(model + "\t" + species);
+    return v == null ? Double.NaN : v[measure.ordinal()];
+  }
+
+  /**
+   * Reads the measures of each species from a model's maxentResults.csv.
+   */
+  private void readModel(File dir, String model) throws IOException {
+    File f = new File(dir, Replicates.RESULTS_FILENAME);
+    BufferedReader reader = new BufferedReader(new FileReader(f));
+    try {
+      String line = reader.readLine();
+      if (line == null) {
+        throw new IOException("No results in " + f);
+      }
+      List<String> header = new ArrayList<String>();
+      for (String column : line.split(",", -1)) {
+        header.add(column.trim());
+      }
+      Measure[] measures = Measure.values();
+      int[] columns = new int[measures.length];
+      for (Measure m : measures) {
+        columns[m.ordinal()] = header.indexOf(m.getColumn());
+      }
+      while ((line = reader.readLine()) != null) {
+        String[] row = line.split(",", -1);
+        if (row[0].length() == 0) {
+          continue;
+        }
+        double[] v = new double[measures.length];
+        for (int i = 0; i < v.length; i++) {
+          v[i] = Double.NaN;
+          if (columns[i] >= 0 && columns[i] < row.length) {
+            try {
+              v[i] = Double.parseDouble(row[columns[i]]);
+            } catch (NumberFormatException e) {
+              // Leaves the measure unreported:
+            }
+          }
+        }
+        species.add(row[0]);
+        values.put(model + "\t" + row[0], v);
+      }
+    } finally {
+      reader.close();
+    }
+  }
+}
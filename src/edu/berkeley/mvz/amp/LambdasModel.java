@@ -0,0 +1,553 @@
+/*
+ * Copyright 2009 University of California at Berkeley
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.berkeley.mvz.amp;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class is used to encapsulate a trained MaxEnt model read from a
+ * <code>.lambdas</code> file. A model is a weighted sum of features of the
+ * environmental variables, which is scored the same way MaxEnt projects a model
+ * so that a model can be projected onto new layers without running MaxEnt.
+ * 
+ * A parsed model is compiled into flat arrays of feature parameters grouped by
+ * feature type, so scoring a point is a few tight loops over primitive arrays
+ * that allocate nothing. Features with a lambda of 0 are dropped.
+ * 
+ * Each feature line of a lambdas file is <code>feature, lambda, min, max</code>
+ * where the feature is one of <code>var</code> (linear), <code>var^2</code>
+ * (quadratic), <code>a*b</code> (product), <code>'var</code> (hinge),
+ * <code>`var</code> (reverse hinge), <code>(t&lt;var)</code> (threshold) or
+ * <code>(var=c)</code> (categorical). The file ends with the normalizers of
+ * the model.
+ * 
+ * This class is immutable and thread-safe.
+ */
+public class LambdasModel {
+
+  /**
+   * Enumeration of the output formats a model can be scored in.
+   */
+  public static enum OutputFormat {
+    LOGISTIC, RAW
+  }
+
+  /**
+   * Enumeration of MaxEnt feature types.
+   */
+  static enum FeatureType {
+    CATEGORICAL, HINGE, LINEAR, PRODUCT, QUADRATIC, REVERSE_HINGE, THRESHOLD
+  }
+
+  /**
+   * A feature parsed from a lambdas file, before the model is compiled.
+   */
+  private static class Feature {
+    final double constant;
+    final double lambda;
+    final double max;
+    final double min;
+    final FeatureType type;
+    final int var1;
+    final int var2;
+
+    Feature(FeatureType type, int var1, int var2, double constant,
+        double lambda, double min, double max) {
+      this.type = type;
+      this.var1 = var1;
+      this.var2 = var2;
+      this.constant = constant;
+      this.lambda = lambda;
+      this.min = min;
+      this.max = max;
+    }
+  }
+
+  /**
+   * The state of a lambdas file being parsed.
+   */
+  private static class Parser {
+    double densityNormalizer = Double.NaN;
+    double entropy = Double.NaN;
+    final List<Feature> features = new ArrayList<Feature>();
+    double linearPredictorNormalizer = Double.NaN;
+    int numBackgroundPoints;
+    final List<String> variables = new ArrayList<String>();
+
+    void addFeature(String name, double lambda, double min, double max) {
+      FeatureType type;
+      int var1, var2 = -1;
+      double constant = 0;
+      if (name.startsWith("(") && name.endsWith(")")) {
+        String expr = name.substring(1, name.length() - 1);
+        int i = expr.indexOf('<');
+        if (i > 0) {
+          type = FeatureType.THRESHOLD;
+          constant = Double.parseDouble(expr.substring(0, i));
+          var1 = variable(expr.substring(i + 1));
+        } else {
+          i = expr.lastIndexOf('=');
+          if (i < 1) {
+            throw new IllegalArgumentException("Unknown feature " + name);
+          }
+          type = FeatureType.CATEGORICAL;
+          var1 = variable(expr.substring(0, i));
+          constant = Double.parseDouble(expr.substring(i + 1));
+        }
+      } else if (name.startsWith("'")) {
+        type = FeatureType.HINGE;
+        var1 = variable(name.substring(1));
+      } else if (name.startsWith("`")) {
+        type = FeatureType.REVERSE_HINGE;
+        var1 = variable(name.substring(1));
+      } else if (name.endsWith("^2")) {
+        type = FeatureType.QUADRATIC;
+        var1 = variable(name.substring(0, name.length() - 2));
+      } else if (name.indexOf('*') > 0) {
+        type = FeatureType.PRODUCT;
+        int i = name.indexOf('*');
+        var1 = variable(name.substring(0, i));
+        var2 = variable(name.substring(i + 1));
+      } else {
+        type = FeatureType.LINEAR;
+        var1 = variable(name);
+      }
+      features.add(new Feature(type, var1, var2, constant, lambda, min, max));
+    }
+
+    void setNormalizer(String name, double value) {
+      if (name.equals("linearPredictorNormalizer")) {
+        linearPredictorNormalizer = value;
+      } else if (name.equals("densityNormalizer")) {
+        densityNormalizer = value;
+      } else if (name.equals("numBackgroundPoints")) {
+        numBackgroundPoints = (int) value;
+      } else if (name.equals("entropy")) {
+        entropy = value;
+      } else {
+        throw new IllegalArgumentException("Unknown normalizer " + name);
+      }
+    }
+
+    /**
+     * Returns the index of a variable, adding it if it's new.
+     */
+    private int variable(String name) {
+      if (name.length() == 0) {
+        throw new IllegalArgumentException("Empty variable name");
+      }
+      int i = variables.indexOf(name);
+      if (i < 0) {
+        variables.add(name);
+        i = variables.size() - 1;
+      }
+      return i;
+    }
+  }
+
+  /**
+   * Parses a lambdas file.
+   * 
+   * @param path path to the lambdas file
+   * @return the model
+   * @throws IOException problems reading the file or a malformed file
+   */
+  public static LambdasModel parse(String path) throws IOException {
+    if (path == null) {
+      throw new NullPointerException("Path was null");
+    }
+    Parser parser = new Parser();
+    BufferedReader reader = new BufferedReader(new FileReader(path));
+    int n = 0;
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        n++;
+        if (line.trim().length() == 0) {
+          continue;
+        }
+        String[] f = line.split(",");
+        try {
+          if (f.length == 2) {
+            parser.setNormalizer(f[0].trim(), Double.parseDouble(f[1]
+                .trim()));
+          } else if (f.length == 4) {
+            parser.addFeature(f[0].trim(), Double.parseDouble(f[1].trim()),
+                Double.parseDouble(f[2].trim()), Double.parseDouble(f[3]
+                    .trim()));
+          } else {
+            throw new IOException("Expected 2 or 4 fields");
+          }
+        } catch (RuntimeException e) {
+          throw new IOException(String.format("%s line %d: bad lambda - %s",
+              path, n, e));
+        } catch (IOException e) {
+          throw new IOException(String.format("%s line %d: bad lambda - %s",
+              path, n, e.getMessage()));
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    if (Double.isNaN(parser.linearPredictorNormalizer)
+        || Double.isNaN(parser.densityNormalizer)
+        || Double.isNaN(parser.entropy)) {
+      throw new IOException("Missing normalizers in " + path);
+    }
+    return new LambdasModel(parser);
+  }
+
+  /**
+   * Clamps a scaled feature value to [0, 1] if requested.
+   */
+  private static double clamp(double v, boolean clamp) {
+    return !clamp ? v : v < 0 ? 0 : v > 1 ? 1 : v;
+  }
+
+  /**
+   * Feature parameters are stored by feature position. Features are sorted by
+   * type, and the features of a type end at the position in <code>ends</code>
+   * at the type's ordinal.
+   */
+  private final double[] constants;
+
+  private final double densityNormalizer;
+
+  private final int[] ends;
+
+  private final double entropy;
+
+  private final double[] lambdas;
+
+  private final double linearPredictorNormalizer;
+
+  /**
+   * The factor that turns the exponent of the model into the odds of the
+   * logistic output.
+   */
+  private final double logisticFactor;
+
+  private final double[] maxs;
+
+  private final double[] mins;
+
+  private final int numBackgroundPoints;
+
+  /**
+   * The reciprocal of the training range of each feature.
+   */
+  private final double[] scales;
+
+  private final List<String> variables;
+
+  private final int[] vars1;
+
+  private final int[] vars2;
+
+  private LambdasModel(Parser parser) {
+    densityNormalizer = parser.densityNormalizer;
+    entropy = parser.entropy;
+    linearPredictorNormalizer = parser.linearPredictorNormalizer;
+    numBackgroundPoints = parser.numBackgroundPoints;
+    logisticFactor = Math.exp(entropy) / densityNormalizer;
+    variables = Collections.unmodifiableList(new ArrayList<String>(
+        parser.variables));
+
+    List<Feature> features = new ArrayList<Feature>();
+    FeatureType[] types = FeatureType.values();
+    ends = new int[types.length];
+    for (FeatureType type : types) {
+      for (Feature f : parser.features) {
+        if (f.type == type && f.lambda != 0) {
+          features.add(f);
+        }
+      }
+      ends[type.ordinal()] = features.size();
+    }
+    int n = features.size();
+    constants = new double[n];
+    lambdas = new double[n];
+    mins = new double[n];
+    maxs = new double[n];
+    scales = new double[n];
+    vars1 = new int[n];
+    vars2 = new int[n];
+    for (int i = 0; i < n; i++) {
+      Feature f = features.get(i);
+      constants[i] = f.constant;
+      lambdas[i] = f.lambda;
+      mins[i] = f.min;
+      maxs[i] = f.max;
+      scales[i] = f.max == f.min ? 0 : 1 / (f.max - f.min);
+      vars1[i] = f.var1;
+      vars2[i] = f.var2;
+    }
+  }
+
+  /**
+   * @return the density normalizer
+   */
+  public double getDensityNormalizer() {
+    return densityNormalizer;
+  }
+
+  /**
+   * @return the entropy of the model
+   */
+  public double getEntropy() {
+    return entropy;
+  }
+
+  /**
+   * @return the number of features with a non-zero lambda
+   */
+  public int getFeatureCount() {
+    return lambdas.length;
+  }
+
+  /**
+   * @return the linear predictor normalizer
+   */
+  public double getLinearPredictorNormalizer() {
+    return linearPredictorNormalizer;
+  }
+
+  /**
+   * @return the number of background points the model was trained with
+   */
+  public int getNumBackgroundPoints() {
+    return numBackgroundPoints;
+  }
+
+  /**
+   * Returns the names of the variables of the model, in the order their values
+   * are passed to <code>score</code>.
+   * 
+   * @return variable names
+   */
+  public List<String> getVariables() {
+    return variables;
+  }
+
+  /**
+   * Scores the model at a point in logistic format with clamping, which is
+   * MaxEnt's default output. This method allocates nothing, so it's suitable
+   * for scoring single points at a high rate.
+   * 
+   * @param x the variable values, in the order of <code>getVariables</code>
+   * @return the logistic score
+   */
+  public double score(double[] x) {
+    checkValues(x);
+    double odds = logisticFactor * Math.exp(sum(x, true)
+        - linearPredictorNormalizer);
+    return odds / (1 + odds);
+  }
+
+  /**
+   * Scores the model at a point with clamping, like MaxEnt does by default.
+   * 
+   * @param x the variable values, in the order of <code>getVariables</code>
+   * @param format the output format
+   * @return the score
+   */
+  public double score(double[] x, OutputFormat format) {
+    return score(x, format, true);
+  }
+
+  /**
+   * Scores the model at a point.
+   * 
+   * @param x the variable values, in the order of <code>getVariables</code>
+   * @param format the output format
+   * @param clamp true to clamp features to their training range
+   * @return the score
+   */
+  public double score(double[] x, OutputFormat format, boolean clamp) {
+    if (format == null) {
+      throw new NullPointerException("Format was null");
+    }
+    checkValues(x);
+    double raw = Math.exp(sum(x, clamp) - linearPredictorNormalizer)
+        / densityNormalizer;
+    if (format == OutputFormat.RAW) {
+      return raw;
+    }
+    double odds = raw * Math.exp(entropy);
+    return odds / (1 + odds);
+  }
+
+  /**
+   * Scores the model at each sample in logistic format with clamping. Model
+   * variables are matched to layers by layer filename or name.
+   * 
+   * @param swd the samples with data
+   * @return the scores in the order of <code>getSamples</code>, with NaN for
+   *         samples that have no data for a variable
+   */
+  public double[] score(SamplesWithData swd) {
+    return score(swd, OutputFormat.LOGISTIC);
+  }
+
+  /**
+   * Scores the model at each sample with clamping. Model variables are matched
+   * to layers by layer filename or name.
+   * 
+   * @param swd the samples with data
+   * @param format the output format
+   * @return the scores in the order of <code>getSamples</code>, with NaN for
+   *         samples that have no data for a variable
+   */
+  public double[] score(SamplesWithData swd, OutputFormat format) {
+    if (swd == null || format == null) {
+      throw new NullPointerException("SWD and format can't be null");
+    }
+    int nVars = variables.size();
+    double[][] columns = new double[nVars][];
+    double[] noData = new double[nVars];
+    for (Layer l : swd.getLayers()) {
+      int v = variables.indexOf(l.getFilename().split(".asc")[0]);
+      if (v < 0) {
+        v = variables.indexOf(l.getName());
+      }
+      if (v >= 0 && columns[v] == null) {
+        columns[v] = swd.getValues(l);
+        noData[v] = l.getNoData();
+      }
+    }
+    for (int v = 0; v < nVars; v++) {
+      if (columns[v] == null) {
+        throw new IllegalArgumentException("No data for variable "
+            + variables.get(v));
+      }
+    }
+    double[] scores = new double[swd.size()];
+    double[] x = new double[nVars];
+    for (int i = 0; i < scores.length; i++) {
+      boolean missing = false;
+      for (int v = 0; v < nVars && !missing; v++) {
+        x[v] = columns[v][i];
+        missing = x[v] == noData[v];
+      }
+      scores[i] = missing ? Double.NaN : score(x, format, true);
+    }
+    return scores;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("[%d features of %s]", lambdas.length, variables);
+  }
+
+  /**
+   * Returns true if scoring the model at a point clamps a feature, which
+   * means the point is outside of the training range of the model.
+   */
+  boolean clamps(double[] x) {
+    // Features between the categorical and threshold ones are continuous:
+    int end = ends[FeatureType.REVERSE_HINGE.ordinal()];
+    for (int i = ends[FeatureType.CATEGORICAL.ordinal()]; i < end; i++) {
+      double v = value(i, x);
+      if (v < 0 || v > 1) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void checkValues(double[] x) {
+    if (x == null) {
+      throw new NullPointerException("Values were null");
+    }
+    if (x.length != variables.size()) {
+      throw new IllegalArgumentException(String.format(
+          "Expected %d values but got %d", variables.size(), x.length));
+    }
+  }
+
+  /**
+   * Returns the weighted sum of the features at a point, with one loop per
+   * feature type.
+   */
+  private double sum(double[] x, boolean clamp) {
+    double sum = 0;
+    int i = 0;
+    int end = ends[FeatureType.CATEGORICAL.ordinal()];
+    for (; i < end; i++) {
+      if (x[vars1[i]] == constants[i]) {
+        sum += lambdas[i];
+      }
+    }
+    end = ends[FeatureType.HINGE.ordinal()];
+    for (; i < end; i++) {
+      double v = x[vars1[i]] - mins[i];
+      if (v > 0) {
+        sum += lambdas[i] * clamp(v * scales[i], clamp);
+      }
+    }
+    end = ends[FeatureType.LINEAR.ordinal()];
+    for (; i < end; i++) {
+      sum += lambdas[i] * clamp((x[vars1[i]] - mins[i]) * scales[i], clamp);
+    }
+    end = ends[FeatureType.PRODUCT.ordinal()];
+    for (; i < end; i++) {
+      sum += lambdas[i]
+          * clamp((x[vars1[i]] * x[vars2[i]] - mins[i]) * scales[i], clamp);
+    }
+    end = ends[FeatureType.QUADRATIC.ordinal()];
+    for (; i < end; i++) {
+      double v = x[vars1[i]];
+      sum += lambdas[i] * clamp((v * v - mins[i]) * scales[i], clamp);
+    }
+    end = ends[FeatureType.REVERSE_HINGE.ordinal()];
+    for (; i < end; i++) {
+      double v = maxs[i] - x[vars1[i]];
+      if (v > 0) {
+        sum += lambdas[i] * clamp(v * scales[i], clamp);
+      }
+    }
+    end = ends[FeatureType.THRESHOLD.ordinal()];
+    for (; i < end; i++) {
+      if (x[vars1[i]] > constants[i]) {
+        sum += lambdas[i];
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * Returns the unclamped scaled value of a hinge, linear, product, quadratic
+   * or reverse hinge feature.
+   */
+  private double value(int i, double[] x) {
+    double v = x[vars1[i]];
+    if (i < ends[FeatureType.HINGE.ordinal()]) {
+      return v <= mins[i] ? 0 : (v - mins[i]) * scales[i];
+    } else if (i < ends[FeatureType.LINEAR.ordinal()]) {
+      return (v - mins[i]) * scales[i];
+    } else if (i < ends[FeatureType.PRODUCT.ordinal()]) {
+      return (v * x[vars2[i]] - mins[i]) * scales[i];
+    } else if (i < ends[FeatureType.QUADRATIC.ordinal()]) {
+      return (v * v - mins[i]) * scales[i];
+    }
+    return v >= maxs[i] ? 0 : (maxs[i] - v) * scales[i];
+  }
+}
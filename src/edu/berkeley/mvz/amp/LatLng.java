@@ -55,7 +55,7 @@ public class LatLng implements Comparable<LatLng> {
    * 
    * -90 >= latitude <= 90
    */
-  private static boolean isLatitudeValid(double latitude) {
+  static boolean isLatitudeValid(double latitude) {
     if (Double.compare(latitude, -90) < 0) {
       return false;
     }
@@ -70,7 +70,7 @@ public class LatLng implements Comparable<LatLng> {
    * 
    * -180 >= longitude <= 180
    */
-  private static boolean isLongitudeValid(double longitude) {
+  static boolean isLongitudeValid(double longitude) {
     if (Double.compare(longitude, -180) < 0) {
       return false;
     }
@@ -23,9 +23,12 @@ import java.io.StreamTokenizer;
 
 /**
  * A class that can be used to load and represent a single ArcInfo ASCII Grid
- * file. It doesn't provide access to actual grid cell values but does provide
- * access to it's geographic domain and resolution. It can be used to return a
- * grid {@link Cell} given a {@link LatLng} point.
+ * file. It provides access to it's geographic domain and resolution and can be
+ * used to return a grid {@link Cell} given a {@link LatLng} point. Grid cell
+ * values are available through <code>getValue</code>; the first call converts
+ * the grid body into a memory-mapped binary raster that is reused by later
+ * calls. Headers and rasters are shared by every layer for the same file
+ * through the {@link LayerRegistry}.
  * 
  * This class is immutable and it is not designed for inheritance.
  */
@@ -61,7 +64,7 @@ public class Layer implements Comparable<Layer> {
     public Layer getProjectionLayer();
   }
 
-  private static class AsciiHeader {
+  static class AsciiHeader {
     Double cellSize = null;
     Integer nCols = null;
     Integer noDataValue = null;
@@ -91,9 +94,17 @@ public class Layer implements Comparable<Layer> {
     }
 
     static AsciiHeader parse(String filePath) throws IOException {
+      BufferedReader reader = new BufferedReader(new FileReader(filePath));
+      try {
+        return parse(reader);
+      } finally {
+        reader.close();
+      }
+    }
+
+    private static AsciiHeader parse(BufferedReader reader) throws IOException {
       State parserState = State.HEADER_KEY;
       AsciiHeader header = new AsciiHeader();
-      BufferedReader reader = new BufferedReader(new FileReader(filePath));
       StreamTokenizer st = new StreamTokenizer(reader);
       st.parseNumbers();
       st.wordChars('_', '_');
@@ -167,6 +178,13 @@ public class Layer implements Comparable<Layer> {
     return new Layer(type, name, year, path);
   }
 
+  /**
+   * Parses and returns the header of an ASCII grid file.
+   */
+  static AsciiHeader parseHeader(String path) throws IOException {
+    return Parser.parse(path);
+  }
+
   private final Extent extent;
 
   private final String filename;
@@ -181,6 +199,10 @@ public class Layer implements Comparable<Layer> {
 
   private final int year;
 
+  private final LayerRegistry.Entry entry;
+
+  private volatile Raster raster;
+
   private Layer(LayerType type, String name, int year, String path) {
     this.type = type;
     this.name = name;
@@ -190,7 +212,8 @@ public class Layer implements Comparable<Layer> {
 
     AsciiHeader header;
     try {
-      header = Parser.parse(path);
+      entry = LayerRegistry.get(path);
+      header = entry.header;
     } catch (IOException e) {
       throw new IllegalArgumentException(String.format("Invalid layer %s - %s",
           path, e));
@@ -229,10 +252,11 @@ public class Layer implements Comparable<Layer> {
   /**
    * Returns the {@link Cell} corresponding to where the point is located.
    * 
-   * This method assumes that the origin of the layer is the upper left and
-   * terminus at the lower right. A point located in the north west corner
-   * corresponds to row 0 and column 0. A point located in the south east corner
-   * corresponds to row <code>nRows</code> column <code>nCols</code>.
+   * Cells are located the same way <code>getValue(LatLng)</code> and MaxEnt
+   * locate them, so <code>getValue(asCell(point))</code> is the value of the
+   * point. Row 0 is the northern most row and column 0 is the western most
+   * column, so the cell of the south west corner is row <code>nRows - 1</code>
+   * and column 0.
    * 
    * @param point point from which a corresponding cell is returned. Must be
    *          non-null and fall within the extent of the layer.
@@ -243,26 +267,49 @@ public class Layer implements Comparable<Layer> {
     if ((point == null) || (!containsPoint(point))) {
       return null;
     }
+    return Cell.newInstance(rowOf(point), columnOf(point));
+  }
 
-    double plat = point.getLatitude();
-    double plng = point.getLongitude();
-    int col = -1, row = -1;
-
-    // Calculates column:
-    if (plng == extent.ne.getLongitude()) {
-      col = nCols;
-    } else {
-      col = (int) Math.ceil(((plng - extent.sw.getLongitude()) / res));
+  /**
+   * Converts points to packed cells in bulk, locating each cell exactly as
+   * <code>asCell</code> and <code>getValue(LatLng)</code> do. Points
+   * are given as parallel arrays of latitudes and longitudes, and the cell of
+   * point i is written to <code>out[i]</code> packed with
+   * <code>Cell.pack</code>, or -1 if the point falls outside of the layer
+   * extent. The loop reads only arrays and locals, so it converts millions of
+   * points without allocating.
+   * 
+   * @param lats the point latitudes
+   * @param lngs the point longitudes
+   * @param out the array the packed cells are written to
+   * @throws IllegalArgumentException if the arrays have different lengths
+   */
+  public void asCells(double[] lats, double[] lngs, long[] out) {
+    if (lats == null || lngs == null || out == null) {
+      throw new NullPointerException("Arrays can't be null");
     }
-
-    // Calculates row:
-    if (plat == extent.ne.getLatitude()) {
-      row = 0;
-    } else {
-      row = (int) Math.ceil(((extent.ne.getLatitude() - plat) / res));
+    if (lats.length != lngs.length || lats.length != out.length) {
+      throw new IllegalArgumentException(String.format(
+          "Array lengths differ: %d, %d, %d", lats.length, lngs.length,
+          out.length));
+    }
+    double south = extent.sw.getLatitude();
+    double west = extent.sw.getLongitude();
+    double north = extent.ne.getLatitude();
+    double east = extent.ne.getLongitude();
+    double r = res;
+    int lastRow = nRows - 1, lastCol = nCols - 1;
+    for (int i = 0; i < out.length; i++) {
+      double lat = lats[i], lng = lngs[i];
+      // Non short-circuit operators keep the loop free of branches:
+      boolean inside = lat >= south & lat < north & lng >= west & lng < east;
+      int row = lastRow - (int) Math.floor((lat - south) / r);
+      int col = (int) Math.floor((lng - west) / r);
+      // Guards against rounding at the extent edges:
+      long cell = Cell.pack(Math.min(lastRow, Math.max(0, row)), Math.min(
+          lastCol, Math.max(0, col)));
+      out[i] = inside ? cell : -1;
     }
-
-    return Cell.newInstance(row, col);
   }
 
   public int compareTo(Layer o) {
@@ -404,6 +451,45 @@ public class Layer implements Comparable<Layer> {
     return type;
   }
 
+  /**
+   * Returns the value of the grid cell at the given row and column. Row 0 is
+   * the northern most row and column 0 is the western most column.
+   * 
+   * @param cell the cell
+   * @throws IllegalArgumentException if the cell is outside of the grid
+   * @return the cell value, which is the no data value if the cell is empty
+   */
+  public double getValue(Cell cell) {
+    if (cell == null) {
+      throw new NullPointerException("Cell was null");
+    }
+    int row = cell.getRow(), col = cell.getColumn();
+    if (row < 0 || row >= nRows || col < 0 || col >= nCols) {
+      throw new IllegalArgumentException(String.format(
+          "Cell %s is outside of layer %s", cell, filename));
+    }
+    return raster().get(row, col);
+  }
+
+  /**
+   * Returns the value of the grid cell that contains the point. The cell is
+   * located the same way MaxEnt locates cells, so values are identical to
+   * those MaxEnt samples.
+   * 
+   * @param point the point
+   * @return the cell value or the no data value if the point falls outside of
+   *         the layer extent
+   */
+  public double getValue(LatLng point) {
+    if (point == null) {
+      throw new NullPointerException("Point was null");
+    }
+    if (!containsPoint(point)) {
+      return noData;
+    }
+    return raster().get(rowOf(point), columnOf(point));
+  }
+
   /**
    * Returns the year this layer is associated with.
    * 
@@ -424,4 +510,51 @@ public class Layer implements Comparable<Layer> {
   public String toString() {
     return filename;
   }
+
+  /**
+   * Returns the registry entry of the layer file, which identifies the
+   * contents of the file when the layer was created.
+   */
+  LayerRegistry.Entry entry() {
+    return entry;
+  }
+
+  /**
+   * Returns the column of the cell that contains a point within the extent.
+   */
+  private int columnOf(LatLng point) {
+    int col = (int) Math.floor((point.getLongitude() - extent.sw
+        .getLongitude())
+        / res);
+    // Guards against rounding at the extent edges:
+    return Math.min(nCols - 1, Math.max(0, col));
+  }
+
+  /**
+   * Returns the row of the cell that contains a point within the extent.
+   */
+  private int rowOf(LatLng point) {
+    int row = nRows - 1
+        - (int) Math.floor((point.getLatitude() - extent.sw.getLatitude())
+            / res);
+    // Guards against rounding at the extent edges:
+    return Math.min(nRows - 1, Math.max(0, row));
+  }
+
+  /**
+   * Returns the raster of grid cell values, converting the grid body the first
+   * time it's called.
+   */
+  Raster raster() {
+    Raster r = raster;
+    if (r == null) {
+      try {
+        raster = r = entry.raster(path);
+      } catch (IOException e) {
+        throw new IllegalStateException(String.format(
+            "Unable to read values of layer %s - %s", path, e), e);
+      }
+    }
+    return r;
+  }
 }
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2009 University of California at Berkeley
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.berkeley.mvz.amp;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import edu.berkeley.mvz.amp.Layer.AsciiHeader;
+
+/**
+ * A process wide registry of layer files. Each file is interned by its
+ * absolute path, so every {@link Layer} for the same file shares one parsed
+ * header and one raster, and the file is only read again when its size or
+ * modification time changes.
+ * 
+ * The parsed headers can be saved to an index file and loaded at startup, so
+ * that a service that knows about thousands of layers can construct them
+ * without reading thousands of files. Indexed headers are checked against the
+ * size and modification time of their file before they're used. Rasters are
+ * likewise cached next to each file, see <code>setRasterCache</code>.
+ * 
+ * This class is thread safe. Note: This class is not designed for
+ * instantiation.
+ */
+public class LayerRegistry {
+
+  /**
+   * A registered layer file.
+   */
+  static class Entry {
+    final AsciiHeader header;
+    final long lastModified;
+    final long length;
+    private Raster raster;
+
+    Entry(AsciiHeader header, long length, long lastModified) {
+      this.header = header;
+      this.length = length;
+      this.lastModified = lastModified;
+    }
+
+    /**
+     * Returns the raster of the file, converting the grid body the first time
+     * it's called.
+     */
+    synchronized Raster raster(String path) throws IOException {
+      if (raster == null) {
+        raster = cacheRasters ? Raster.fromCache(path, header.nRows,
+            header.nCols, header.noDataValue) : Raster.fromAsciiGrid(path,
+            header.nRows, header.nCols, header.noDataValue);
+      }
+      return raster;
+    }
+  }
+
+  private static volatile boolean cacheRasters = true;
+
+  private static final String INDEX_HEADER = "# layer index v1";
+
+  private static final Map<String, Entry> entries =
+      new ConcurrentHashMap<String, Entry>();
+
+  private static Logger log = Logger.getLogger(LayerRegistry.class);
+
+  /**
+   * Removes every registered layer file.
+   */
+  public static void clear() {
+    entries.clear();
+  }
+
+  /**
+   * Registers the headers in an index file written by <code>saveIndex</code>.
+   * Headers of files that have changed since the index was written are ignored
+   * when the file is next used.
+   * 
+   * @param path the index file path
+   * @return the number of headers loaded
+   * @throws IOException problems reading the index
+   */
+  public static int loadIndex(String path) throws IOException {
+    long start = System.currentTimeMillis();
+    BufferedReader reader = new BufferedReader(new FileReader(path));
+    int count = 0;
+    try {
+      String line = reader.readLine();
+      if (!INDEX_HEADER.equals(line)) {
+        throw new IOException("Not a layer index: " + path);
+      }
+      while ((line = reader.readLine()) != null) {
+        String[] f = line.split("\t");
+        if (f.length != 9) {
+          throw new IOException(String.format("%s line %d: bad index entry",
+              path, count + 2));
+        }
+        AsciiHeader header = new AsciiHeader();
+        header.nCols = Integer.valueOf(f[3]);
+        header.nRows = Integer.valueOf(f[4]);
+        header.xllcorner = Double.valueOf(f[5]);
+        header.yllcorner = Double.valueOf(f[6]);
+        header.cellSize = Double.valueOf(f[7]);
+        header.noDataValue = Integer.valueOf(f[8]);
+        entries.put(f[0], new Entry(header, Long.parseLong(f[1]), Long
+            .parseLong(f[2])));
+        count++;
+      }
+    } catch (NumberFormatException e) {
+      throw new IOException(String.format("%s: bad index entry - %s", path, e));
+    } finally {
+      reader.close();
+    }
+    log.info(String.format("Loaded %d layer headers from %s in %f sec", count,
+        path, (System.currentTimeMillis() - start) / 1000.0));
+    return count;
+  }
+
+  /**
+   * Writes the headers of every registered layer file to an index file.
+   * 
+   * @param path the index file path
+   * @throws IOException problems writing the index
+   */
+  public static void saveIndex(String path) throws IOException {
+    Writer writer = new BufferedWriter(new FileWriter(path));
+    try {
+      writer.write(INDEX_HEADER);
+      writer.write('\n');
+      for (Map.Entry<String, Entry> e : entries.entrySet()) {
+        AsciiHeader h = e.getValue().header;
+        if (h.nCols == null || h.nRows == null || h.xllcorner == null
+            || h.yllcorner == null || h.cellSize == null
+            || h.noDataValue == null) {
+          continue;
+        }
+        writer.write(String.format("%s\t%d\t%d\t%d\t%d\t%s\t%s\t%s\t%d\n", e
+            .getKey(), e.getValue().length, e.getValue().lastModified,
+            h.nCols, h.nRows, h.xllcorner, h.yllcorner, h.cellSize,
+            h.noDataValue));
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * Sets whether rasters are cached in a binary file next to each layer file,
+   * which is on by default. Cached rasters are loaded without parsing the
+   * layer file, and are rewritten when its size or modification time changes.
+   * 
+   * @param enabled true to cache rasters
+   */
+  public static void setRasterCache(boolean enabled) {
+    cacheRasters = enabled;
+  }
+
+  /**
+   * Returns the number of registered layer files.
+   * 
+   * @return number of layer files
+   */
+  public static int size() {
+    return entries.size();
+  }
+
+  /**
+   * Returns the registered entry for a layer file, parsing its header if the
+   * file isn't registered or has changed.
+   */
+  static Entry get(String path) throws IOException {
+    File f = new File(path);
+    String key = f.getAbsolutePath();
+    long length = f.length();
+    long lastModified = f.lastModified();
+    if (lastModified == 0 && !f.exists()) {
+      throw new FileNotFoundException(path);
+    }
+    Entry e = entries.get(key);
+    if (e == null || e.length != length || e.lastModified != lastModified) {
+      e = new Entry(Layer.parseHeader(path), length, lastModified);
+      entries.put(key, e);
+    }
+    return e;
+  }
+
+  private LayerRegistry() {
+  }
+}
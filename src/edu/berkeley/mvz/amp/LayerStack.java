@@ -0,0 +1,309 @@
+/*
+ * Copyright 2009 University of California at Berkeley
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.berkeley.mvz.amp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A stack of layers that share the same geometry, with the values of every
+ * layer, or band, of a cell stored next to each other. Sampling all the layers
+ * at a cell then reads one small run of memory instead of one value from each
+ * layer's raster.
+ * 
+ * Values are copied once into a memory-mapped temporary file, which is deleted
+ * as soon as it's mapped. The values of the most recently stacked layer files
+ * are shared by new stacks of the same files, as long as the files haven't
+ * changed. This class is immutable and thread-safe.
+ */
+public class LayerStack {
+
+  /**
+   * The mapped values of a stack, in segments of rows.
+   */
+  private static class Bands {
+    final int segmentRows;
+    final FloatBuffer[] segments;
+
+    Bands(int segmentRows, FloatBuffer[] segments) {
+      this.segmentRows = segmentRows;
+      this.segments = segments;
+    }
+  }
+
+  /**
+   * Maximum number of stacked values shared by new stacks.
+   */
+  private static final int MAX_SHARED_BANDS = 4;
+
+  /**
+   * Maximum number of bytes mapped by a single segment.
+   */
+  private static final long SEGMENT_BYTES = 1L << 30;
+
+  private static Logger log = Logger.getLogger(LayerStack.class);
+
+  /**
+   * Stacked values by the registry entries of their layer files, in least
+   * recently used order.
+   */
+  private static final Map<List<LayerRegistry.Entry>, Bands> shared =
+      new LinkedHashMap<List<LayerRegistry.Entry>, Bands>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<List<LayerRegistry.Entry>, Bands> e) {
+          return size() > MAX_SHARED_BANDS;
+        }
+      };
+
+  /**
+   * Returns a new stack of the given layers, in order. The layers must share
+   * the same number of rows and columns, resolution, and extent.
+   * 
+   * @param layers the layers
+   * @throws IllegalArgumentException if there are no layers or the layers have
+   *           different geometries
+   * @throws IllegalStateException if the stack can't be written
+   * @return layer stack
+   */
+  public static LayerStack newInstance(List<Layer> layers) {
+    if (layers == null || layers.isEmpty()) {
+      throw new IllegalArgumentException("At least one layer is required");
+    }
+    Layer first = layers.get(0);
+    for (Layer l : layers) {
+      if (l.getNRows() != first.getNRows()
+          || l.getNColumns() != first.getNColumns()
+          || l.getResolution() != first.getResolution()
+          || !l.getSwPoint().equals(first.getSwPoint())) {
+        throw new IllegalArgumentException(String.format(
+            "Layer %s doesn't have the same geometry as layer %s", l, first));
+      }
+    }
+    List<LayerRegistry.Entry> key = new ArrayList<LayerRegistry.Entry>();
+    for (Layer l : layers) {
+      key.add(l.entry());
+    }
+    Bands bands;
+    synchronized (shared) {
+      bands = shared.get(key);
+      if (bands == null) {
+        try {
+          bands = write(layers);
+        } catch (IOException e) {
+          throw new IllegalStateException("Unable to stack layers " + layers,
+              e);
+        }
+        shared.put(key, bands);
+      }
+    }
+    return new LayerStack(layers, bands);
+  }
+
+  /**
+   * Copies the values of the layers into a temporary file and maps it.
+   */
+  private static Bands write(List<Layer> layers) throws IOException {
+    long start = System.currentTimeMillis();
+    int nBands = layers.size();
+    int nRows = layers.get(0).getNRows();
+    int nCols = layers.get(0).getNColumns();
+    Raster[] rasters = new Raster[nBands];
+    for (int b = 0; b < nBands; b++) {
+      rasters[b] = layers.get(b).raster();
+    }
+
+    File file = File.createTempFile("stack", ".flt");
+    file.deleteOnExit();
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      FileChannel channel = raf.getChannel();
+      ByteBuffer row = ByteBuffer.allocate(nCols * nBands * 4).order(
+          ByteOrder.LITTLE_ENDIAN);
+      FloatBuffer values = row.asFloatBuffer();
+      for (int r = 0; r < nRows; r++) {
+        // Copies one band at a time, so each raster is read sequentially:
+        for (int b = 0; b < nBands; b++) {
+          Raster raster = rasters[b];
+          for (int c = 0, i = b; c < nCols; c++, i += nBands) {
+            values.put(i, raster.get(r, c));
+          }
+        }
+        row.clear();
+        while (row.hasRemaining()) {
+          channel.write(row);
+        }
+      }
+      long rowBytes = (long) nCols * nBands * 4;
+      int segmentRows = (int) Math.max(1, Math.min(nRows, SEGMENT_BYTES
+          / rowBytes));
+      FloatBuffer[] segments = new FloatBuffer[(nRows + segmentRows - 1)
+          / segmentRows];
+      for (int i = 0; i < segments.length; i++) {
+        long offset = (long) i * segmentRows * rowBytes;
+        long size = Math.min(segmentRows, nRows - i * segmentRows) * rowBytes;
+        segments[i] = channel.map(MapMode.READ_ONLY, offset, size).order(
+            ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+      }
+      log.info(String.format("Stacked %d layers in %f sec", nBands, (System
+          .currentTimeMillis() - start) / 1000.0));
+      return new Bands(segmentRows, segments);
+    } finally {
+      raf.close();
+      // Mapped values outlive the file where the platform allows it:
+      file.delete();
+    }
+  }
+
+  private final Layer first;
+
+  private final List<Layer> layers;
+
+  private final int nBands;
+
+  private final int nCols;
+
+  private final double[] noData;
+
+  private final int nRows;
+
+  private final int segmentRows;
+
+  private final FloatBuffer[] segments;
+
+  private LayerStack(List<Layer> layers, Bands bands) {
+    this.layers = Collections.unmodifiableList(new ArrayList<Layer>(layers));
+    first = layers.get(0);
+    nBands = layers.size();
+    nRows = first.getNRows();
+    nCols = first.getNColumns();
+    noData = new double[nBands];
+    for (int b = 0; b < nBands; b++) {
+      noData[b] = layers.get(b).getNoData();
+    }
+    segmentRows = bands.segmentRows;
+    segments = bands.segments;
+  }
+
+  /**
+   * Returns true if the point falls within the extent of the layers.
+   * 
+   * @param point the point to check
+   * @return true if the point is contained by the layers
+   */
+  public boolean containsPoint(LatLng point) {
+    return first.containsPoint(point);
+  }
+
+  /**
+   * Returns the stacked layers, in band order.
+   * 
+   * @return the layers
+   */
+  public List<Layer> getLayers() {
+    return layers;
+  }
+
+  /**
+   * Returns the value of every layer at the given row and column, in band
+   * order. Row 0 is the northern most row and column 0 is the western most
+   * column, so the values at <code>Layer.asCell(point)</code> of any stacked
+   * layer are the values <code>valuesAt(point, out)</code> copies.
+   * 
+   * @param cell the cell
+   * @throws IllegalArgumentException if the cell is outside of the grid
+   * @return the cell values, which are a layer's no data value where it's
+   *         empty
+   */
+  public double[] valuesAt(Cell cell) {
+    if (cell == null) {
+      throw new NullPointerException("Cell was null");
+    }
+    int row = cell.getRow(), col = cell.getColumn();
+    if (row < 0 || row >= nRows || col < 0 || col >= nCols) {
+      throw new IllegalArgumentException(String.format(
+          "Cell %s is outside of layer %s", cell, first));
+    }
+    double[] out = new double[nBands];
+    read(row, col, out);
+    return out;
+  }
+
+  /**
+   * Copies the value of every layer at the cell that contains the point into
+   * out, in band order. Cells are located the same way as
+   * <code>Layer.getValue(LatLng)</code> locates them.
+   * 
+   * @param point the point
+   * @param out the array to copy values into, or null to allocate one
+   * @throws IllegalArgumentException if out is shorter than the number of
+   *           layers
+   * @return out, with each layer's no data value if the point falls outside of
+   *         the extent
+   */
+  public double[] valuesAt(LatLng point, double[] out) {
+    if (point == null) {
+      throw new NullPointerException("Point was null");
+    }
+    if (out == null) {
+      out = new double[nBands];
+    } else if (out.length < nBands) {
+      throw new IllegalArgumentException(String.format(
+          "Expected at least %d values but got %d", nBands, out.length));
+    }
+    if (!first.containsPoint(point)) {
+      System.arraycopy(noData, 0, out, 0, nBands);
+      return out;
+    }
+    double res = first.getResolution();
+    LatLng sw = first.getSwPoint();
+    int row = nRows - 1
+        - (int) Math.floor((point.getLatitude() - sw.getLatitude()) / res);
+    int col = (int) Math.floor((point.getLongitude() - sw.getLongitude())
+        / res);
+    // Guards against rounding at the extent edges:
+    row = Math.min(nRows - 1, Math.max(0, row));
+    col = Math.min(nCols - 1, Math.max(0, col));
+    read(row, col, out);
+    return out;
+  }
+
+  /**
+   * Copies the value of every layer at the given row and column into out.
+   */
+  void read(int row, int col, double[] out) {
+    FloatBuffer segment = segments[row / segmentRows];
+    int i = ((row % segmentRows) * nCols + col) * nBands;
+    for (int b = 0; b < nBands; b++) {
+      out[b] = segment.get(i + b);
+    }
+  }
+}
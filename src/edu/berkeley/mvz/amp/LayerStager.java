@@ -0,0 +1,236 @@
+/*
+ * Copyright 2009 University of California at Berkeley
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.berkeley.mvz.amp;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class stages layers for a MaxEnt run by creating a directory of
+ * symbolic links to the layer files, which is how MaxEnt expects to be given
+ * a set of layers.
+ * 
+ * Links are created in parallel with <code>Files.createSymbolicLink</code>
+ * and verified before staging returns, so a run never starts before its layers
+ * exist. A manifest of the links is written next to a staged directory, and a
+ * directory whose manifest and links match the requested layers is reused
+ * as is. Entries that aren't links, like the <code>maxent.cache</code>
+ * directory MaxEnt writes next to the layers, are kept when a directory is
+ * reused and deleted when it's restaged. Note: This class is not designed for
+ * instantiation.
+ */
+class LayerStager {
+
+  /**
+   * The suffix of the manifest file written next to a staged directory.
+   */
+  static final String MANIFEST_SUFFIX = ".manifest";
+
+  private static Logger log = Logger.getLogger(LayerStager.class);
+
+  /**
+   * Adds a link to the links unless one with the same name was already added,
+   * which matches <code>ln -s</code> refusing to replace an existing link.
+   * 
+   * @param links the links by name
+   * @param name the link name
+   * @param layer the layer to link to
+   */
+  static void addLink(Map<String, String> links, String name, Layer layer) {
+    if (!links.containsKey(name)) {
+      links.put(name, layer.getPath());
+    }
+  }
+
+  /**
+   * Stages each layer in the directory as a link named after the layer.
+   * 
+   * @param dir the staging directory
+   * @param layers the layers
+   * @return the staging directory
+   * @throws IOException problems creating the links
+   */
+  static String stage(String dir, List<Layer> layers) throws IOException {
+    Map<String, String> links = new TreeMap<String, String>();
+    for (Layer l : layers) {
+      addLink(links, l.getName(), l);
+    }
+    return stage(dir, links);
+  }
+
+  /**
+   * Stages the links in the directory, replacing anything else in it, or
+   * reuses the directory if it's already staged with the same links.
+   * 
+   * @param dir the staging directory
+   * @param links the link targets by link name
+   * @return the staging directory
+   * @throws IOException problems creating the links or a missing target
+   */
+  static String stage(String dir, Map<String, String> links)
+      throws IOException {
+    final Path d = Paths.get(dir);
+    Path manifest = Paths.get(dir + MANIFEST_SUFFIX);
+    final Map<String, Path> targets = new TreeMap<String, Path>();
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, String> e : links.entrySet()) {
+      Path target = Paths.get(e.getValue()).toAbsolutePath().normalize();
+      targets.put(e.getKey(), target);
+    }
+    for (Map.Entry<String, Path> e : targets.entrySet()) {
+      sb.append(e.getKey()).append('\t').append(e.getValue()).append('\n');
+    }
+    byte[] contents = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+    if (Files.isRegularFile(manifest)
+        && new String(Files.readAllBytes(manifest), StandardCharsets.UTF_8)
+            .equals(sb.toString()) && verify(d, targets)) {
+      log.info(String.format("Reusing %d staged layers in %s", targets
+          .size(), dir));
+      return dir;
+    }
+
+    long start = System.currentTimeMillis();
+    Files.deleteIfExists(manifest);
+    clear(d);
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    for (final Map.Entry<String, Path> e : targets.entrySet()) {
+      if (!Files.exists(e.getValue())) {
+        throw new FileNotFoundException("Layer not found: " + e.getValue());
+      }
+      futures.add(ForkJoinPool.commonPool().submit(new Callable<Void>() {
+        public Void call() throws IOException {
+          Files.createSymbolicLink(d.resolve(e.getKey()), e.getValue());
+          return null;
+        }
+      }));
+    }
+    for (Future<Void> f : futures) {
+      try {
+        f.get();
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new IOException(e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted staging " + dir);
+      }
+    }
+    if (!verify(d, targets)) {
+      throw new IOException("Staged layers could not be verified: " + dir);
+    }
+
+    // Writes the manifest last so that it's only present for a complete
+    // directory:
+    Path tmp = Files.createTempFile(d.toAbsolutePath().getParent(), d
+        .getFileName().toString(), ".tmp");
+    Files.write(tmp, contents);
+    Files.move(tmp, manifest, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    log.info(String.format("Staged %d layers in %s in %f sec", targets.size(),
+        dir, (System.currentTimeMillis() - start) / 1000.0));
+    return dir;
+  }
+
+  /**
+   * Deletes a file, or a directory and everything in it. Links are deleted,
+   * not followed.
+   * 
+   * @param path the file or directory
+   * @throws IOException problems deleting
+   */
+  static void delete(Path path) throws IOException {
+    if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+      DirectoryStream<Path> entries = Files.newDirectoryStream(path);
+      try {
+        for (Path p : entries) {
+          delete(p);
+        }
+      } finally {
+        entries.close();
+      }
+    }
+    Files.deleteIfExists(path);
+  }
+
+  /**
+   * Creates the directory if needed and deletes everything in it.
+   */
+  private static void clear(Path dir) throws IOException {
+    Files.createDirectories(dir);
+    DirectoryStream<Path> entries = Files.newDirectoryStream(dir);
+    try {
+      for (Path p : entries) {
+        delete(p);
+      }
+    } finally {
+      entries.close();
+    }
+  }
+
+  /**
+   * Returns true if the directory holds exactly the links, each pointing to
+   * its target, and every target exists. Entries that aren't links are
+   * ignored.
+   */
+  private static boolean verify(Path dir, Map<String, Path> targets)
+      throws IOException {
+    if (!Files.isDirectory(dir)) {
+      return false;
+    }
+    int count = 0;
+    DirectoryStream<Path> entries = Files.newDirectoryStream(dir);
+    try {
+      for (Path p : entries) {
+        if (!Files.isSymbolicLink(p)) {
+          continue;
+        }
+        Path target = targets.get(p.getFileName().toString());
+        if (target == null || !Files.readSymbolicLink(p).equals(target)
+            || !Files.exists(p)) {
+          return false;
+        }
+        count++;
+      }
+    } finally {
+      entries.close();
+    }
+    return count == targets.size();
+  }
+
+  private LayerStager() {
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2009 University of California at Berkeley
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.berkeley.mvz.amp;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import density.MaxEnt;
+
+/**
+ * This class runs MaxEnt in a child JVM. MaxEnt keeps the state of a run, like
+ * its parameters, random number generator and log, in static fields, so two
+ * runs in the same JVM at the same time interfere with each other. A child JVM
+ * runs one MaxEnt run with its own copy of that state, and its console output
+ * is written to a file.
+ * 
+ * Note: This class is not designed for instantiation.
+ */
+class MaxentProcess {
+
+  /**
+   * Runs MaxEnt with the given arguments and exits once it's done. MaxEnt
+   * exits with status 1 itself if the run fails.
+   * 
+   * @param args MaxEnt command line arguments
+   */
+  public static void main(String[] args) {
+    MaxEnt.main(args);
+    System.exit(0);
+  }
+
+  /**
+   * Runs MaxEnt in a child JVM and waits for it to finish. The child is
+   * destroyed if the current thread is interrupted while waiting.
+   * 
+   * @param argv MaxEnt command line arguments
+   * @param console file the child's console output is written to
+   * @throws IOException if the child can't be started or the run fails
+   * @throws InterruptedException if interrupted while waiting
+   */
+  static void run(String[] argv, File console) throws IOException,
+      InterruptedException {
+    List<String> command = new ArrayList<String>();
+    command.add(new File(new File(System.getProperty("java.home"), "bin"),
+        "java").getPath());
+    command.add("-Djava.awt.headless=true");
+    command.add("-cp");
+    command.add(classPath());
+    command.add(MaxentProcess.class.getName());
+    command.addAll(Arrays.asList(argv));
+    Process p = new ProcessBuilder(command).redirectErrorStream(true)
+        .redirectOutput(console).start();
+    int status;
+    try {
+      status = p.waitFor();
+    } catch (InterruptedException e) {
+      p.destroy();
+      throw e;
+    }
+    if (status != 0) {
+      throw new IOException(String.format(
+          "MaxEnt exited with status %d, see %s", status, console));
+    }
+  }
+
+  /**
+   * Returns a class path with MaxEnt and this class, followed by the class
+   * path of this JVM.
+   */
+  private static String classPath() throws IOException {
+    Set<String> paths = new LinkedHashSet<String>();
+    for (Class<?> c : new Class<?>[] { MaxEnt.class, MaxentProcess.class }) {
+      CodeSource source = c.getProtectionDomain().getCodeSource();
+      if (source != null) {
+        try {
+          paths.add(new File(source.getLocation().toURI()).getPath());
+        } catch (URISyntaxException e) {
+          throw new IOException("Unable to locate " + c, e);
+        }
+      }
+    }
+    paths.addAll(Arrays.asList(System.getProperty("java.class.path").split(
+        File.pathSeparator)));
+    StringBuilder sb = new StringBuilder();
+    for (String p : paths) {
+      if (p.length() == 0) {
+        continue;
+      }
+      sb.append(sb.length() == 0 ? "" : File.pathSeparator).append(p);
+    }
+    return sb.toString();
+  }
+
+  private MaxentProcess() {
+  }
+}
@@ -16,9 +16,17 @@
 package edu.berkeley.mvz.amp;
 
 import java.io.File;
-import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import edu.berkeley.mvz.amp.ResultManifest.Entry;
 
 /**
  * This class is used to encapsulate the results of a MaxEnt run which may
@@ -32,6 +40,7 @@ public class MaxentResults {
    * 
    */
   public static class ResultBuilder {
+    private JackknifeResults jackknife;
     private String outputDir;
     private SamplesWithData swd;
     private int runCount;
@@ -65,6 +74,17 @@ public class MaxentResults {
       return new MaxentResults(this);
     }
 
+    /**
+     * Adds jackknife results to this builder.
+     * 
+     * @param jackknife the jackknife results
+     * @return this builder
+     */
+    public ResultBuilder jackknife(JackknifeResults jackknife) {
+      this.jackknife = jackknife;
+      return this;
+    }
+
     /**
      * Adds the number of Maxent runs to this builder.
      * 
@@ -91,17 +111,25 @@ public class MaxentResults {
     }
   }
 
+  private static Logger log = Logger.getLogger(MaxentResults.class);
+
   private final SamplesWithData swd;
 
   private final String directory;
 
-  private Set<String> names;
+  private final JackknifeResults jackknife;
+
+  private final Map<String, LambdasModel> models =
+      new ConcurrentHashMap<String, LambdasModel>();
+
+  private ResultManifest manifest;
 
   private final int runCount;
 
   private MaxentResults(ResultBuilder builder) {
     swd = builder.swd;
     directory = builder.outputDir;
+    jackknife = builder.jackknife;
     runCount = builder.runCount;
   }
 
@@ -112,6 +140,62 @@ public class MaxentResults {
     return directory;
   }
 
+  /**
+   * Returns the files in the output directory that belong to a species,
+   * including the files of its replicates and their averages.
+   * 
+   * @param species the species name
+   * @return the species' files, which is empty if there are none
+   */
+  public List<File> getFiles(String species) {
+    if (species == null) {
+      throw new NullPointerException("Species was null");
+    }
+    List<File> files = new ArrayList<File>();
+    ResultManifest m = manifest();
+    if (m != null) {
+      for (Entry e : m.getEntries(species)) {
+        files.add(new File(directory, e.getFilename()));
+      }
+    }
+    return files;
+  }
+
+  /**
+   * Returns the jackknife of variable importance, or null if the run wasn't
+   * jackknifed in parallel.
+   * 
+   * @return jackknife results
+   */
+  public JackknifeResults getJackknifeResults() {
+    return jackknife;
+  }
+
+  /**
+   * Returns the model trained for a species, which can be used to score new
+   * points. The model is parsed from the species' lambdas file the first time
+   * it's requested.
+   * 
+   * @param species the species name
+   * @return the model
+   * @throws IOException problems reading the lambdas file
+   */
+  public LambdasModel getModel(String species) throws IOException {
+    if (species == null) {
+      throw new NullPointerException("Species was null");
+    }
+    if (directory == null) {
+      throw new IllegalStateException("These results have no output directory");
+    }
+    LambdasModel model = models.get(species);
+    if (model == null) {
+      model = LambdasModel.parse(new File(directory, species + ".lambdas")
+          .getPath());
+      models.put(species, model);
+    }
+    return model;
+  }
+
   /**
    * @return the runCount
    */
@@ -130,21 +214,38 @@ public class MaxentResults {
 
   /**
    * Returns the set of species names for which MaxEnt results are available.
+   * For replicated runs these are named species_i after each replicate.
    * 
    * @return set of species names with available results.
    */
   public Set<String> getSpeciesNames() {
-    if (names == null) {
-      names = new HashSet<String>();
-      for (File f : new File(directory).listFiles(new FilenameFilter() {
-        public boolean accept(File dir, String name) {
-          return name.endsWith(".lambdas");
-        }
-      })) {
-        names.add(f.getName().split(".lambdas")[0]);
-      }
-    }
-    return new HashSet<String>(names);
+    ResultManifest m = manifest();
+    return m == null ? new HashSet<String>() : new HashSet<String>(m
+        .getNames());
+  }
+
+  /**
+   * Returns the test AUC of a species, which is the average over replicates
+   * for replicated runs, or NaN if it wasn't reported.
+   * 
+   * @param species the species name
+   * @return the test AUC
+   */
+  public double getTestAuc(String species) {
+    Entry e = summary(species);
+    return e == null ? Double.NaN : e.getTestAuc();
+  }
+
+  /**
+   * Returns the training AUC of a species, which is the average over
+   * replicates for replicated runs, or NaN if it wasn't reported.
+   * 
+   * @param species the species name
+   * @return the training AUC
+   */
+  public double getTrainingAuc(String species) {
+    Entry e = summary(species);
+    return e == null ? Double.NaN : e.getTrainingAuc();
   }
 
   /**
@@ -153,6 +254,52 @@ public class MaxentResults {
    * @return size of results
    */
   public int size() {
-    return names.size();
+    ResultManifest m = manifest();
+    return m == null ? 0 : m.getNames().size();
+  }
+
+  /**
+   * Returns the manifest of the output directory, or null if there is no
+   * output directory. The manifest written when the run was dispatched is
+   * read the first time it's needed. Without one the directory is indexed
+   * instead.
+   */
+  private synchronized ResultManifest manifest() {
+    if (manifest == null && directory != null) {
+      File dir = new File(directory);
+      try {
+        manifest = ResultManifest.read(dir);
+      } catch (IOException e) {
+        log.warn("Manifest couldn't be read, indexing " + directory, e);
+      }
+      try {
+        if (manifest == null) {
+          manifest = ResultManifest.scan(dir, Math.max(1, runCount));
+        }
+      } catch (IOException e) {
+        throw new IllegalStateException("Results couldn't be indexed: "
+            + directory, e);
+      }
+    }
+    return manifest;
+  }
+
+  /**
+   * Returns the first entry of a species that isn't a replicate's, which holds
+   * the species' AUCs.
+   */
+  private Entry summary(String species) {
+    if (species == null) {
+      throw new NullPointerException("Species was null");
+    }
+    ResultManifest m = manifest();
+    if (m != null) {
+      for (Entry e : m.getEntries(species)) {
+        if (e.getReplicate() < 0) {
+          return e;
+        }
+      }
+    }
+    return null;
   }
 }
@@ -45,7 +45,10 @@ public class MaxentRun {
     BETA_LQP("beta_lqp", "", "Override default beta for linear, quadratic and product features."),
     BETA_THRESHOLD("beta_threshold", "", "Override default beta for threshold features."),
     BETAMULTIPLIER("betamultiplier", "-b", "Set the regularization multiplier (default 1.0)."),
+    BIL("bil", "", "Set the output grid format to .bil."),
+    BOOTSTRAP("bootstrap", "", "Train each replicate on a bootstrap sample, drawn with replacement, of the samples."),
     CONVERGENCETHRESHOLD("convergencethreshold", "-c", "Set the convergence threshold (default 1.0e-5)."),
+    CROSSVALIDATE("crossvalidate", "", "Split the samples into a fold per replicate, and test each replicate on one fold after training it on the others."),
     CUMULATIVE("cumulative", "-C", "Use cumulative rather than logistic output format."),
     DONTADDSAMPLESTOFEATURES("dontaddsamplestofeatures", "-d", "By default the presence samples are added to the background data, to ensure that the constraints are all feasible. this flag prevents them from being added, for example if you give background data in swd format that already contains the presence samples.."),
     DONTCACHE("dontcache", "", "By default, a compressed .mxe format version of each .asc file is cached in a directory called maxent.cache, to speed up future use of the file. dontcache turns off this feature.."),
@@ -75,7 +78,7 @@ public class MaxentRun {
     RANDOMTESTPOINTS("randomtestpoints", "-X", "Set the random test percentage (default 0)."),
     RAW("raw", "-Q", "Use raw rather than logistic output format."),
     REMOVEDUPLICATES("removeduplicates", "-u", "Remove duplicates if multiple samples lie in the same grid cell."),
-    REPLICATES("replicates", "", "Used to do multiple runs for the same species."),
+    REPLICATES("replicates", "", "Used to do multiple runs for the same species. Like MaxEnt, every replicate trains on all samples, less its random test points, unless crossvalidate or bootstrap is given."),
     RESPONSECURVES("responsecurves", "-P", "Turn on response curves."),
     RESPONSECURVESEXPONENT("responsecurvesexponent", "", "When making response curves, plot the exponent of the exponential maxent model rather than the logistic prediction.."),
     SAMPLESFILE("samplesfile", "-s", "Location of samples file."),
@@ -129,6 +132,7 @@ public class MaxentRun {
     private List<Layer> backgroundLayers;
     private Map<Option, String> commandLine;
     private List<Layer> environmentLayers;
+    private String lambdasFile;
     private List<Layer> projectionLayers;
     private List<ProjectionSpec> projectionSpecs;
     private Map<String, Layer> projLayerMap;
@@ -146,6 +150,7 @@ public class MaxentRun {
       projLayerMap = run.projLayerMap;
       projectionSpecs = run.projectionSpecs;
       environmentLayers = run.layers;
+      lambdasFile = run.lambdasFile;
       backgroundLayers = run.backgroundLayers;
       projectionLayers = run.projectionLayers;
       samples = run.samples;
@@ -235,6 +240,18 @@ public class MaxentRun {
       return this;
     }
 
+    /**
+     * Sets the lambdas file of the model that a projection run projects. It
+     * isn't a MaxEnt option, so it isn't passed to MaxEnt.
+     * 
+     * @param path the lambdas file
+     * @return the run config
+     */
+    public RunConfig lambdasFile(String path) {
+      this.lambdasFile = path;
+      return this;
+    }
+
     /**
      * @return the projLayerMap
      */
@@ -262,6 +279,19 @@ public class MaxentRun {
       return this;
     }
 
+    /**
+     * Removes an {@link Option} from the configuration.
+     * 
+     * @param option the option to remove
+     * @return the configuration
+     */
+    public RunConfig remove(Option option) {
+      if (commandLine != null) {
+        commandLine.remove(option);
+      }
+      return this;
+    }
+
     /**
      * Adds samples to the configuration.
      * 
@@ -298,6 +328,7 @@ public class MaxentRun {
   private final ArrayList<Layer> backgroundLayers;
   private final Map<Option, String> commandLine;
   private final ArrayList<Layer> layers;
+  private final String lambdasFile;
   private final ArrayList<Layer> projectionLayers;
 
   private final List<ProjectionSpec> projectionSpecs;
@@ -309,6 +340,7 @@ public class MaxentRun {
     type = options.runType;
     commandLine = options.commandLine == null ? new HashMap<Option, String>()
         : new HashMap<Option, String>(options.commandLine);
+    lambdasFile = options.lambdasFile;
     samples = options.samples == null ? new ArrayList<Sample>()
         : new ArrayList<Sample>(options.samples);
     layers = options.environmentLayers == null ? new ArrayList<Layer>()
@@ -334,7 +366,7 @@ public class MaxentRun {
     String[] argv = new String[opts.size()];
     int count = 0;
     for (Option o : opts.keySet()) {
-      if (opts.get(o).equals("true")) {
+      if (opts.get(o).equals("true") && o.getAbbreviation().length() > 0) {
         argv[count++] = o.getAbbreviation();
       } else {
         argv[count++] = String.format("%s=%s", o.getFlag(), opts.get(o));
@@ -357,6 +389,13 @@ public class MaxentRun {
     return layers;
   }
 
+  /**
+   * @return the lambdas file projected by a projection run, or null
+   */
+  public String getLambdasFile() {
+    return lambdasFile;
+  }
+
   /**
    * Returns the value for a configuration option.
    * 
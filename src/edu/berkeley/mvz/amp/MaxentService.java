@@ -19,17 +19,40 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
 
 import org.apache.log4j.Logger;
 
-import density.Getval;
 import density.MaxEnt;
-import density.tools.RandomSample;
-import edu.berkeley.mvz.amp.Layer.LayerProvider;
+import edu.berkeley.mvz.amp.LambdasModel.OutputFormat;
+import edu.berkeley.mvz.amp.Layer.LayerType;
 import edu.berkeley.mvz.amp.Layer.ProjectionSpec;
 import edu.berkeley.mvz.amp.MaxentResults.ResultBuilder;
 import edu.berkeley.mvz.amp.MaxentRun.Option;
@@ -92,8 +115,288 @@ public enum MaxentService {
     }
   }
 
+  /**
+   * Enumeration of policies applied when an async run is submitted while the
+   * run queue is full.
+   * 
+   */
+  public static enum RejectionPolicy {
+    /**
+     * Fails the submitted run with a {@link RejectedExecutionException}.
+     */
+    ABORT,
+    /**
+     * Executes the submitted run on the submitting thread, which slows down
+     * submitters until the pool catches up.
+     */
+    CALLER_RUNS,
+    /**
+     * Fails the oldest queued run with a {@link RejectedExecutionException}
+     * and queues the submitted run.
+     */
+    DISCARD_OLDEST
+  }
+
+  /**
+   * A queued async run that completes its future when executed and that can
+   * be interrupted when its future is cancelled or times out.
+   * 
+   */
+  private static class RunTask implements Runnable {
+    private final CompletableFuture<MaxentResults> future;
+    private final MaxentRun run;
+    private volatile Thread runner;
+    private final SharedLayers shared;
+
+    RunTask(MaxentRun run, SharedLayers shared,
+        CompletableFuture<MaxentResults> future) {
+      this.run = run;
+      this.shared = shared;
+      this.future = future;
+    }
+
+    public void run() {
+      if (future.isDone()) {
+        return;
+      }
+      runner = Thread.currentThread();
+      long start = System.currentTimeMillis();
+      try {
+        future.complete(dispatch(run, shared));
+      } catch (Throwable t) {
+        future.completeExceptionally(t);
+      } finally {
+        runner = null;
+        // Clears an interrupt meant for this run before the thread is reused:
+        Thread.interrupted();
+      }
+      log.info(String.format("%s runtime: %f sec ", run.getType(), (System
+          .currentTimeMillis() - start) / 1000.0));
+    }
+
+    void cancel(ThreadPoolExecutor pool) {
+      if (!pool.remove(this)) {
+        Thread t = runner;
+        if (t != null) {
+          t.interrupt();
+        }
+      }
+    }
+
+    void reject() {
+      future.completeExceptionally(new RejectedExecutionException(
+          "Run discarded from a full queue: " + run));
+    }
+  }
+
+  /**
+   * Executes the distinct runs of a batch on the run pool, keeping at most a
+   * fixed number of them in flight, and completes each run's future as it
+   * finishes.
+   * 
+   */
+  private static class BatchLauncher {
+    private final List<CompletableFuture<MaxentResults>> futures;
+    private final AtomicInteger next = new AtomicInteger();
+    private final List<MaxentRun> runs;
+    private final List<SharedLayers> shared;
+
+    BatchLauncher(List<MaxentRun> runs, List<SharedLayers> shared,
+        List<CompletableFuture<MaxentResults>> futures) {
+      this.runs = runs;
+      this.shared = shared;
+      this.futures = futures;
+    }
+
+    void launchNext() {
+      final int i = next.getAndIncrement();
+      if (i >= runs.size()) {
+        return;
+      }
+      final CompletableFuture<MaxentResults> future = futures.get(i);
+      if (future.isDone()) {
+        launchNext();
+        return;
+      }
+      submit(runs.get(i), shared.get(i)).whenComplete(
+          new BiConsumer<MaxentResults, Throwable>() {
+            public void accept(MaxentResults results, Throwable t) {
+              if (t == null) {
+                future.complete(results);
+              } else {
+                future.completeExceptionally(t);
+              }
+              launchNext();
+            }
+          });
+    }
+  }
+
+  /**
+   * Stages the layers of the model runs in a batch, once per distinct layer
+   * list, in a temporary directory that is created for the batch.
+   * 
+   */
+  private static class BatchLayers {
+    private Path dir;
+    private final Map<List<Layer>, String> staged =
+        new HashMap<List<Layer>, String>();
+
+    /**
+     * Deletes the batch directory, if any layers were staged.
+     */
+    void delete() {
+      if (dir == null) {
+        return;
+      }
+      try {
+        LayerStager.delete(dir);
+      } catch (IOException e) {
+        log.warn("Unable to delete staged batch layers " + dir, e);
+      }
+    }
+
+    /**
+     * Returns the layer directories that the run shares, or null if the run
+     * doesn't stage layers in its output directory.
+     */
+    SharedLayers share(MaxentRun run) throws IOException {
+      if (run.getType() != RunType.MODEL
+          || run.getOption(Option.OUTPUTDIRECTORY) == null
+          || !run.getProjectionSpecs().isEmpty()) {
+        return null;
+      }
+      SharedLayers shared = new SharedLayers();
+      if (!run.getEnvironmentLayers().isEmpty()) {
+        shared.environment = stage(run.getEnvironmentLayers());
+      }
+      if (!run.getProjectionLayers().isEmpty()) {
+        shared.projection = stage(run.getProjectionLayers());
+      }
+      return shared;
+    }
+
+    private String stage(List<Layer> layers) throws IOException {
+      String d = staged.get(layers);
+      if (d == null) {
+        if (dir == null) {
+          dir = Files.createTempDirectory("maxent-batch");
+        }
+        d = LayerStager.stage(dir.resolve("layers" + staged.size())
+            .toString(), layers);
+        staged.put(layers, d);
+      }
+      return d;
+    }
+  }
+
+  /**
+   * The layer directories that a model run in a batch shares with the other
+   * runs of the batch, instead of staging its layers in its output directory.
+   * 
+   */
+  private static class SharedLayers {
+    private String environment;
+    private String projection;
+  }
+
+  /**
+   * The name of the file in the output directory that MaxEnt console output is
+   * written to during model runs.
+   */
+  public static final String CONSOLE_FILENAME = "console.log";
+
+  /**
+   * The default maximum number of run results cached in memory.
+   */
+  public static final int DEFAULT_CACHE_SIZE = 64;
+
+  /**
+   * The default maximum number of queued async runs.
+   */
+  public static final int DEFAULT_QUEUE_DEPTH = 256;
+
+  /**
+   * MaxEnt's default maximum number of background points.
+   */
+  private static final int DEFAULT_MAXIMUM_BACKGROUND = 10000;
+
+  /**
+   * Options of a jackknifed run that aren't passed on to its jackknife models,
+   * which are fit to shared SWD files and only need to report their gains.
+   */
+  private static final Set<Option> JACKKNIFE_EXCLUDED_OPTIONS = EnumSet.of(
+      Option.APPLYTHRESHOLDRULE, Option.ENVIRONMENTALLAYERS, Option.JACKKNIFE,
+      Option.OUTPUTDIRECTORY, Option.PICTURES, Option.PROJECTIONLAYERS,
+      Option.RANDOMTESTPOINTS, Option.RESPONSECURVES, Option.SAMPLESFILE,
+      Option.TESTSAMPLESFILE, Option.WRITEPLOTDATA);
+
+  private static volatile ResultCache cache = ResultCache
+      .newInstance(DEFAULT_CACHE_SIZE);
+
   private static Logger log = Logger.getLogger(MaxentService.class);
 
+  /**
+   * Held while MaxEnt runs in this JVM. MaxEnt keeps the state of a run in
+   * static fields, so runs that start while it's held run in child JVMs.
+   */
+  private static final ReentrantLock maxent = new ReentrantLock();
+
+  private static ThreadPoolExecutor pool = newPool(Runtime.getRuntime()
+      .availableProcessors(), DEFAULT_QUEUE_DEPTH, RejectionPolicy.ABORT,
+      null);
+
+  /**
+   * Executes the sub-runs that model runs are split into, such as replicates
+   * and jackknife models. It's separate from the run pool so that a run
+   * waiting for its sub-runs can't starve them, and a sub-run waiting for
+   * sub-runs of its own helps execute them.
+   */
+  private static final ForkJoinPool workers = new ForkJoinPool(Runtime
+      .getRuntime().availableProcessors());
+
+  /**
+   * Configures the cache that identical runs are served from. By default
+   * results are cached in memory for up to {@link #DEFAULT_CACHE_SIZE} runs.
+   * 
+   * @param resultCache the cache, or null to disable caching
+   */
+  public static void configureCache(ResultCache resultCache) {
+    cache = resultCache;
+  }
+
+  /**
+   * Configures the pool that executes async runs. Runs already submitted to
+   * the previous pool are allowed to complete. By default the pool has one
+   * thread per processor, a queue depth of {@link #DEFAULT_QUEUE_DEPTH}, and
+   * the {@link RejectionPolicy#ABORT} policy.
+   * 
+   * A thread factory can be supplied to control how run threads are created.
+   * For example, on a JVM that supports them, I/O bound SWD runs can use a
+   * virtual thread factory.
+   * 
+   * @param threads maximum number of concurrent runs
+   * @param queueDepth maximum number of runs waiting for a thread
+   * @param policy policy applied when the queue is full
+   * @param factory the thread factory, or null for the default factory
+   */
+  public static void configureExecutor(int threads, int queueDepth,
+      RejectionPolicy policy, ThreadFactory factory) {
+    if (threads < 1 || queueDepth < 1) {
+      throw new IllegalArgumentException(
+          "Threads and queue depth must be positive");
+    }
+    if (policy == null) {
+      throw new NullPointerException("Rejection policy was null");
+    }
+    ThreadPoolExecutor old;
+    synchronized (MaxentService.class) {
+      old = pool;
+      pool = newPool(threads, queueDepth, policy, factory);
+    }
+    old.shutdown();
+  }
+
   /**
    * Creates and returns a new background SWD run.
    * 
@@ -134,14 +437,48 @@ public enum MaxentService {
       throw new NullPointerException("The run options were null");
     }
     long start = System.currentTimeMillis();
-    MaxentResults results = dispatch(run);
+    MaxentResults results = dispatch(run, null);
     log.info(String.format("%s runtime: %f sec ", run.getType(), (System
         .currentTimeMillis() - start) / 1000.0));
     return results;
   }
 
   /**
-   * Executes a MaxEnt run asynchronously.
+   * Executes a MaxEnt run asynchronously on the bounded run pool configured
+   * by <code>configureExecutor</code>. Cancelling the returned future removes
+   * the run from the queue or interrupts it if it's already executing. If the
+   * run is rejected by a full queue, the future fails with a
+   * {@link RejectedExecutionException}.
+   * 
+   * @param run the run to execute
+   * @return a future for the run results
+   */
+  public static CompletableFuture<MaxentResults> executeAsync(MaxentRun run) {
+    if (run == null) {
+      throw new NullPointerException("The run options were null");
+    }
+    return submit(run, null);
+  }
+
+  /**
+   * Executes a MaxEnt run asynchronously and fails it with a
+   * {@link TimeoutException} if it doesn't complete within the timeout. A run
+   * that times out is cancelled.
+   * 
+   * @param run the run to execute
+   * @param timeout the timeout
+   * @param unit the timeout unit
+   * @return a future for the run results
+   */
+  public static CompletableFuture<MaxentResults> executeAsync(MaxentRun run,
+      long timeout, TimeUnit unit) {
+    return executeAsync(run).orTimeout(timeout, unit);
+  }
+
+  /**
+   * Executes a MaxEnt run asynchronously. This is an adapter for
+   * <code>executeAsync(MaxentRun)</code> that reports the outcome to a
+   * callback.
    * 
    * @param run the run to execute
    * @param cb the async callback
@@ -153,33 +490,413 @@ public enum MaxentService {
     if (cb == null) {
       throw new NullPointerException("The callback was null");
     }
-    final long start = System.currentTimeMillis();
-    new Thread(new Runnable() {
-      public void run() {
+    executeAsync(run).whenComplete(
+        new BiConsumer<MaxentResults, Throwable>() {
+          public void accept(MaxentResults results, Throwable t) {
+            if (t == null) {
+              cb.onSuccess(run, results);
+            } else {
+              cb.onFailure(t instanceof CompletionException ? t.getCause()
+                  : t);
+            }
+          }
+        });
+  }
+
+  /**
+   * Executes a batch of runs concurrently with one run in flight per
+   * processor. See <code>executeBatch(List, int)</code>.
+   * 
+   * @param runs the runs to execute
+   * @return a future for each run's results, in the order of the runs
+   */
+  public static List<CompletableFuture<MaxentResults>> executeBatch(
+      List<MaxentRun> runs) {
+    return executeBatch(runs, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Executes a batch of runs, such as one model run per species,
+   * concurrently on the run pool with at most <code>parallelism</code> runs
+   * in flight. Each future completes as soon as its run does, so results can
+   * be consumed as they finish.
+   * 
+   * Work is shared across the batch: identical runs, like the same
+   * background SWD run requested for many species, are executed once, and
+   * model runs with the same layers share a layer directory staged for the
+   * batch. The directory is deleted once every run of the batch completes, so
+   * MaxEnt isn't asked to cache layers in it.
+   * 
+   * @param runs the runs to execute
+   * @param parallelism maximum number of runs executing at once
+   * @return a future for each run's results, in the order of the runs
+   */
+  public static List<CompletableFuture<MaxentResults>> executeBatch(
+      List<MaxentRun> runs, int parallelism) {
+    if (runs == null) {
+      throw new NullPointerException("The runs were null");
+    }
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Parallelism must be positive");
+    }
+    List<MaxentRun> distinct = new ArrayList<MaxentRun>();
+    List<SharedLayers> shared = new ArrayList<SharedLayers>();
+    List<CompletableFuture<MaxentResults>> distinctFutures =
+        new ArrayList<CompletableFuture<MaxentResults>>();
+    Map<String, CompletableFuture<MaxentResults>> byFingerprint =
+        new HashMap<String, CompletableFuture<MaxentResults>>();
+    final BatchLayers batchLayers = new BatchLayers();
+    List<CompletableFuture<MaxentResults>> futures =
+        new ArrayList<CompletableFuture<MaxentResults>>(runs.size());
+    for (MaxentRun run : runs) {
+      if (run == null) {
+        throw new NullPointerException("The run options were null");
+      }
+      String key = ResultCache.fingerprint(run);
+      CompletableFuture<MaxentResults> future = key == null ? null
+          : byFingerprint.get(key);
+      if (future == null) {
+        future = new CompletableFuture<MaxentResults>();
+        if (key != null) {
+          byFingerprint.put(key, future);
+        }
+        distinct.add(run);
         try {
-          MaxentResults results = dispatch(run);
-          cb.onSuccess(run, results);
-        } catch (MaxEntException e) {
-          cb.onFailure(e);
+          shared.add(batchLayers.share(run));
+        } catch (IOException e) {
+          shared.add(null);
+          future.completeExceptionally(new MaxEntException(e));
+        }
+        distinctFutures.add(future);
+      }
+      // Copies so that cancelling one run's future doesn't cancel a duplicate:
+      futures.add(future.copy());
+    }
+    log.info(String.format("Batch of %d runs, %d distinct", runs.size(),
+        distinct.size()));
+    CompletableFuture.allOf(
+        distinctFutures.toArray(new CompletableFuture<?>[0])).whenComplete(
+        new BiConsumer<Void, Throwable>() {
+          public void accept(Void v, Throwable t) {
+            batchLayers.delete();
+          }
+        });
+    BatchLauncher launcher = new BatchLauncher(distinct, shared,
+        distinctFutures);
+    for (int i = 0; i < parallelism && i < distinct.size(); i++) {
+      launcher.launchNext();
+    }
+    return futures;
+  }
+
+  /**
+   * Executes a batch of runs and reports each run's outcome to the callback
+   * as it completes. This is an adapter for
+   * <code>executeBatch(List, int)</code>.
+   * 
+   * @param runs the runs to execute
+   * @param parallelism maximum number of runs executing at once
+   * @param cb the async callback
+   */
+  public static void executeBatch(List<MaxentRun> runs, int parallelism,
+      final AsyncRunCallback cb) {
+    if (cb == null) {
+      throw new NullPointerException("The callback was null");
+    }
+    List<CompletableFuture<MaxentResults>> futures = executeBatch(runs,
+        parallelism);
+    for (int i = 0; i < futures.size(); i++) {
+      final MaxentRun run = runs.get(i);
+      futures.get(i).whenComplete(new BiConsumer<MaxentResults, Throwable>() {
+        public void accept(MaxentResults results, Throwable t) {
+          if (t == null) {
+            cb.onSuccess(run, results);
+          } else {
+            cb.onFailure(t instanceof CompletionException ? t.getCause() : t);
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Returns cached results for the run if there are any, otherwise dispatches
+   * the run and caches its results.
+   */
+  private static MaxentResults dispatch(MaxentRun run, SharedLayers shared)
+      throws MaxEntException {
+    ResultCache c = cache;
+    String key = c == null ? null : ResultCache.fingerprint(run);
+    if (key != null) {
+      MaxentResults results = c.get(key, run);
+      if (results != null) {
+        log.info(String.format("%s results cached: %s", run.getType(), key));
+        return results;
+      }
+    }
+    MaxentResults results = dispatchRun(run, shared);
+    if (key != null) {
+      c.put(key, results);
+    }
+    return results;
+  }
+
+  /**
+   * Executes the runs in parallel on the worker pool and returns their results
+   * in order. Runs that start while MaxEnt is in use run in child JVMs. If a
+   * run fails, the runs that haven't started are cancelled.
+   */
+  private static List<MaxentResults> dispatchAll(List<MaxentRun> runs)
+      throws MaxEntException {
+    final List<ForkJoinTask<MaxentResults>> tasks =
+        new ArrayList<ForkJoinTask<MaxentResults>>();
+    for (final MaxentRun r : runs) {
+      tasks.add(ForkJoinTask.adapt(new Callable<MaxentResults>() {
+        public MaxentResults call() throws MaxEntException {
+          return dispatchRun(r, null);
+        }
+      }));
+    }
+    RecursiveAction all = new RecursiveAction() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected void compute() {
+        invokeAll(tasks);
+      }
+    };
+    try {
+      if (ForkJoinTask.getPool() == workers) {
+        all.invoke();
+      } else {
+        workers.invoke(all);
+      }
+    } catch (RuntimeException e) {
+      Throwable t = e;
+      while (t.getCause() != null && !(t instanceof MaxEntException)) {
+        t = t.getCause();
+      }
+      throw t instanceof MaxEntException ? (MaxEntException) t
+          : new MaxEntException(t);
+    }
+    List<MaxentResults> results = new ArrayList<MaxentResults>();
+    for (ForkJoinTask<MaxentResults> task : tasks) {
+      results.add(task.join());
+    }
+    return results;
+  }
+
+  /**
+   * Executes a jackknifed model run as independent runs in parallel: the run
+   * itself without jackknifing, the model with all variables, and the models
+   * without each variable and with only each variable. Random test points are
+   * split from the samples once, and the run and every model train and test on
+   * the same split. The jackknife models, including the one with all
+   * variables, are fit to samples with data and background points that are
+   * read from the layers once and shared by every model, so their gains are
+   * comparable. Returns null without running anything if the layers can't be
+   * shared this way, in which case MaxEnt jackknifes the run itself.
+   */
+  private static JackknifeResults dispatchJackknife(MaxentRun run, String dir)
+      throws Exception {
+    List<Layer> layers = run.getEnvironmentLayers();
+    String samplesFile = run.getOption(Option.SAMPLESFILE);
+    if (layers.size() < 2 || !run.getProjectionSpecs().isEmpty()
+        || run.getOption(Option.TOGGLELAYERSELECTED) != null
+        || samplesFile == null || !new File(samplesFile).isFile()) {
+      return null;
+    }
+    BackgroundSampler sampler;
+    try {
+      sampler = BackgroundSampler.newInstance(layers);
+    } catch (IllegalArgumentException e) {
+      log.info("Jackknifing in MaxEnt: " + e.getMessage());
+      return null;
+    }
+    String max = run.getOption(Option.MAXIMUMBACKGROUND);
+    Random random = run.getOption(Option.RANDOMSEED) != null ? new Random()
+        : new Random(0);
+    File root = new File(dir, JackknifeResults.DIRECTORY);
+    String testFile = run.getOption(Option.TESTSAMPLESFILE);
+    String percent = run.getOption(Option.RANDOMTESTPOINTS);
+    if (testFile == null && percent != null && Integer.parseInt(percent) != 0) {
+      List<String[]> files = Replicates.split(samplesFile, 1, Integer
+          .parseInt(percent), false, random, root);
+      if (files == null) {
+        return null;
+      }
+      samplesFile = files.get(0)[0];
+      testFile = files.get(0)[1];
+    }
+    SamplesWithData background = sampler.sample(max == null
+        ? DEFAULT_MAXIMUM_BACKGROUND : Integer.parseInt(max), random);
+    SamplesWithData samples = SamplesWithData.fromLayers(SampleTable
+        .fromCsv(samplesFile).asList(), layers);
+    SamplesWithData test = testFile == null ? null : SamplesWithData
+        .fromLayers(SampleTable.fromCsv(testFile).asList(), layers);
+
+    // Variables are named like the columns of SWD files:
+    List<String> variables = new ArrayList<String>();
+    Map<String, List<Layer>> models = new LinkedHashMap<String, List<Layer>>();
+    models.put(JackknifeResults.FULL, layers);
+    for (int i = 0; i < layers.size(); i++) {
+      String v = layers.get(i).getFilename().split(".asc")[0];
+      variables.add(v);
+      List<Layer> without = new ArrayList<Layer>(layers);
+      without.remove(i);
+      models.put(JackknifeResults.WITHOUT + v, without);
+      models.put(JackknifeResults.ONLY + v, layers.subList(i, i + 1));
+    }
+
+    // The run itself still writes its outputs to the output directory:
+    List<MaxentRun> runs = new ArrayList<MaxentRun>();
+    RunConfig self = new RunConfig(run).remove(Option.JACKKNIFE).remove(
+        Option.RANDOMTESTPOINTS).add(Option.SAMPLESFILE, samplesFile);
+    if (testFile != null) {
+      self.add(Option.TESTSAMPLESFILE, testFile);
+    }
+    runs.add(self.build());
+    for (Map.Entry<String, List<Layer>> m : models.entrySet()) {
+      File d = new File(root, m.getKey());
+      d.mkdirs();
+      RunConfig config = new RunConfig(RunType.MODEL);
+      for (Map.Entry<Option, String> o : run.getOptions().entrySet()) {
+        if (!JACKKNIFE_EXCLUDED_OPTIONS.contains(o.getKey())) {
+          config.add(o.getKey(), o.getValue());
+        }
+      }
+      String path = new File(d, "samples.csv").getPath();
+      samples.select(m.getValue()).toCsv(path);
+      config.add(Option.SAMPLESFILE, path);
+      path = new File(d, "background.csv").getPath();
+      background.select(m.getValue()).toCsv(path);
+      config.add(Option.ENVIRONMENTALLAYERS, path);
+      if (test != null) {
+        path = new File(d, "test.csv").getPath();
+        test.select(m.getValue()).toCsv(path);
+        config.add(Option.TESTSAMPLESFILE, path);
+      }
+      runs.add(config.add(Option.OUTPUTDIRECTORY, d.getPath()).add(
+          Option.NOPLOTS).build());
+    }
+    long start = System.currentTimeMillis();
+    dispatchAll(runs);
+    log.info(String.format("Jackknifed %d variables in %f sec", variables
+        .size(), (System.currentTimeMillis() - start) / 1000.0));
+    return JackknifeResults.read(root, variables);
+  }
+
+  /**
+   * Projects the model in the run's lambdas file onto its projection layers in
+   * process. Layers are matched to model variables by layer filename or name,
+   * and the output grid is named like MaxEnt names projections. The grid is
+   * written as an ASCII grid, or as a BIL grid if the run has the bil option.
+   */
+  private static void dispatchProjection(MaxentRun run, String dir)
+      throws IOException {
+    String lambdas = run.getLambdasFile();
+    if (lambdas == null || dir == null) {
+      throw new IllegalArgumentException(String.format(
+          "Projection runs require a lambdas file and %s",
+          Option.OUTPUTDIRECTORY));
+    }
+    if (run.getOption(Option.CUMULATIVE) != null) {
+      throw new IllegalArgumentException(
+          "Cumulative output can't be projected from a lambdas file");
+    }
+    if (run.getOption(Option.GRD) != null) {
+      throw new IllegalArgumentException("Unsupported output file type grd");
+    }
+    String type = run.getOption(Option.BIL) != null ? "bil" : "asc";
+    List<Layer> candidates = new ArrayList<Layer>(run.getProjectionLayers());
+    String projDir = run.getOption(Option.PROJECTIONLAYERS);
+    if (candidates.isEmpty() && projDir != null) {
+      for (File f : new File(projDir).listFiles()) {
+        if (f.getName().endsWith(".asc")) {
+          candidates.add(Layer.newInstance(LayerType.CLIMATE, f.getName()
+              .split(".asc")[0], 0, f.getPath()));
         }
-        log.info(String.format("%s runtime: %f sec ", run.getType(), (System
-            .currentTimeMillis() - start) / 1000.0));
       }
-    }).start();
+    }
+    Map<String, Layer> byName = new HashMap<String, Layer>();
+    for (Layer l : candidates) {
+      byName.put(l.getName(), l);
+      byName.put(l.getFilename().split(".asc")[0], l);
+    }
+    LambdasModel model = LambdasModel.parse(lambdas);
+    List<Layer> layers = new ArrayList<Layer>();
+    for (String v : model.getVariables()) {
+      Layer l = byName.get(v);
+      if (l == null) {
+        throw new IllegalArgumentException("No projection layer for " + v);
+      }
+      layers.add(l);
+    }
+    String species = new File(lambdas).getName().split(".lambdas")[0];
+    String name = projDir == null ? species : String.format("%s_%s", species,
+        new File(projDir).getName());
+    Projector.project(model, layers, run.getOption(Option.RAW) != null
+        ? OutputFormat.RAW : OutputFormat.LOGISTIC, run
+        .getOption(Option.DONTEXTRAPOLATE) == null, new File(dir, name + "."
+        + type).getPath());
   }
 
-  private static String[] backgroundSwdArgv(RunConfig cb, int n,
-      List<Layer> layers) {
-    String[] argv = new String[layers.size() + 1];
-    argv[0] = Integer.toString(n);
-    int count = 1;
-    for (Layer l : layers) {
-      argv[count++] = l.getPath();
+  /**
+   * Executes the replicates of a model run as independent runs in parallel,
+   * then merges their outputs into the run's output directory. The samples are
+   * split the way MaxEnt splits them, and replicates read the run's layers
+   * without caching them, since they'd race to write the same cache. Returns
+   * false without running anything if the run's samples can't be split, or
+   * are bootstrapped, in which case MaxEnt runs the replicates itself.
+   */
+  private static boolean dispatchReplicates(MaxentRun run, String dir, int n)
+      throws Exception {
+    String samplesFile = run.getOption(Option.SAMPLESFILE);
+    if (samplesFile == null || !new File(samplesFile).isFile()
+        || run.getOption(Option.TESTSAMPLESFILE) != null
+        || run.getOption(Option.BOOTSTRAP) != null) {
+      return false;
+    }
+    String percent = run.getOption(Option.RANDOMTESTPOINTS);
+    Random random = run.getOption(Option.RANDOMSEED) != null ? new Random()
+        : new Random(0);
+    File root = new File(dir, Replicates.DIRECTORY);
+    List<String[]> files = Replicates.split(samplesFile, n, percent == null
+        ? 0 : Integer.parseInt(percent), run
+        .getOption(Option.CROSSVALIDATE) != null, random, root);
+    if (files == null) {
+      return false;
+    }
+
+    List<File> dirs = new ArrayList<File>();
+    List<MaxentRun> runs = new ArrayList<MaxentRun>();
+    for (int i = 0; i < n; i++) {
+      File d = new File(root, Integer.toString(i));
+      d.mkdirs();
+      dirs.add(d);
+      RunConfig config = new RunConfig(RunType.MODEL);
+      for (Map.Entry<Option, String> o : run.getOptions().entrySet()) {
+        config.add(o.getKey(), o.getValue());
+      }
+      config.remove(Option.CROSSVALIDATE).remove(Option.RANDOMTESTPOINTS);
+      if (files.get(i)[1] != null) {
+        config.add(Option.TESTSAMPLESFILE, files.get(i)[1]);
+      }
+      runs.add(config.add(Option.OUTPUTDIRECTORY, d.getPath()).add(
+          Option.SAMPLESFILE, files.get(i)[0]).add(Option.REPLICATES, "1")
+          .add(Option.DONTCACHE).build());
     }
-    return argv;
+    dispatchAll(runs);
+    Replicates.merge(new File(dir), dirs);
+    return true;
   }
 
-  private static MaxentResults dispatch(MaxentRun run) throws MaxEntException {
+  /**
+   * Dispatches the run. Layers of a model run are staged in its output
+   * directory, unless they're shared with the other runs of a batch.
+   */
+  private static MaxentResults dispatchRun(MaxentRun run, SharedLayers shared)
+      throws MaxEntException {
     ResultBuilder builder = null;
     try {
       RunConfig config = new RunConfig(run).add(Option.AUTORUN).add(
@@ -195,56 +912,51 @@ public enum MaxentService {
         }
         String edir = String.format("%s%s", dir, "EnvLayers");
         String pdir = String.format("%s%s", dir, "ProjLayers");
-        File eDir = new File(edir);
-        if (eDir.exists()) {
-          for (File f : eDir.listFiles()) {
-            f.delete();
-          }
-          eDir.delete();
-        }
-        eDir.mkdir();
-        File pDir = new File(pdir);
-        if (pDir.exists()) {
-          for (File f : pDir.listFiles()) {
-            f.delete();
-          }
-          pDir.delete();
-        }
-        pDir.mkdir();
+        Map<String, String> envLinks = new TreeMap<String, String>();
+        Map<String, String> projLinks = new TreeMap<String, String>();
 
-        // Creates symlinks for projection layers:
+        // Stages projection layers:
         if (!run.getProjectionSpecs().isEmpty()) {
           for (ProjectionSpec spec : run.getProjectionSpecs()) {
-            // Creates environmental layer symlink:
-            File d = new File(edir);
             if (spec.getEnvrionmentalLayer() != null) {
-              String path = spec.getEnvrionmentalLayer().getPath();
-              String link = String.format("ln -s %s %s/%s", path, d.getPath(),
-                  spec.getLayerName());
-              Runtime.getRuntime().exec(link);
+              LayerStager.addLink(envLinks, spec.getLayerName(), spec
+                  .getEnvrionmentalLayer());
             }
-            // Creates projection layer symlink:
-            d = new File(pdir);
             if (spec.getProjectionLayer() != null) {
-              String path = spec.getProjectionLayer().getPath();
-              String link = String.format("ln -s %s %s/%s", path, d.getPath(),
-                  spec.getLayerName());
-              Runtime.getRuntime().exec(link);
+              LayerStager.addLink(projLinks, spec.getLayerName(), spec
+                  .getProjectionLayer());
             }
           }
-          String d = String.format("%s%s", dir, "ProjLayers");
-          config.add(Option.PROJECTIONLAYERS, symlinkLayers(d, run
-              .getProjectionLayers()));
+          for (Layer l : run.getProjectionLayers()) {
+            LayerStager.addLink(projLinks, l.getName(), l);
+          }
+          LayerStager.stage(edir, envLinks);
+          config.add(Option.PROJECTIONLAYERS, LayerStager.stage(pdir,
+              projLinks));
         } else {
-          if (!run.getEnvironmentLayers().isEmpty()) {
-            String d = String.format("%s%s", dir, "EnvLayers");
-            config.add(Option.ENVIRONMENTALLAYERS, symlinkLayers(d, run
-                .getEnvironmentLayers()));
+          if (shared != null) {
+            // MaxEnt's cache would be shared and deleted with the batch:
+            config.add(Option.DONTCACHE);
+            edir = shared.environment == null ? edir : shared.environment;
+            pdir = shared.projection == null ? pdir : shared.projection;
+          }
+          for (Layer l : run.getEnvironmentLayers()) {
+            LayerStager.addLink(envLinks, l.getName(), l);
           }
-          if (!run.getProjectionLayers().isEmpty()) {
-            String d = String.format("%s%s", dir, "ProjLayers");
-            config.add(Option.PROJECTIONLAYERS, symlinkLayers(d, run
-                .getProjectionLayers()));
+          for (Layer l : run.getProjectionLayers()) {
+            LayerStager.addLink(projLinks, l.getName(), l);
+          }
+          if (shared == null || shared.environment == null) {
+            LayerStager.stage(edir, envLinks);
+          }
+          if (shared == null || shared.projection == null) {
+            LayerStager.stage(pdir, projLinks);
+          }
+          if (!envLinks.isEmpty()) {
+            config.add(Option.ENVIRONMENTALLAYERS, edir);
+          }
+          if (!projLinks.isEmpty()) {
+            config.add(Option.PROJECTIONLAYERS, pdir);
           }
         }
       }
@@ -253,17 +965,27 @@ public enum MaxentService {
       case MODEL:
         builder = new ResultBuilder(run.getOption(Option.OUTPUTDIRECTORY));
         String replicates = run.getOption(Option.REPLICATES);
+        int runCount = replicates == null ? 1 : Integer.parseInt(replicates);
         if (replicates != null) {
-          int runCount = Integer.parseInt(replicates);
           builder.runCount(runCount);
         }
+        if (runCount > 1 && dispatchReplicates(actualRun, dir, runCount)) {
+          break;
+        }
+        if (runCount == 1 && run.getOption(Option.JACKKNIFE) != null) {
+          JackknifeResults jackknife = dispatchJackknife(run, dir);
+          if (jackknife != null) {
+            builder.jackknife(jackknife);
+            break;
+          }
+        }
         String[] argv = actualRun.asArgv();
         String sa = "";
         for (String s : argv) {
           sa += " " + s;
         }
         log.info(sa);
-        MaxEnt.main(argv);
+        runMaxent(argv, new File(dir, CONSOLE_FILENAME));
         break;
       case BACKGROUND_SWD:
         builder = new ResultBuilder();
@@ -274,15 +996,23 @@ public enum MaxentService {
         builder.samplesWithData(dispatchSwd(actualRun));
         break;
       case PROJECTION:
+        builder = new ResultBuilder(run.getOption(Option.OUTPUTDIRECTORY));
+        dispatchProjection(run, dir);
         break;
       }
+      if (dir != null && (actualRun.getType() == RunType.MODEL
+          || actualRun.getType() == RunType.PROJECTION)) {
+        String replicates = run.getOption(Option.REPLICATES);
+        ResultManifest.scan(new File(dir), replicates == null ? 1 : Integer
+            .parseInt(replicates)).write(new File(dir));
+      }
       return builder.build();
     } catch (Exception e) {
       throw new MaxEntException(e);
     }
   }
   private static SamplesWithData dispatchBackgroundSwd(MaxentRun run)
-      throws MaxEntException, IOException {
+      throws MaxEntException {
     String value = run.getOption(Option.BACKGROUNDPOINTS);
     int n;
     try {
@@ -291,94 +1021,114 @@ public enum MaxentService {
       throw new MaxEntException(String.format("%s invalid: %s - %s",
           Option.BACKGROUNDPOINTS, value, e), e);
     }
-    // Configures background SWD run:
-    RunConfig options = new RunConfig(RunType.BACKGROUND_SWD);
-    String[] argv = backgroundSwdArgv(options, n, run.getEnvironmentLayers());
-    // Redirects standard output to SWD file:
-    File swdout = File.createTempFile("background-swd", ".csv");
-    FileOutputStream fos = new FileOutputStream(swdout);
-    PrintStream ps = new PrintStream(fos);
-    System.setOut(ps);
-    // Dispatches to MaxEnt to get SWD:
-    RandomSample.main(argv);
-    System.setOut(System.out);
-    // Loads data from background SWD file that MaxEnt just created:
-    final Map<String, Layer> layerNames = new HashMap<String, Layer>();
-    for (Layer l : run.getEnvironmentLayers()) {
-      layerNames.put(l.getFilename(), l);
-    }
-    return SamplesWithData.fromCsv(swdout.getPath(), new LayerProvider() {
-      public Layer getLayerByFilename(String filename) {
-        return layerNames.get(filename);
-      }
-    });
+    // Like MaxEnt, draws are repeatable unless a random seed is requested:
+    Random random = run.getOption(Option.RANDOMSEED) != null ? new Random()
+        : new Random(0);
+    return BackgroundSampler.newInstance(run.getEnvironmentLayers()).sample(n,
+        random);
   }
 
-  private static SamplesWithData dispatchSwd(MaxentRun run) throws Exception {
-
-    SamplesWithData swd = null;
-    RunConfig options = new RunConfig(RunType.SWD);
-    options.add(Option.SAMPLESFILE, Sample.toCsv(run.getSamples(), true));
-    String[] argv = swdArgv(options, run.getEnvironmentLayers());
-    File swdout = File.createTempFile("swd", ".csv");
-    FileOutputStream fos = new FileOutputStream(swdout);
-    PrintStream ps = new PrintStream(fos);
-    // Redirects standard output to SWD file:
-    System.setOut(ps);
-    // Dispatches to MaxEnt to get SWD:
-    Getval.main(argv);
-    // Restores standard output:
-    System.setOut(System.out);
-    final Map<String, Layer> layerNames = new HashMap<String, Layer>();
-    for (Layer l : run.getEnvironmentLayers()) {
-      layerNames.put(l.getFilename(), l);
-    }
-    // Loads SWD file that MaxEnt just created:
-    swd = SamplesWithData.fromCsv(swdout.getPath(), new LayerProvider() {
-      public Layer getLayerByFilename(String filename) {
-        return layerNames.get(filename);
-      }
-    });
-    return swd;
+  private static SamplesWithData dispatchSwd(MaxentRun run) {
+    // Samples the layer grids directly instead of dispatching to MaxEnt:
+    return SamplesWithData.fromLayers(run.getSamples(), run
+        .getEnvironmentLayers());
   }
 
-  private static String[] swdArgv(RunConfig cb, List<Layer> layers) {
-    String samplesPath = cb.build().getOption(Option.SAMPLESFILE);
-    String[] argv = new String[layers.size() + 1];
-    argv[0] = samplesPath;
-    int count = 1;
-    for (Layer l : layers) {
-      argv[count++] = l.getPath();
+  private static ThreadPoolExecutor newPool(int threads, int queueDepth,
+      RejectionPolicy policy, ThreadFactory factory) {
+    if (factory == null) {
+      factory = newThreadFactory("maxent-run-");
+    }
+    RejectedExecutionHandler handler;
+    switch (policy) {
+    case CALLER_RUNS:
+      handler = new ThreadPoolExecutor.CallerRunsPolicy();
+      break;
+    case DISCARD_OLDEST:
+      handler = new RejectedExecutionHandler() {
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+          if (e.isShutdown()) {
+            throw new RejectedExecutionException("Run pool was shut down");
+          }
+          Runnable oldest = e.getQueue().poll();
+          if (oldest instanceof RunTask) {
+            ((RunTask) oldest).reject();
+          }
+          e.execute(r);
+        }
+      };
+      break;
+    default:
+      handler = new ThreadPoolExecutor.AbortPolicy();
     }
-    return argv;
+    ThreadPoolExecutor p = new ThreadPoolExecutor(threads, threads, 60,
+        TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueDepth),
+        factory, handler);
+    // Lets idle run threads exit so the pool doesn't keep the JVM alive:
+    p.allowCoreThreadTimeOut(true);
+    return p;
   }
 
-  private static String[] swdArgv(String samplesFile, List<Layer> layers) {
-    String[] argv = new String[layers.size() + 1];
-    argv[0] = samplesFile;
-    int count = 1;
-    for (Layer l : layers) {
-      argv[count++] = l.getPath();
-    }
-    return argv;
+  private static ThreadFactory newThreadFactory(final String prefix) {
+    return new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      public Thread newThread(Runnable r) {
+        return new Thread(r, prefix + count.incrementAndGet());
+      }
+    };
   }
 
-  private static String symlinkLayers(String dir, Layer layer)
-      throws IOException {
-    List<Layer> layers = new ArrayList<Layer>();
-    layers.add(layer);
-    return symlinkLayers(dir, layers);
+  /**
+   * Runs MaxEnt in this JVM if no other run is using it, otherwise in a child
+   * JVM, and writes its console output to the console file.
+   */
+  private static void runMaxent(String[] argv, File console)
+      throws IOException, InterruptedException {
+    if (!maxent.tryLock()) {
+      MaxentProcess.run(argv, console);
+      return;
+    }
+    try {
+      // Captures MaxEnt console output without capturing other threads':
+      PrintStream out = new PrintStream(new FileOutputStream(console), true);
+      OutputRouter.redirect(out);
+      try {
+        MaxEnt.main(argv);
+      } finally {
+        OutputRouter.restore();
+        out.close();
+      }
+    } finally {
+      maxent.unlock();
+    }
   }
 
-  private static String symlinkLayers(String dir, List<Layer> layers)
-      throws IOException {
-    new File(dir).mkdir();
-    File d = new File(dir);
-    for (Layer l : layers) {
-      String link = String.format("ln -s %s %s/%s", l.getPath(), d.getPath(), l
-          .getName());
-      Runtime.getRuntime().exec(link);
-    }
-    return d.getPath();
+  /**
+   * Queues the run on the run pool and returns a future for its results.
+   */
+  private static CompletableFuture<MaxentResults> submit(MaxentRun run,
+      SharedLayers shared) {
+    CompletableFuture<MaxentResults> future =
+        new CompletableFuture<MaxentResults>();
+    final RunTask task = new RunTask(run, shared, future);
+    final ThreadPoolExecutor p;
+    synchronized (MaxentService.class) {
+      p = pool;
+    }
+    future.whenComplete(new BiConsumer<MaxentResults, Throwable>() {
+      public void accept(MaxentResults results, Throwable t) {
+        if (t instanceof CancellationException
+            || t instanceof TimeoutException) {
+          task.cancel(p);
+        }
+      }
+    });
+    try {
+      p.execute(task);
+    } catch (RejectedExecutionException e) {
+      future.completeExceptionally(e);
+    }
+    return future;
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2009 University of California at Berkeley
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.berkeley.mvz.amp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * This class routes standard output per thread. Once installed it replaces
+ * <code>System.out</code> with a stream that forwards everything written by a
+ * thread to that thread's sink, or to the original standard output if the
+ * thread has no sink. Sinks aren't inherited, so a pool thread created while
+ * another thread is redirected never writes to that thread's sink. A task that
+ * should write to a sink has to call <code>redirect</code> itself.
+ * 
+ * This lets the MaxEnt dispatch running in this JVM, which writes to
+ * <code>System.out</code>, capture its own output without capturing the output
+ * of other threads. Note: This class is not designed for instantiation.
+ */
+class OutputRouter {
+
+  private static volatile PrintStream console;
+
+  private static final ThreadLocal<PrintStream> sink =
+      new ThreadLocal<PrintStream>();
+
+  private static final PrintStream router = new PrintStream(new OutputStream() {
+    @Override
+    public void flush() throws IOException {
+      current().flush();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      current().write(b, off, len);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      current().write(b);
+    }
+  }, true);
+
+  /**
+   * Routes standard output written by the current thread to the given stream
+   * until <code>restore</code> is called.
+   * 
+   * @param out the stream to route standard output to
+   */
+  static void redirect(PrintStream out) {
+    if (out == null) {
+      throw new NullPointerException("Output stream was null");
+    }
+    install();
+    sink.set(out);
+  }
+
+  /**
+   * Flushes the current thread's sink and routes its standard output back to
+   * the original standard output.
+   */
+  static void restore() {
+    PrintStream out = sink.get();
+    sink.remove();
+    if (out != null) {
+      out.flush();
+    }
+  }
+
+  private static PrintStream current() {
+    PrintStream out = sink.get();
+    return out == null ? console : out;
+  }
+
+  private static synchronized void install() {
+    if (System.out != router) {
+      console = System.out;
+      System.setOut(router);
+    }
+  }
+
+  private OutputRouter() {
+  }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2009 University of California at Berkeley
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.berkeley.mvz.amp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import edu.berkeley.mvz.amp.LambdasModel.OutputFormat;
+
+/**
+ * This class projects a {@link LambdasModel} onto a set of layers and writes
+ * the output grid in ArcInfo ASCII Grid format or in ESRI BIL binary format.
+ * 
+ * The layers are read in tiles of whole rows, each holding about
+ * {@link #TILE_CELLS} cells. Tiles are scored and encoded in parallel on a
+ * fork-join pool and written in order as they complete, with a bounded number
+ * of tiles in flight, so peak memory depends on the tile size and the pool's
+ * parallelism but not on the size of the grid. Note: This class is not
+ * designed for instantiation.
+ */
+class Projector {
+
+  /**
+   * Writes an output grid tile by tile. Tiles are encoded in parallel and
+   * written in order.
+   */
+  abstract static class GridWriter {
+    protected final FileChannel channel;
+    protected final Layer geometry;
+
+    GridWriter(String path, Layer geometry) throws IOException {
+      this.geometry = geometry;
+      channel = new FileOutputStream(path).getChannel();
+    }
+
+    void close() throws IOException {
+      channel.close();
+    }
+
+    /**
+     * Encodes the scores of a tile. This method is called concurrently.
+     */
+    abstract ByteBuffer encode(float[] scores);
+
+    /**
+     * Writes an encoded tile.
+     */
+    void write(ByteBuffer tile) throws IOException {
+      while (tile.hasRemaining()) {
+        channel.write(tile);
+      }
+    }
+  }
+
+  /**
+   * Writes an ArcInfo ASCII Grid.
+   */
+  private static class AsciiGridWriter extends GridWriter {
+
+    AsciiGridWriter(String path, Layer geometry) throws IOException {
+      super(path, geometry);
+      write(ByteBuffer.wrap(String.format("ncols %d\nnrows %d\nxllcorner %s\n"
+          + "yllcorner %s\ncellsize %s\nNODATA_value %d\n", geometry
+          .getNColumns(), geometry.getNRows(), geometry.getSwPoint()
+          .getLongitude(), geometry.getSwPoint().getLatitude(), geometry
+          .getResolution(), NO_DATA).getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Override
+    ByteBuffer encode(float[] scores) {
+      int nCols = geometry.getNColumns();
+      StringBuilder sb = new StringBuilder(scores.length * 8);
+      for (int i = 0; i < scores.length; i++) {
+        float v = scores[i];
+        if (v == NO_DATA) {
+          sb.append(NO_DATA);
+        } else if (v == 0) {
+          sb.append('0');
+        } else {
+          sb.append(v);
+        }
+        sb.append((i + 1) % nCols == 0 ? '\n' : ' ');
+      }
+      return ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+  }
+
+  /**
+   * Writes an ESRI BIL grid of little-endian 32 bit floats and its
+   * <code>.hdr</code> header.
+   */
+  private static class BilGridWriter extends GridWriter {
+
+    BilGridWriter(String path, Layer geometry) throws IOException {
+      super(path, geometry);
+      double res = geometry.getResolution();
+      LatLng sw = geometry.getSwPoint();
+      String header = String.format("BYTEORDER I\nLAYOUT BIL\nNROWS %d\n"
+          + "NCOLS %d\nNBANDS 1\nNBITS 32\nPIXELTYPE FLOAT\nULXMAP %s\n"
+          + "ULYMAP %s\nXDIM %s\nYDIM %s\nNODATA %d\n", geometry.getNRows(),
+          geometry.getNColumns(), sw.getLongitude() + res / 2, sw.getLatitude()
+              + (geometry.getNRows() - 0.5) * res, res, res, NO_DATA);
+      FileOutputStream out = new FileOutputStream(headerPath(path));
+      try {
+        out.write(header.getBytes(StandardCharsets.US_ASCII));
+      } finally {
+        out.close();
+      }
+    }
+
+    @Override
+    ByteBuffer encode(float[] scores) {
+      ByteBuffer tile = ByteBuffer.allocate(scores.length * 4).order(
+          ByteOrder.LITTLE_ENDIAN);
+      tile.asFloatBuffer().put(scores);
+      return tile;
+    }
+  }
+
+  /**
+   * The approximate number of cells in a tile.
+   */
+  static final int TILE_CELLS = 1 << 16;
+
+  /**
+   * The no data value of output grids.
+   */
+  static final int NO_DATA = -9999;
+
+  private static Logger log = Logger.getLogger(Projector.class);
+
+  /**
+   * Returns the path of the header of a BIL grid.
+   * 
+   * @param path the BIL grid path
+   * @return the header path
+   */
+  static String headerPath(String path) {
+    int dot = path.lastIndexOf('.');
+    return (dot > path.lastIndexOf(File.separatorChar) ? path.substring(0, dot)
+        : path) + ".hdr";
+  }
+
+  /**
+   * Returns a writer for the output grid, which is a BIL grid if the path ends
+   * with <code>.bil</code> and an ASCII grid otherwise.
+   * 
+   * @param path the output grid path
+   * @param geometry a layer with the geometry of the output grid
+   * @return the writer
+   * @throws IOException problems creating the grid
+   */
+  static GridWriter newWriter(String path, Layer geometry) throws IOException {
+    return path.endsWith(".bil") ? new BilGridWriter(path, geometry)
+        : new AsciiGridWriter(path, geometry);
+  }
+
+  /**
+   * Projects the model onto the layers and writes the output grid.
+   * 
+   * @param model the model
+   * @param layers a layer for each model variable, in the order of
+   *          <code>getVariables</code>, which share the same geometry
+   * @param format the output format
+   * @param extrapolate false to output 0 wherever clamping occurs
+   * @param path the output grid path, ending with <code>.asc</code> or
+   *          <code>.bil</code>
+   * @throws IOException problems reading the layers or writing the grid
+   */
+  static void project(final LambdasModel model, List<Layer> layers,
+      final OutputFormat format, final boolean extrapolate, String path)
+      throws IOException {
+    if (layers.size() != model.getVariables().size()) {
+      throw new IllegalArgumentException(String.format(
+          "Expected %d layers but got %d", model.getVariables().size(), layers
+              .size()));
+    }
+    long start = System.currentTimeMillis();
+    Layer first = layers.get(0);
+    final Raster[] rasters = new Raster[layers.size()];
+    final float[] noData = new float[layers.size()];
+    for (int i = 0; i < rasters.length; i++) {
+      Layer l = layers.get(i);
+      if (l.getNRows() != first.getNRows()
+          || l.getNColumns() != first.getNColumns()
+          || l.getResolution() != first.getResolution()
+          || !l.getSwPoint().equals(first.getSwPoint())) {
+        throw new IllegalArgumentException(String.format(
+            "Layer %s doesn't have the same geometry as layer %s", l, first));
+      }
+      rasters[i] = l.raster();
+      noData[i] = l.getNoData();
+    }
+
+    int nRows = first.getNRows();
+    int tileRows = tileRows(first.getNColumns());
+    ForkJoinPool pool = ForkJoinPool.commonPool();
+    int window = 2 * pool.getParallelism();
+    Deque<Future<ByteBuffer>> pending = new ArrayDeque<Future<ByteBuffer>>();
+    final GridWriter writer = newWriter(path, first);
+    try {
+      for (int row = 0; row < nRows; row += tileRows) {
+        final int from = row, to = Math.min(nRows, row + tileRows);
+        pending.add(pool.submit(new Callable<ByteBuffer>() {
+          public ByteBuffer call() {
+            return writer.encode(scoreTile(model, rasters, noData, from, to,
+                format, extrapolate));
+          }
+        }));
+        if (pending.size() >= window) {
+          writer.write(take(pending.removeFirst()));
+        }
+      }
+      while (!pending.isEmpty()) {
+        writer.write(take(pending.removeFirst()));
+      }
+    } finally {
+      for (Future<ByteBuffer> f : pending) {
+        f.cancel(true);
+      }
+      writer.close();
+    }
+    log.info(String.format("Projected %s onto %d layers in %f sec", path,
+        layers.size(), (System.currentTimeMillis() - start) / 1000.0));
+  }
+
+  /**
+   * Returns the number of rows in a tile of a grid with the given number of
+   * columns.
+   * 
+   * @param nCols the number of columns
+   * @return the number of rows, at least 1
+   */
+  static int tileRows(int nCols) {
+    return Math.max(1, TILE_CELLS / nCols);
+  }
+
+  /**
+   * Scores the cells of a tile of rows.
+   */
+  private static float[] scoreTile(LambdasModel model, Raster[] rasters,
+      float[] noData, int from, int to, OutputFormat format,
+      boolean extrapolate) {
+    int nCols = rasters[0].getNColumns();
+    double[] x = new double[rasters.length];
+    float[] scores = new float[(to - from) * nCols];
+    int i = 0;
+    for (int row = from; row < to; row++) {
+      for (int col = 0; col < nCols; col++) {
+        boolean missing = false;
+        for (int v = 0; v < rasters.length && !missing; v++) {
+          float value = rasters[v].get(row, col);
+          missing = value == noData[v];
+          x[v] = value;
+        }
+        if (missing) {
+          scores[i++] = NO_DATA;
+        } else if (!extrapolate && model.clamps(x)) {
+          scores[i++] = 0;
+        } else {
+          scores[i++] = (float) model.score(x, format);
+        }
+      }
+    }
+    return scores;
+  }
+
+  private static ByteBuffer take(Future<ByteBuffer> future)
+      throws IOException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted projecting");
+    }
+  }
+
+  private Projector() {
+  }
+}
@@ -0,0 +1,509 @@
+/*
+ * Copyright 2009 University of California at Berkeley
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.berkeley.mvz.amp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A read-only grid of float values backed by a memory-mapped binary file. A
+ * raster is created once from the body of an ArcInfo ASCII Grid file, which is
+ * parsed in parallel, after which reading a cell value is a single buffer
+ * index. Rasters can be cached next to their grid file in a compact binary
+ * form, so that later loads of the grid map the cache without parsing.
+ * 
+ * Rows are mapped in segments so that grids larger than a single mapped buffer
+ * (2 GB) are supported. This class is immutable and thread-safe.
+ */
+class Raster {
+
+  /**
+   * Maximum number of bytes mapped by a single segment.
+   */
+  private static final long SEGMENT_BYTES = 1L << 30;
+
+  /**
+   * The suffix appended to the path of an ASCII grid file to name its cache.
+   */
+  static final String CACHE_SUFFIX = ".raster";
+
+  /**
+   * The size of a cache file header: a magic number, the number of rows and
+   * columns, the no data value, the size and modification time of the grid
+   * file, and the number of bytes per value.
+   */
+  private static final int CACHE_HEADER_BYTES = 64;
+
+  private static final int CACHE_MAGIC = 0x52535431;
+
+  /**
+   * Approximate number of bytes of an ASCII grid body parsed by a task.
+   */
+  static final int CHUNK_BYTES = 1 << 21;
+
+  /**
+   * Number of bytes read past the end of a chunk to finish its last token,
+   * which is doubled until the token ends.
+   */
+  private static final int TOKEN_BYTES = 64;
+
+  private static Logger log = Logger.getLogger(Raster.class);
+
+  /**
+   * Converts the body of an ArcInfo ASCII Grid file into a binary raster and
+   * returns it. Header lines are skipped. Missing trailing values are filled
+   * with the no data value.
+   * 
+   * The body is split into chunks of about {@link #CHUNK_BYTES} bytes at
+   * whitespace. Chunks are read from the file channel and parsed from bytes in
+   * parallel on a fork-join pool, and written to the raster in order with a
+   * bounded number of chunks in flight. The raster is written to a temporary
+   * file that is deleted once it's mapped.
+   * 
+   * @param path path to the ASCII grid file
+   * @param nRows number of rows declared by the header
+   * @param nCols number of columns declared by the header
+   * @param noData no data value declared by the header
+   * @return the raster
+   * @throws IOException problems reading the grid or writing the raster
+   */
+  static Raster fromAsciiGrid(String path, int nRows, int nCols, float noData)
+      throws IOException {
+    long start = System.currentTimeMillis();
+    File file = File.createTempFile("raster", ".flt");
+    file.deleteOnExit();
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    final FileInputStream in = new FileInputStream(path);
+    try {
+      FileChannel channel = raf.getChannel();
+      final FileChannel source = in.getChannel();
+      final long size = source.size();
+      final long body = bodyStart(source, size);
+      ForkJoinPool pool = ForkJoinPool.commonPool();
+      int window = 2 * pool.getParallelism();
+      Deque<Future<ByteBuffer>> pending = new ArrayDeque<Future<ByteBuffer>>();
+      long remaining = (long) nRows * nCols * 4;
+      try {
+        for (long c = body; c < size && remaining > 0; c += CHUNK_BYTES) {
+          final long from = c, to = Math.min(size, c + CHUNK_BYTES);
+          pending.add(pool.submit(new Callable<ByteBuffer>() {
+            public ByteBuffer call() throws IOException {
+              return parseChunk(source, size, body, from, to);
+            }
+          }));
+          if (pending.size() >= window) {
+            remaining = write(channel, take(pending.removeFirst()), remaining);
+          }
+        }
+        while (!pending.isEmpty() && remaining > 0) {
+          remaining = write(channel, take(pending.removeFirst()), remaining);
+        }
+      } finally {
+        for (Future<ByteBuffer> f : pending) {
+          f.cancel(true);
+        }
+      }
+      if (remaining > 0) {
+        log.warn(String.format("%s: expected %d values but read %d", path,
+            (long) nRows * nCols, (long) nRows * nCols - remaining / 4));
+        ByteBuffer fill = ByteBuffer.allocate(nCols * 4).order(
+            ByteOrder.LITTLE_ENDIAN);
+        while (fill.hasRemaining()) {
+          fill.putFloat(noData);
+        }
+        while (remaining > 0) {
+          fill.clear();
+          remaining = write(channel, fill, remaining);
+        }
+      }
+      Raster raster = new Raster(channel, 0, 4, nRows, nCols, noData);
+      log.info(String.format("Converted %s in %f sec", path, (System
+          .currentTimeMillis() - start) / 1000.0));
+      return raster;
+    } finally {
+      in.close();
+      raf.close();
+      // Mapped values outlive the file where the platform allows it:
+      file.delete();
+    }
+  }
+
+  /**
+   * Returns the offset of the first line of the body, which is the first
+   * line that doesn't start with a letter.
+   */
+  private static long bodyStart(FileChannel channel, long size)
+      throws IOException {
+    long offset = 0;
+    while (offset < size) {
+      byte[] b = read(channel, offset, (int) Math.min(size - offset, 4096));
+      int i = 0;
+      while (i < b.length && b[i] <= ' ') {
+        i++;
+      }
+      if (i == b.length) {
+        offset += b.length;
+        continue;
+      }
+      if (!Character.isLetter(b[i])) {
+        return offset;
+      }
+      while (i < b.length && b[i] != '\n') {
+        i++;
+      }
+      if (i == b.length && offset + i < size) {
+        throw new IOException("Header line longer than 4096 bytes");
+      }
+      offset += i + 1;
+    }
+    return size;
+  }
+
+  /**
+   * Parses the values that start between from (inclusive) and to (exclusive)
+   * into a buffer of little-endian floats. The byte before the chunk is read
+   * too, to tell whether its first token belongs to the previous chunk, and
+   * bytes after it until its last token ends.
+   */
+  private static ByteBuffer parseChunk(FileChannel channel, long size,
+      long body, long from, long to) throws IOException {
+    long first = Math.max(body, from - 1);
+    int extra = TOKEN_BYTES;
+    byte[] b;
+    while (true) {
+      b = read(channel, first, (int) (Math.min(size, to + extra) - first));
+      if (first + b.length == size || b[b.length - 1] <= ' ') {
+        break;
+      }
+      extra *= 2;
+    }
+    int begin = (int) (from - first), end = (int) (to - first);
+    if (begin > 0 && b[begin - 1] > ' ') {
+      // Skips the token that started in the previous chunk:
+      while (begin < end && b[begin] > ' ') {
+        begin++;
+      }
+    }
+    int count = 0;
+    for (int i = begin; i < end; i++) {
+      if (b[i] > ' ' && (i == begin || b[i - 1] <= ' ')) {
+        count++;
+      }
+    }
+    ByteBuffer values = ByteBuffer.allocate(count * 4).order(
+        ByteOrder.LITTLE_ENDIAN);
+    int i = begin;
+    while (i < end) {
+      while (i < end && b[i] <= ' ') {
+        i++;
+      }
+      if (i == end) {
+        break;
+      }
+      int j = i;
+      while (j < b.length && b[j] > ' ') {
+        j++;
+      }
+      try {
+        values.putFloat(AsciiNumbers.parseFloat(b, i, j));
+      } catch (NumberFormatException e) {
+        throw new IOException(String.format("Bad value at offset %d: %s",
+            first + i, e.getMessage()), e);
+      }
+      i = j;
+    }
+    values.flip();
+    return values;
+  }
+
+  private static byte[] read(FileChannel channel, long offset, int length)
+      throws IOException {
+    byte[] b = new byte[length];
+    ByteBuffer buffer = ByteBuffer.wrap(b);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, offset + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of file");
+      }
+    }
+    return b;
+  }
+
+  private static ByteBuffer take(Future<ByteBuffer> future)
+      throws IOException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted converting grid");
+    }
+  }
+
+  /**
+   * Writes at most the remaining number of bytes of the buffer to the channel,
+   * and returns the number of bytes still remaining.
+   */
+  private static long write(FileChannel channel, ByteBuffer values,
+      long remaining) throws IOException {
+    if (values.remaining() > remaining) {
+      values.limit(values.position() + (int) remaining);
+    }
+    remaining -= values.remaining();
+    while (values.hasRemaining()) {
+      channel.write(values);
+    }
+    return remaining;
+  }
+
+  /**
+   * Returns the raster of an ArcInfo ASCII Grid file from its sidecar cache,
+   * which is the file's path with {@link #CACHE_SUFFIX} appended. If the cache
+   * is missing, or was written for a different size or modification time of
+   * the grid file, the grid body is converted and the cache is written.
+   * Cached values are stored as bytes, shorts or floats, whichever is the
+   * smallest type that holds every value exactly.
+   * 
+   * @param path path to the ASCII grid file
+   * @param nRows number of rows declared by the header
+   * @param nCols number of columns declared by the header
+   * @param noData no data value declared by the header
+   * @return the raster
+   * @throws IOException problems reading the grid
+   */
+  static Raster fromCache(String path, int nRows, int nCols, float noData)
+      throws IOException {
+    File source = new File(path);
+    File cache = new File(path + CACHE_SUFFIX);
+    long length = source.length();
+    long lastModified = source.lastModified();
+    if (cache.isFile()) {
+      RandomAccessFile raf = new RandomAccessFile(cache, "r");
+      try {
+        FileChannel channel = raf.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(CACHE_HEADER_BYTES).order(
+            ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining() && channel.read(header) >= 0) {
+        }
+        header.flip();
+        if (header.remaining() == CACHE_HEADER_BYTES
+            && header.getInt() == CACHE_MAGIC && header.getInt() == nRows
+            && header.getInt() == nCols && header.getFloat() == noData
+            && header.getLong() == length
+            && header.getLong() == lastModified) {
+          int bytes = header.getInt();
+          if ((bytes == 1 || bytes == 2 || bytes == 4)
+              && channel.size() == CACHE_HEADER_BYTES + (long) nRows * nCols
+                  * bytes) {
+            log.info("Loaded cached raster " + cache);
+            return new Raster(channel, CACHE_HEADER_BYTES, bytes, nRows,
+                nCols, noData);
+          }
+        }
+      } finally {
+        raf.close();
+      }
+    }
+    Raster raster = fromAsciiGrid(path, nRows, nCols, noData);
+    try {
+      return raster.writeCache(cache, length, lastModified);
+    } catch (IOException e) {
+      log.warn(String.format("Unable to cache raster %s - %s", cache, e));
+      return raster;
+    }
+  }
+
+  /**
+   * Returns the number of bytes needed to store every value exactly: 1 or 2
+   * if the values are integers in the range of a byte or short excluding its
+   * minimum, which encodes no data, and 4 otherwise.
+   */
+  private static int bytesPerValue(Raster raster) {
+    float min = 0, max = 0;
+    for (int row = 0; row < raster.nRows; row++) {
+      for (int col = 0; col < raster.nCols; col++) {
+        float v = raster.get(row, col);
+        if (v == raster.noData) {
+          continue;
+        }
+        if (v != (int) v) {
+          return 4;
+        }
+        min = Math.min(min, v);
+        max = Math.max(max, v);
+      }
+    }
+    if (min > Byte.MIN_VALUE && max <= Byte.MAX_VALUE) {
+      return 1;
+    }
+    return min > Short.MIN_VALUE && max <= Short.MAX_VALUE ? 2 : 4;
+  }
+
+  private final int bytes;
+
+  private final ByteBuffer[] byteSegments;
+
+  private final FloatBuffer[] floatSegments;
+
+  private final int nCols;
+
+  private final float noData;
+
+  private final int nRows;
+
+  private final int segmentRows;
+
+  private final ShortBuffer[] shortSegments;
+
+  private Raster(FileChannel channel, long offset, int bytes, int nRows,
+      int nCols, float noData) throws IOException {
+    this.bytes = bytes;
+    this.nRows = nRows;
+    this.nCols = nCols;
+    this.noData = noData;
+    long rowBytes = (long) nCols * bytes;
+    segmentRows = (int) Math.max(1, Math.min(nRows, SEGMENT_BYTES / rowBytes));
+    int n = (nRows + segmentRows - 1) / segmentRows;
+    byteSegments = new ByteBuffer[bytes == 1 ? n : 0];
+    shortSegments = new ShortBuffer[bytes == 2 ? n : 0];
+    floatSegments = new FloatBuffer[bytes == 4 ? n : 0];
+    for (int i = 0; i < n; i++) {
+      long start = offset + (long) i * segmentRows * rowBytes;
+      long size = Math.min(segmentRows, nRows - i * segmentRows) * rowBytes;
+      MappedByteBuffer mbb = channel.map(MapMode.READ_ONLY, start, size);
+      mbb.order(ByteOrder.LITTLE_ENDIAN);
+      if (bytes == 1) {
+        byteSegments[i] = mbb;
+      } else if (bytes == 2) {
+        shortSegments[i] = mbb.asShortBuffer();
+      } else {
+        floatSegments[i] = mbb.asFloatBuffer();
+      }
+    }
+  }
+
+  /**
+   * Returns the value at the given row and column. Row 0 is the northern most
+   * row and column 0 is the western most column.
+   * 
+   * @param row the row number
+   * @param col the column number
+   * @return the cell value
+   */
+  float get(int row, int col) {
+    int segment = row / segmentRows;
+    int i = (row % segmentRows) * nCols + col;
+    if (bytes == 4) {
+      return floatSegments[segment].get(i);
+    }
+    int v = bytes == 2 ? shortSegments[segment].get(i) : byteSegments[segment]
+        .get(i);
+    return v == (bytes == 2 ? Short.MIN_VALUE : Byte.MIN_VALUE) ? noData : v;
+  }
+
+  /**
+   * @return the number of bytes each value is stored in
+   */
+  int getBytesPerValue() {
+    return bytes;
+  }
+
+  int getNColumns() {
+    return nCols;
+  }
+
+  int getNRows() {
+    return nRows;
+  }
+
+  /**
+   * Writes this raster to a cache file in the smallest type that holds its
+   * values, and returns a raster mapped from the cache. The file is written
+   * next to the cache and renamed, so a partly written cache is never read.
+   */
+  private Raster writeCache(File cache, long length, long lastModified)
+      throws IOException {
+    long start = System.currentTimeMillis();
+    int n = bytesPerValue(this);
+    File tmp = File.createTempFile(cache.getName(), ".tmp", cache
+        .getAbsoluteFile().getParentFile());
+    Raster cached;
+    RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+    try {
+      FileChannel channel = raf.getChannel();
+      ByteBuffer header = ByteBuffer.allocate(CACHE_HEADER_BYTES).order(
+          ByteOrder.LITTLE_ENDIAN);
+      header.putInt(CACHE_MAGIC).putInt(nRows).putInt(nCols).putFloat(noData)
+          .putLong(length).putLong(lastModified).putInt(n);
+      header.clear();
+      write(channel, header, CACHE_HEADER_BYTES);
+      ByteBuffer values = ByteBuffer.allocate(nCols * n).order(
+          ByteOrder.LITTLE_ENDIAN);
+      for (int row = 0; row < nRows; row++) {
+        values.clear();
+        for (int col = 0; col < nCols; col++) {
+          float v = get(row, col);
+          if (n == 4) {
+            values.putFloat(v);
+          } else if (n == 2) {
+            values.putShort(v == noData ? Short.MIN_VALUE : (short) v);
+          } else {
+            values.put(v == noData ? Byte.MIN_VALUE : (byte) v);
+          }
+        }
+        values.flip();
+        write(channel, values, values.remaining());
+      }
+      cached = new Raster(channel, CACHE_HEADER_BYTES, n, nRows, nCols,
+          noData);
+    } finally {
+      raf.close();
+    }
+    try {
+      Files.move(tmp.toPath(), cache.toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      tmp.delete();
+      throw e;
+    }
+    log.info(String.format("Cached raster %s with %d byte values in %f sec",
+        cache, n, (System.currentTimeMillis() - start) / 1000.0));
+    return cached;
+  }
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright 2009 University of California at Berkeley
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.berkeley.mvz.amp;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class splits the samples of a replicated MaxEnt model run into
+ * independent per-replicate sample files, the way MaxEnt splits them, and
+ * merges the outputs of the replicate runs back into one output directory laid
+ * out the way MaxEnt lays out replicated runs: per-replicate files are
+ * suffixed with the replicate number, <code>maxentResults.csv</code> has a row
+ * per replicate and an average row per species, and output grids are averaged
+ * into <code>_avg.asc</code> grids.
+ * 
+ * Note: This class is not designed for instantiation.
+ */
+class Replicates {
+
+  /**
+   * The name of the directory in the output directory that replicate runs are
+   * written to.
+   */
+  static final String DIRECTORY = "replicates";
+
+  /**
+   * The name of the MaxEnt summary file.
+   */
+  static final String RESULTS_FILENAME = "maxentResults.csv";
+
+  private static Logger log = Logger.getLogger(Replicates.class);
+
+  /**
+   * Merges the outputs of the replicate runs into the output directory. Files
+   * of each replicate are moved into the output directory with the replicate
+   * number appended to the species name.
+   * 
+   * @param dir the output directory
+   * @param replicateDirs the output directories of the replicates, in order
+   * @throws IOException problems reading or writing outputs
+   */
+  static void merge(File dir, List<File> replicateDirs) throws IOException {
+    long start = System.currentTimeMillis();
+    List<String> species = new ArrayList<String>();
+    for (File f : replicateDirs.get(0).listFiles(new FilenameFilter() {
+      public boolean accept(File d, String name) {
+        return name.endsWith(".lambdas");
+      }
+    })) {
+      species.add(f.getName().substring(0, f.getName().length() - 8));
+    }
+    // Matches the longest name first, since one name can prefix another:
+    Collections.sort(species, new Comparator<String>() {
+      public int compare(String a, String b) {
+        return b.length() - a.length();
+      }
+    });
+
+    List<List<String[]>> results = new ArrayList<List<String[]>>();
+    String[] header = null;
+    for (int i = 0; i < replicateDirs.size(); i++) {
+      List<String[]> rows = new ArrayList<String[]>();
+      for (File f : replicateDirs.get(i).listFiles()) {
+        if (!f.isFile() || f.getName().equals(MaxentService.CONSOLE_FILENAME)) {
+          continue;
+        }
+        if (f.getName().equals(RESULTS_FILENAME)) {
+          List<String[]> lines = readCsv(f);
+          header = lines.get(0);
+          rows.addAll(lines.subList(1, lines.size()));
+          continue;
+        }
+        String s = speciesOf(f.getName(), species);
+        if (s != null) {
+          Files.move(f.toPath(), new File(dir, s + "_" + i
+              + f.getName().substring(s.length())).toPath(),
+              StandardCopyOption.REPLACE_EXISTING);
+        }
+      }
+      results.add(rows);
+    }
+    if (header != null) {
+      writeResults(new File(dir, RESULTS_FILENAME), header, results);
+    }
+
+    // Averages every grid that all replicates wrote:
+    for (String s : species) {
+      final String prefix = s + "_0";
+      for (File f : dir.listFiles(new FilenameFilter() {
+        public boolean accept(File d, String name) {
+          return name.endsWith(".asc") && name.startsWith(prefix)
+              && (name.length() == prefix.length() + 4
+                  || name.charAt(prefix.length()) == '_');
+        }
+      })) {
+        String rest = f.getName().substring(prefix.length(),
+            f.getName().length() - 4);
+        List<File> grids = new ArrayList<File>();
+        for (int i = 0; i < replicateDirs.size(); i++) {
+          File g = new File(dir, String.format("%s_%d%s.asc", s, i, rest));
+          if (g.isFile()) {
+            grids.add(g);
+          }
+        }
+        if (grids.size() == replicateDirs.size()) {
+          averageGrids(grids, new File(dir, String.format("%s%s_avg.asc", s,
+              rest)));
+        }
+      }
+    }
+    log.info(String.format("Merged %d replicates in %f sec", replicateDirs
+        .size(), (System.currentTimeMillis() - start) / 1000.0));
+  }
+
+  /**
+   * Splits the samples file into a training and a test samples file for each
+   * replicate, the way MaxEnt splits the samples of replicated runs. By default
+   * each replicate tests on a random subsample of the test percentage of each
+   * species' samples and trains on the rest, so with a test percentage of 0
+   * every replicate trains on all samples and has no test file. When
+   * cross-validating the samples of each species are split into a fold per
+   * replicate, each replicate tests on one fold, and the test percentage is
+   * ignored.
+   * 
+   * @param samplesFile the samples file
+   * @param n the number of replicates
+   * @param testPercent the test percentage
+   * @param crossValidate true to split the samples into folds
+   * @param random the source of randomness
+   * @param dir directory to write the sample files to
+   * @return the training and test file paths of each replicate, with a null
+   *         test file path if a replicate has no test samples, or null if a
+   *         species has too few samples to be split into folds
+   * @throws IOException problems reading or writing samples
+   */
+  static List<String[]> split(String samplesFile, int n, int testPercent,
+      boolean crossValidate, Random random, File dir) throws IOException {
+    String header;
+    Map<String, List<String>> rows = new LinkedHashMap<String, List<String>>();
+    BufferedReader reader = new BufferedReader(new FileReader(samplesFile));
+    try {
+      header = reader.readLine();
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.trim().length() == 0) {
+          continue;
+        }
+        int comma = line.indexOf(',');
+        String s = comma < 0 ? line : line.substring(0, comma);
+        List<String> speciesRows = rows.get(s);
+        if (speciesRows == null) {
+          speciesRows = new ArrayList<String>();
+          rows.put(s, speciesRows);
+        }
+        speciesRows.add(line);
+      }
+    } finally {
+      reader.close();
+    }
+    if (header == null || rows.isEmpty()) {
+      return null;
+    }
+    if (crossValidate) {
+      testPercent = 0;
+      for (List<String> speciesRows : rows.values()) {
+        if (speciesRows.size() < n) {
+          return null;
+        }
+        Collections.shuffle(speciesRows, random);
+      }
+    }
+
+    dir.mkdirs();
+    List<String[]> files = new ArrayList<String[]>();
+    for (int i = 0; i < n; i++) {
+      String[] paths = { new File(dir, "samples_" + i + ".csv").getPath(),
+          crossValidate || testPercent != 0 ? new File(dir, "test_" + i
+              + ".csv").getPath() : null };
+      Writer train = new BufferedWriter(new FileWriter(paths[0]));
+      Writer test = paths[1] == null ? null : new BufferedWriter(
+          new FileWriter(paths[1]));
+      try {
+        train.write(header + "\n");
+        if (test != null) {
+          test.write(header + "\n");
+        }
+        for (List<String> speciesRows : rows.values()) {
+          if (testPercent != 0) {
+            Collections.shuffle(speciesRows, random);
+          }
+          int size = speciesRows.size();
+          int nTest = (int) Math.round(size * testPercent / 100.0);
+          for (int j = 0; j < size; j++) {
+            boolean isTest = crossValidate ? j % n == i : j < nTest;
+            (isTest ? test : train).write(speciesRows.get(j) + "\n");
+          }
+        }
+      } finally {
+        train.close();
+        if (test != null) {
+          test.close();
+        }
+      }
+      files.add(paths);
+    }
+    return files;
+  }
+
+  /**
+   * Writes the average of the grids. A cell is no data if it's no data in any
+   * grid.
+   */
+  private static void averageGrids(List<File> grids, File out)
+      throws IOException {
+    int n = grids.size();
+    BufferedReader[] readers = new BufferedReader[n];
+    Writer writer = null;
+    try {
+      for (int i = 0; i < n; i++) {
+        readers[i] = new BufferedReader(new FileReader(grids.get(i)));
+      }
+      writer = new BufferedWriter(new FileWriter(out));
+      String noData = "-9999";
+      String[] lines = new String[n];
+      while ((lines[0] = readers[0].readLine()) != null) {
+        for (int i = 1; i < n; i++) {
+          lines[i] = readers[i].readLine();
+          if (lines[i] == null) {
+            throw new IOException("Grids differ in size: " + grids);
+          }
+        }
+        String line = lines[0].trim();
+        if (line.length() > 0 && Character.isLetter(line.charAt(0))) {
+          // Copies the header of the first grid:
+          String[] kv = line.split("\\s+");
+          if (kv[0].equalsIgnoreCase("NODATA_value") && kv.length > 1) {
+            noData = kv[1];
+          }
+          writer.write(lines[0]);
+          writer.write('\n');
+          continue;
+        }
+        String[][] values = new String[n][];
+        for (int i = 0; i < n; i++) {
+          values[i] = lines[i].trim().split("\\s+");
+          if (values[i].length != values[0].length) {
+            throw new IOException("Grids differ in size: " + grids);
+          }
+        }
+        double noDataValue = Double.parseDouble(noData);
+        StringBuilder sb = new StringBuilder();
+        for (int c = 0; c < values[0].length; c++) {
+          double sum = 0;
+          boolean missing = false;
+          for (int i = 0; i < n && !missing; i++) {
+            double v = Double.parseDouble(values[i][c]);
+            missing = v == noDataValue;
+            sum += v;
+          }
+          if (c > 0) {
+            sb.append(' ');
+          }
+          if (missing) {
+            sb.append(noData);
+          } else {
+            sb.append((float) (sum / n));
+          }
+        }
+        writer.write(sb.append('\n').toString());
+      }
+    } finally {
+      for (BufferedReader r : readers) {
+        if (r != null) {
+          r.close();
+        }
+      }
+      if (writer != null) {
+        writer.close();
+      }
+    }
+  }
+
+  private static List<String[]> readCsv(File f) throws IOException {
+    List<String[]> lines = new ArrayList<String[]>();
+    BufferedReader reader = new BufferedReader(new FileReader(f));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.length() > 0) {
+          lines.add(line.split(",", -1));
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return lines;
+  }
+
+  /**
+   * Returns the species a replicate output file belongs to, or null.
+   */
+  private static String speciesOf(String filename, List<String> species) {
+    for (String s : species) {
+      if (filename.startsWith(s)
+          && filename.length() > s.length()
+          && (filename.charAt(s.length()) == '.' || filename.charAt(s
+              .length()) == '_')) {
+        return s;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Writes a row per replicate, named after the species and the replicate
+   * number, and an average row per species.
+   */
+  private static void writeResults(File f, String[] header,
+      List<List<String[]>> results) throws IOException {
+    Map<String, List<String[]>> bySpecies =
+        new LinkedHashMap<String, List<String[]>>();
+    Writer writer = new BufferedWriter(new FileWriter(f));
+    try {
+      writer.write(join(header));
+      for (int i = 0; i < results.size(); i++) {
+        for (String[] row : results.get(i)) {
+          List<String[]> rows = bySpecies.get(row[0]);
+          if (rows == null) {
+            rows = new ArrayList<String[]>();
+            bySpecies.put(row[0], rows);
+          }
+          rows.add(row);
+          String[] named = Arrays.copyOf(row, row.length);
+          named[0] = row[0] + "_" + i;
+          writer.write(join(named));
+        }
+      }
+      for (Map.Entry<String, List<String[]>> e : bySpecies.entrySet()) {
+        String[] average = new String[header.length];
+        average[0] = e.getKey() + " (average)";
+        for (int c = 1; c < header.length; c++) {
+          double sum = 0;
+          int count = 0;
+          for (String[] row : e.getValue()) {
+            try {
+              sum += Double.parseDouble(row[c]);
+              count++;
+            } catch (RuntimeException ex) {
+              // Not a number, or a short row:
+            }
+          }
+          average[c] = count == e.getValue().size() ? Double.toString(sum
+              / count) : "";
+        }
+        writer.write(join(average));
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  private static String join(String[] row) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < row.length; i++) {
+      sb.append(i == 0 ? "" : ",").append(row[i]);
+    }
+    return sb.append('\n').toString();
+  }
+
+  private Replicates() {
+  }
+}
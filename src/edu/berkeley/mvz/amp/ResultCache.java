@@ -0,0 +1,540 @@
+/*
+ * Copyright 2009 University of California at Berkeley
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.berkeley.mvz.amp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import edu.berkeley.mvz.amp.Layer.LayerProvider;
+import edu.berkeley.mvz.amp.Layer.ProjectionSpec;
+import edu.berkeley.mvz.amp.MaxentResults.ResultBuilder;
+import edu.berkeley.mvz.amp.MaxentRun.Option;
+
+/**
+ * This class caches {@link MaxentResults} by a fingerprint of the
+ * {@link MaxentRun} that produced them. The fingerprint is a SHA-256 digest of
+ * the run type, the options, the samples, and the checksums of the layer files
+ * and input files the run reads, so a run is only served from the cache when
+ * nothing it depends on has changed. File checksums are remembered by path,
+ * size and modification time, so unchanged files are only read once.
+ * 
+ * Results are kept in memory in a bounded least recently used map, and
+ * optionally in a directory so that they survive restarts. Runs with the
+ * {@link Option#RANDOMSEED} option aren't repeatable and are never cached.
+ * Model results refer to their output directory. The size and modification
+ * time of each file in it are recorded when the results are cached, and the
+ * results are only served while every recorded file is unchanged, so deleted
+ * or overwritten outputs are never served.
+ * 
+ * This class is thread safe.
+ */
+public class ResultCache {
+
+  /**
+   * Cached results and the state of their output files.
+   */
+  private static class CachedResults {
+    final Map<String, String> outputs;
+    final MaxentResults results;
+
+    CachedResults(MaxentResults results, Map<String, String> outputs) {
+      this.results = results;
+      this.outputs = outputs;
+    }
+  }
+
+  /**
+   * A file checksum and the file state it was computed for.
+   */
+  private static class Checksum {
+    final byte[] digest;
+    final long lastModified;
+    final long length;
+
+    Checksum(byte[] digest, long length, long lastModified) {
+      this.digest = digest;
+      this.length = length;
+      this.lastModified = lastModified;
+    }
+  }
+
+  private static final String OUTPUT_PREFIX = "output.";
+
+  private static final String PROPERTIES_SUFFIX = ".properties";
+
+  private static final String SWD_SUFFIX = ".swdb";
+
+  /**
+   * Options whose values are input files or directories of input files, which
+   * are fingerprinted by content.
+   */
+  private static final EnumSet<Option> INPUT_OPTIONS = EnumSet.of(
+      Option.ENVIRONMENTALLAYERS, Option.PROJECTIONLAYERS, Option.SAMPLESFILE,
+      Option.TESTSAMPLESFILE);
+
+  private static final Map<String, Checksum> checksums =
+      new ConcurrentHashMap<String, Checksum>();
+
+  private static Logger log = Logger.getLogger(ResultCache.class);
+
+  /**
+   * Returns a new in-memory cache.
+   * 
+   * @param maxEntries maximum number of results kept in memory
+   * @return the cache
+   */
+  public static ResultCache newInstance(int maxEntries) {
+    return newInstance(maxEntries, 0, null);
+  }
+
+  /**
+   * Returns a new cache that also keeps results in a directory.
+   * 
+   * @param maxEntries maximum number of results kept in memory
+   * @param maxDiskEntries maximum number of results kept in the directory
+   * @param directory the cache directory, or null for an in-memory cache
+   * @return the cache
+   */
+  public static ResultCache newInstance(int maxEntries, int maxDiskEntries,
+      String directory) {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("Max entries must be positive");
+    }
+    if (directory != null && maxDiskEntries < 1) {
+      throw new IllegalArgumentException("Max disk entries must be positive");
+    }
+    return new ResultCache(maxEntries, maxDiskEntries, directory);
+  }
+
+  /**
+   * Returns the SHA-256 checksum of a file's contents. Checksums are
+   * remembered until the file's size or modification time changes.
+   */
+  static byte[] checksum(File file) throws IOException {
+    String key = file.getAbsolutePath();
+    long length = file.length();
+    long lastModified = file.lastModified();
+    Checksum c = checksums.get(key);
+    if (c != null && c.length == length && c.lastModified == lastModified) {
+      return c.digest;
+    }
+    MessageDigest md = newDigest();
+    FileInputStream in = new FileInputStream(file);
+    try {
+      FileChannel channel = in.getChannel();
+      ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+      while (channel.read(buffer) >= 0) {
+        buffer.flip();
+        md.update(buffer);
+        buffer.clear();
+      }
+    } finally {
+      in.close();
+    }
+    byte[] digest = md.digest();
+    checksums.put(key, new Checksum(digest, length, lastModified));
+    return digest;
+  }
+
+  /**
+   * Returns the fingerprint of a run, or null if the run can't be cached.
+   * 
+   * @param run the run
+   * @return hex encoded fingerprint or null
+   */
+  public static String fingerprint(MaxentRun run) {
+    if (run.getOption(Option.RANDOMSEED) != null) {
+      return null;
+    }
+    try {
+      MessageDigest md = newDigest();
+      update(md, run.getType().name());
+      Map<Option, String> options = new TreeMap<Option, String>(run
+          .getOptions());
+      update(md, options.size());
+      for (Map.Entry<Option, String> o : options.entrySet()) {
+        update(md, o.getKey().name());
+        update(md, o.getValue());
+        if (INPUT_OPTIONS.contains(o.getKey())) {
+          updateFile(md, new File(o.getValue()));
+        }
+      }
+      update(md, run.getLambdasFile());
+      if (run.getLambdasFile() != null) {
+        updateFile(md, new File(run.getLambdasFile()));
+      }
+      update(md, run.getSamples().size());
+      for (Sample s : run.getSamples()) {
+        update(md, s.getName());
+        update(md, s.getYear());
+        update(md, Double.doubleToLongBits(s.getPoint().getLatitude()));
+        update(md, Double.doubleToLongBits(s.getPoint().getLongitude()));
+      }
+      updateLayers(md, run.getEnvironmentLayers());
+      updateLayers(md, run.getBackgroundLayers());
+      updateLayers(md, run.getProjectionLayers());
+      update(md, run.getProjectionSpecs().size());
+      for (ProjectionSpec spec : run.getProjectionSpecs()) {
+        update(md, spec.getLayerName());
+        updateLayer(md, spec.getEnvrionmentalLayer());
+        updateLayer(md, spec.getProjectionLayer());
+      }
+      return toHex(md.digest());
+    } catch (IOException e) {
+      log.warn("Run can't be fingerprinted: " + run, e);
+      return null;
+    }
+  }
+
+  /**
+   * Returns the size and modification time of each file in an output
+   * directory by file name, or null if there is no output directory.
+   */
+  private static Map<String, String> outputs(String directory) {
+    if (directory == null) {
+      return null;
+    }
+    Map<String, String> outputs = new TreeMap<String, String>();
+    File[] files = new File(directory).listFiles();
+    if (files != null) {
+      for (File f : files) {
+        if (f.isFile()) {
+          outputs.put(f.getName(), f.length() + "\t" + f.lastModified());
+        }
+      }
+    }
+    return outputs;
+  }
+
+  static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Returns the bytes as a lower case hex string.
+   */
+  static String toHex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(
+          Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
+
+  private static void update(MessageDigest md, String s) {
+    byte[] b = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+    update(md, b.length);
+    md.update(b);
+  }
+
+  private static void update(MessageDigest md, long n) {
+    for (int i = 56; i >= 0; i -= 8) {
+      md.update((byte) (n >>> i));
+    }
+  }
+
+  private static void updateFile(MessageDigest md, File f) throws IOException {
+    if (f.isDirectory()) {
+      File[] files = f.listFiles();
+      Arrays.sort(files);
+      update(md, files.length);
+      for (File child : files) {
+        update(md, child.getName());
+        if (child.isFile()) {
+          md.update(checksum(child));
+        }
+      }
+    } else if (f.isFile()) {
+      md.update(checksum(f));
+    }
+  }
+
+  private static void updateLayer(MessageDigest md, Layer l)
+      throws IOException {
+    if (l == null) {
+      update(md, -1);
+      return;
+    }
+    update(md, l.getType().name());
+    update(md, l.getName());
+    update(md, l.getYear());
+    update(md, l.getPath());
+    md.update(checksum(new File(l.getPath())));
+  }
+
+  private static void updateLayers(MessageDigest md, List<Layer> layers)
+      throws IOException {
+    update(md, layers.size());
+    for (Layer l : layers) {
+      updateLayer(md, l);
+    }
+  }
+
+  private final String directory;
+
+  private final int maxDiskEntries;
+
+  private final LinkedHashMap<String, CachedResults> memory;
+
+  private ResultCache(final int maxEntries, int maxDiskEntries,
+      String directory) {
+    this.maxDiskEntries = maxDiskEntries;
+    this.directory = directory;
+    if (directory != null) {
+      new File(directory).mkdirs();
+    }
+    memory = new LinkedHashMap<String, CachedResults>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedResults> e) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Returns the cached results for a run fingerprint, or null if there aren't
+   * any.
+   * 
+   * @param key the run fingerprint
+   * @param run the run, which provides the layers of cached samples with data
+   * @return the results or null
+   */
+  public MaxentResults get(String key, MaxentRun run) {
+    CachedResults cached;
+    synchronized (memory) {
+      cached = memory.get(key);
+    }
+    if (cached != null && !isValid(cached.results.getDirectory(),
+        cached.outputs)) {
+      synchronized (memory) {
+        memory.remove(key);
+      }
+      cached = null;
+    }
+    if (cached == null && directory != null) {
+      cached = load(key, run);
+      if (cached != null) {
+        synchronized (memory) {
+          memory.put(key, cached);
+        }
+      }
+    }
+    return cached == null ? null : cached.results;
+  }
+
+  /**
+   * Caches the results for a run fingerprint.
+   * 
+   * @param key the run fingerprint
+   * @param results the results
+   */
+  public void put(String key, MaxentResults results) {
+    CachedResults cached = new CachedResults(results, outputs(results
+        .getDirectory()));
+    synchronized (memory) {
+      memory.put(key, cached);
+    }
+    if (directory != null) {
+      try {
+        store(key, cached);
+      } catch (IOException e) {
+        log.warn("Results couldn't be cached on disk: " + key, e);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of results cached in memory.
+   * 
+   * @return number of results
+   */
+  public int size() {
+    synchronized (memory) {
+      return memory.size();
+    }
+  }
+
+  /**
+   * Removes the least recently used results from the directory until there
+   * are at most <code>maxDiskEntries</code>.
+   */
+  private void evict() {
+    File[] files = new File(directory).listFiles();
+    if (files == null) {
+      return;
+    }
+    TreeMap<Long, File> entries = new TreeMap<Long, File>();
+    long tiebreak = 0;
+    for (File f : files) {
+      if (f.getName().endsWith(PROPERTIES_SUFFIX)) {
+        entries.put((f.lastModified() << 16) + (tiebreak++ & 0xffff), f);
+      }
+    }
+    while (entries.size() > maxDiskEntries) {
+      File f = entries.remove(entries.firstKey());
+      String key = f.getName().substring(0,
+          f.getName().length() - PROPERTIES_SUFFIX.length());
+      f.delete();
+      new File(directory, key + SWD_SUFFIX).delete();
+    }
+  }
+
+  /**
+   * Returns true if there is no output directory, or if output files were
+   * recorded and every one of them is unchanged.
+   */
+  private static boolean isValid(String directory, Map<String, String> outputs) {
+    if (directory == null) {
+      return true;
+    }
+    File dir = new File(directory);
+    if (outputs == null || outputs.isEmpty() || !dir.isDirectory()) {
+      return false;
+    }
+    for (Map.Entry<String, String> e : outputs.entrySet()) {
+      File f = new File(dir, e.getKey());
+      if (!f.isFile()
+          || !e.getValue().equals(f.length() + "\t" + f.lastModified())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private CachedResults load(String key, final MaxentRun run) {
+    File file = new File(directory, key + PROPERTIES_SUFFIX);
+    if (!file.isFile()) {
+      return null;
+    }
+    try {
+      Properties p = new Properties();
+      InputStream in = new FileInputStream(file);
+      try {
+        p.load(in);
+      } finally {
+        in.close();
+      }
+      String dir = p.getProperty("directory");
+      Map<String, String> outputs = null;
+      if (dir != null) {
+        outputs = new TreeMap<String, String>();
+        for (String name : p.stringPropertyNames()) {
+          if (name.startsWith(OUTPUT_PREFIX)) {
+            outputs.put(name.substring(OUTPUT_PREFIX.length()), p
+                .getProperty(name));
+          }
+        }
+      }
+      if (!isValid(dir, outputs)) {
+        return null;
+      }
+      ResultBuilder builder = dir == null ? new ResultBuilder()
+          : new ResultBuilder(dir);
+      int runCount = Integer.parseInt(p.getProperty("runCount", "0"));
+      if (runCount > 0) {
+        builder.runCount(runCount);
+      }
+      if (p.getProperty("jackknife") != null) {
+        builder.jackknife(JackknifeResults.read(new File(dir,
+            JackknifeResults.DIRECTORY), Arrays.asList(p.getProperty(
+            "jackknife").split("\t"))));
+      }
+      if (p.getProperty("swd") != null) {
+        builder.samplesWithData(SamplesWithData.fromBinary(new File(directory,
+            p.getProperty("swd")).getPath(), new LayerProvider() {
+          public Layer getLayerByFilename(String filename) {
+            for (Layer l : run.getEnvironmentLayers()) {
+              if (l.getFilename().equals(filename)) {
+                return l;
+              }
+            }
+            for (Layer l : run.getBackgroundLayers()) {
+              if (l.getFilename().equals(filename)) {
+                return l;
+              }
+            }
+            return null;
+          }
+        }));
+      }
+      file.setLastModified(System.currentTimeMillis());
+      return new CachedResults(builder.build(), outputs);
+    } catch (Exception e) {
+      log.warn("Cached results couldn't be loaded: " + key, e);
+      return null;
+    }
+  }
+
+  private synchronized void store(String key, CachedResults cached)
+      throws IOException {
+    MaxentResults results = cached.results;
+    Properties p = new Properties();
+    if (results.getDirectory() != null) {
+      p.setProperty("directory", results.getDirectory());
+      for (Map.Entry<String, String> e : cached.outputs.entrySet()) {
+        p.setProperty(OUTPUT_PREFIX + e.getKey(), e.getValue());
+      }
+    }
+    p.setProperty("runCount", Integer.toString(results.getRunCount()));
+    if (results.getJackknifeResults() != null) {
+      StringBuilder variables = new StringBuilder();
+      for (String v : results.getJackknifeResults().getVariables()) {
+        variables.append(variables.length() == 0 ? "" : "\t").append(v);
+      }
+      p.setProperty("jackknife", variables.toString());
+    }
+    if (results.getSamplesWithData() != null) {
+      results.getSamplesWithData().toBinary(
+          new File(directory, key + SWD_SUFFIX).getPath());
+      p.setProperty("swd", key + SWD_SUFFIX);
+    }
+    // Writes the properties last, since they mark a complete entry:
+    OutputStream out = new FileOutputStream(new File(directory, key
+        + PROPERTIES_SUFFIX));
+    try {
+      p.store(out, null);
+    } finally {
+      out.close();
+    }
+    evict();
+  }
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright 2009 University of California at Berkeley
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.berkeley.mvz.amp;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+import au.com.bytecode.opencsv.CSVReader;
+import au.com.bytecode.opencsv.CSVWriter;
+
+/**
+ * This class indexes the files in the output directory of a MaxEnt run by
+ * species and replicate, along with the training and test AUC of each species
+ * and replicate. The index is written to {@link #FILENAME} in the output
+ * directory when the run is dispatched, so that results can be looked up
+ * without listing the directory.
+ * 
+ */
+class ResultManifest {
+
+  /**
+   * An indexed output file.
+   */
+  static class Entry {
+    private final String species;
+    private final int replicate;
+    private final String filename;
+    private final long size;
+    private final double trainingAuc;
+    private final double testAuc;
+
+    Entry(String species, int replicate, String filename, long size,
+        double trainingAuc, double testAuc) {
+      this.species = species;
+      this.replicate = replicate;
+      this.filename = filename;
+      this.size = size;
+      this.trainingAuc = trainingAuc;
+      this.testAuc = testAuc;
+    }
+
+    /**
+     * @return the file name, relative to the output directory
+     */
+    String getFilename() {
+      return filename;
+    }
+
+    /**
+     * @return the replicate number, or -1 if the file isn't a replicate's
+     */
+    int getReplicate() {
+      return replicate;
+    }
+
+    /**
+     * @return the file size in bytes
+     */
+    long getSize() {
+      return size;
+    }
+
+    /**
+     * @return the species name, or null if the file isn't a species'
+     */
+    String getSpecies() {
+      return species;
+    }
+
+    /**
+     * @return the test AUC of the species and replicate, or NaN
+     */
+    double getTestAuc() {
+      return testAuc;
+    }
+
+    /**
+     * @return the training AUC of the species and replicate, or NaN
+     */
+    double getTrainingAuc() {
+      return trainingAuc;
+    }
+  }
+
+  /**
+   * The name of the manifest file in the output directory.
+   */
+  static final String FILENAME = "maxentManifest.csv";
+
+  private static final String[] HEADER = { "Species", "Replicate", "File",
+      "Size", "Training AUC", "Test AUC" };
+
+  private static final Pattern REPLICATE = Pattern.compile("(.+)_(\\d+)");
+
+  private static Logger log = Logger.getLogger(ResultManifest.class);
+
+  /**
+   * Reads the manifest in the output directory.
+   * 
+   * @param dir the output directory
+   * @return the manifest, or null if the directory doesn't have one
+   * @throws IOException problems reading the manifest
+   */
+  static ResultManifest read(File dir) throws IOException {
+    File f = new File(dir, FILENAME);
+    if (!f.isFile()) {
+      return null;
+    }
+    List<Entry> entries = new ArrayList<Entry>();
+    CSVReader reader = new CSVReader(new FileReader(f));
+    try {
+      String[] line = reader.readNext();
+      if (line == null || !Arrays.equals(HEADER, line)) {
+        throw new IOException("Bad manifest header in " + f);
+      }
+      while ((line = reader.readNext()) != null) {
+        if (line.length != HEADER.length) {
+          throw new IOException("Bad manifest line in " + f + ": "
+              + Arrays.toString(line));
+        }
+        try {
+          entries.add(new Entry(line[0].length() == 0 ? null : line[0],
+              line[1].length() == 0 ? -1 : Integer.parseInt(line[1]), line[2],
+              Long.parseLong(line[3]), parseDouble(line[4]),
+              parseDouble(line[5])));
+        } catch (NumberFormatException e) {
+          throw new IOException("Bad manifest line in " + f + ": "
+              + Arrays.toString(line), e);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return new ResultManifest(entries);
+  }
+
+  /**
+   * Indexes the files in the output directory. Species are named after the
+   * lambdas files in the directory, and if the run had more than one
+   * replicate, a lambdas file named species_i is replicate i of the species.
+   * Each file belongs to the species and replicate whose name is its longest
+   * prefix.
+   * 
+   * @param dir the output directory
+   * @param runCount the number of replicates of the run
+   * @return the manifest
+   * @throws IOException problems reading maxentResults.csv
+   */
+  static ResultManifest scan(File dir, int runCount) throws IOException {
+    long start = System.currentTimeMillis();
+    File[] files = dir.listFiles();
+    if (files == null) {
+      throw new IOException("Can't list " + dir);
+    }
+    // Maps result names, like species or species_i, to species and replicate:
+    Map<String, Object[]> names = new HashMap<String, Object[]>();
+    for (File f : files) {
+      String name = f.getName();
+      if (!f.isFile() || !name.endsWith(".lambdas")) {
+        continue;
+      }
+      name = name.substring(0, name.length() - 8);
+      Matcher m = REPLICATE.matcher(name);
+      if (runCount > 1 && m.matches()
+          && Integer.parseInt(m.group(2)) < runCount) {
+        names.put(name, new Object[] { m.group(1),
+            Integer.parseInt(m.group(2)) });
+        names.put(m.group(1), new Object[] { m.group(1), -1 });
+      } else {
+        names.put(name, new Object[] { name, -1 });
+      }
+    }
+    List<String> prefixes = new ArrayList<String>(names.keySet());
+    // Matches the longest name first, since one name can prefix another:
+    Collections.sort(prefixes, new Comparator<String>() {
+      public int compare(String a, String b) {
+        return b.length() - a.length();
+      }
+    });
+    Map<String, double[]> aucs = readAucs(new File(dir,
+        Replicates.RESULTS_FILENAME), names);
+
+    List<Entry> entries = new ArrayList<Entry>();
+    for (File f : files) {
+      String name = f.getName();
+      if (!f.isFile() || name.equals(FILENAME)) {
+        continue;
+      }
+      Object[] owner = null;
+      for (String p : prefixes) {
+        if (name.startsWith(p) && name.length() > p.length()
+            && (name.charAt(p.length()) == '.'
+                || name.charAt(p.length()) == '_')) {
+          owner = names.get(p);
+          break;
+        }
+      }
+      if (owner == null) {
+        entries.add(new Entry(null, -1, name, f.length(), Double.NaN,
+            Double.NaN));
+      } else {
+        double[] auc = aucs.get(owner[0] + "\t" + owner[1]);
+        entries.add(new Entry((String) owner[0], (Integer) owner[1], name, f
+            .length(), auc == null ? Double.NaN : auc[0], auc == null
+            ? Double.NaN : auc[1]));
+      }
+    }
+    log.info(String.format("Indexed %d files in %f sec", entries.size(),
+        (System.currentTimeMillis() - start) / 1000.0));
+    return new ResultManifest(entries);
+  }
+
+  private static String format(double v) {
+    return Double.isNaN(v) ? "" : Double.toString(v);
+  }
+
+  private static double parseDouble(String s) {
+    return s.length() == 0 ? Double.NaN : Double.parseDouble(s);
+  }
+
+  /**
+   * Reads the training and test AUC of each species and replicate from
+   * maxentResults.csv, keyed by species and replicate number.
+   */
+  private static Map<String, double[]> readAucs(File f,
+      Map<String, Object[]> names) throws IOException {
+    Map<String, double[]> aucs = new HashMap<String, double[]>();
+    if (!f.isFile()) {
+      return aucs;
+    }
+    CSVReader reader = new CSVReader(new FileReader(f));
+    try {
+      String[] line = reader.readNext();
+      if (line == null) {
+        return aucs;
+      }
+      List<String> header = new ArrayList<String>();
+      for (String column : line) {
+        header.add(column.trim());
+      }
+      int training = header.indexOf("Training AUC");
+      int test = header.indexOf("Test AUC");
+      while ((line = reader.readNext()) != null) {
+        String name = line[0];
+        if (name.endsWith(" (average)")) {
+          name = name.substring(0, name.length() - 10);
+        }
+        Object[] owner = names.get(name);
+        if (owner != null) {
+          aucs.put(owner[0] + "\t" + owner[1], new double[] {
+              cell(line, training), cell(line, test) });
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return aucs;
+  }
+
+  private static double cell(String[] line, int column) {
+    if (column < 0 || column >= line.length) {
+      return Double.NaN;
+    }
+    try {
+      return parseDouble(line[column].trim());
+    } catch (NumberFormatException e) {
+      return Double.NaN;
+    }
+  }
+
+  private final List<Entry> entries;
+
+  /**
+   * Entries by species name.
+   */
+  private final Map<String, List<Entry>> bySpecies =
+      new HashMap<String, List<Entry>>();
+
+  /**
+   * Names of the results with a lambdas file, like species or species_i.
+   */
+  private final Set<String> names = new LinkedHashSet<String>();
+
+  private ResultManifest(List<Entry> entries) {
+    this.entries = Collections.unmodifiableList(entries);
+    for (Entry e : entries) {
+      if (e.getSpecies() == null) {
+        continue;
+      }
+      List<Entry> list = bySpecies.get(e.getSpecies());
+      if (list == null) {
+        list = new ArrayList<Entry>();
+        bySpecies.put(e.getSpecies(), list);
+      }
+      list.add(e);
+      if (e.getFilename().endsWith(".lambdas")) {
+        names.add(e.getFilename().substring(0, e.getFilename().length() - 8));
+      }
+    }
+  }
+
+  /**
+   * @return every indexed file
+   */
+  List<Entry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * Returns the files of a species, including those of its replicates.
+   * 
+   * @param species the species name
+   * @return the species' files, which is empty if there are none
+   */
+  List<Entry> getEntries(String species) {
+    List<Entry> list = bySpecies.get(species);
+    return list == null ? Collections.<Entry> emptyList() : Collections
+        .unmodifiableList(list);
+  }
+
+  /**
+   * Returns the names of the results with a lambdas file, which are species
+   * names or, for replicated runs, species_i.
+   * 
+   * @return result names
+   */
+  Set<String> getNames() {
+    return Collections.unmodifiableSet(names);
+  }
+
+  /**
+   * Writes this manifest to {@link #FILENAME} in the output directory.
+   * 
+   * @param dir the output directory
+   * @throws IOException problems writing the manifest
+   */
+  void write(File dir) throws IOException {
+    CSVWriter writer = new CSVWriter(new FileWriter(new File(dir, FILENAME)),
+        ',');
+    try {
+      writer.writeNext(HEADER);
+      for (Entry e : entries) {
+        writer.writeNext(new String[] {
+            e.getSpecies() == null ? "" : e.getSpecies(),
+            e.getReplicate() < 0 ? "" : Integer.toString(e.getReplicate()),
+            e.getFilename(), Long.toString(e.getSize()),
+            format(e.getTrainingAuc()), format(e.getTestAuc()) });
+      }
+    } finally {
+      writer.close();
+    }
+  }
+}
@@ -0,0 +1,449 @@
+/*
+ * Copyright 2009 University of California at Berkeley
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.berkeley.mvz.amp;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An immutable table of samples stored as parallel arrays of name ids, years,
+ * latitudes and longitudes, with each distinct name stored once. A table
+ * holds millions of samples in a fraction of the memory of a list of
+ * {@link Sample} objects, and can be scanned without following pointers. The
+ * list returned by <code>asList</code> creates samples on demand for code that
+ * works with lists of samples.
+ * 
+ */
+public class SampleTable {
+
+  /**
+   * Decodes and remembers species column values so that a value repeated on
+   * many rows is only decoded once. Each value is given a code, which indexes
+   * its name id and year.
+   */
+  private static class SpeciesDictionary {
+    private int[] codes = new int[64];
+    private int[] hashes = new int[64];
+    private byte[][] raws = new byte[64][];
+    private int size;
+    private int[] nameIds = new int[32];
+    private int[] years = new int[32];
+    private final List<String> names = new ArrayList<String>();
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+    int get(byte[] b, int start, int end) {
+      int hash = 1;
+      for (int i = start; i < end; i++) {
+        hash = 31 * hash + b[i];
+      }
+      int mask = raws.length - 1;
+      int i = hash & mask;
+      byte[] raw;
+      while ((raw = raws[i]) != null) {
+        if (hashes[i] == hash && equals(raw, b, start, end)) {
+          return codes[i];
+        }
+        i = (i + 1) & mask;
+      }
+      int code = decode(new String(b, start, end - start,
+          StandardCharsets.UTF_8));
+      raws[i] = Arrays.copyOfRange(b, start, end);
+      hashes[i] = hash;
+      codes[i] = code;
+      if (++size * 2 > raws.length) {
+        rehash();
+      }
+      return code;
+    }
+
+    /**
+     * Splits a species column value into a name and a year the way
+     * <code>Sample.fromCsv</code> does, and returns its code.
+     */
+    private int decode(String value) {
+      String[] name = value.split("-");
+      int year;
+      try {
+        year = Integer.parseInt(name[1]);
+      } catch (Exception e) {
+        year = Sample.UNKNOWN_YEAR;
+      }
+      if (name.length == 0 || name[0].length() < 1) {
+        throw new IllegalArgumentException(String.format(
+            "A name is required. The value '%s' is invalid.", value));
+      }
+      Integer id = ids.get(name[0]);
+      if (id == null) {
+        id = names.size();
+        ids.put(name[0], id);
+        names.add(name[0]);
+      }
+      if (size == nameIds.length) {
+        nameIds = Arrays.copyOf(nameIds, size * 2);
+        years = Arrays.copyOf(years, size * 2);
+      }
+      nameIds[size] = id;
+      years[size] = year;
+      return size;
+    }
+
+    private static boolean equals(byte[] raw, byte[] b, int start, int end) {
+      if (raw.length != end - start) {
+        return false;
+      }
+      for (int i = 0; i < raw.length; i++) {
+        if (raw[i] != b[start + i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private void rehash() {
+      int[] oldCodes = codes, oldHashes = hashes;
+      byte[][] oldRaws = raws;
+      codes = new int[oldRaws.length * 2];
+      hashes = new int[oldRaws.length * 2];
+      raws = new byte[oldRaws.length * 2][];
+      int mask = raws.length - 1;
+      for (int i = 0; i < oldRaws.length; i++) {
+        if (oldRaws[i] != null) {
+          int j = oldHashes[i] & mask;
+          while (raws[j] != null) {
+            j = (j + 1) & mask;
+          }
+          raws[j] = oldRaws[i];
+          hashes[j] = oldHashes[i];
+          codes[j] = oldCodes[i];
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the rows of a samples CSV into growing arrays.
+   */
+  private static class CsvLoader {
+    private byte[] buf = new byte[1 << 16];
+    private boolean eof;
+    private final InputStream in;
+    private int limit;
+    private final String path;
+    private int pos;
+
+    CsvLoader(InputStream in, String path) {
+      this.in = in;
+      this.path = path;
+    }
+
+    SampleTable load() throws IOException {
+      // Skips the header:
+      int end = nextLine();
+      if (end >= 0) {
+        pos = end + 1;
+      }
+      SpeciesDictionary species = new SpeciesDictionary();
+      int n = 0, lineNumber = 1;
+      int[] codes = new int[1024];
+      double[] lats = new double[1024];
+      double[] lngs = new double[1024];
+      while ((end = nextLine()) >= 0) {
+        lineNumber++;
+        int lineEnd = end > pos && buf[end - 1] == '\r' ? end - 1 : end;
+        if (lineEnd == pos) {
+          pos = end + 1;
+          continue;
+        }
+        if (n == codes.length) {
+          codes = Arrays.copyOf(codes, n * 2);
+          lats = Arrays.copyOf(lats, n * 2);
+          lngs = Arrays.copyOf(lngs, n * 2);
+        }
+        int field = 0;
+        try {
+          for (int start = pos, i = pos; i <= lineEnd && field < 3; i++) {
+            if (i == lineEnd || buf[i] == ',') {
+              int a = start, b = i;
+              if (b - a >= 2 && buf[a] == '"' && buf[b - 1] == '"') {
+                a++;
+                b--;
+              }
+              if (field == 0) {
+                codes[n] = species.get(buf, a, b);
+              } else if (field == 1) {
+                lngs[n] = AsciiNumbers.parseDouble(buf, a, b);
+              } else {
+                lats[n] = AsciiNumbers.parseDouble(buf, a, b);
+              }
+              field++;
+              start = i + 1;
+            }
+          }
+        } catch (IllegalArgumentException e) {
+          throw new IOException(String.format("%s line %d: %s", path,
+              lineNumber, e.getMessage()), e);
+        }
+        if (field < 3) {
+          throw new IOException(String.format(
+              "%s line %d: expected 3 columns but found %d", path, lineNumber,
+              field));
+        }
+        if (!LatLng.isLatitudeValid(lats[n])
+            || !LatLng.isLongitudeValid(lngs[n])) {
+          throw new IOException(String.format(
+              "%s line %d: illegal point %f, %f", path, lineNumber, lats[n],
+              lngs[n]));
+        }
+        n++;
+        pos = end + 1;
+      }
+      int[] nameIds = new int[n];
+      int[] years = new int[n];
+      for (int i = 0; i < n; i++) {
+        nameIds[i] = species.nameIds[codes[i]];
+        years[i] = species.years[codes[i]];
+      }
+      return new SampleTable(species.names, nameIds, years, Arrays.copyOf(
+          lats, n), Arrays.copyOf(lngs, n));
+    }
+
+    /**
+     * Returns the end of the next line, which starts at <code>pos</code>,
+     * reading more of the file as needed, or -1 at the end of the file.
+     */
+    private int nextLine() throws IOException {
+      int scan = pos;
+      while (true) {
+        for (; scan < limit; scan++) {
+          if (buf[scan] == '\n') {
+            return scan;
+          }
+        }
+        if (eof) {
+          return pos < limit ? limit : -1;
+        }
+        // Moves the partial line to the front, growing the buffer if the line
+        // fills it:
+        int partial = limit - pos;
+        if (partial == buf.length) {
+          buf = Arrays.copyOf(buf, buf.length * 2);
+        } else {
+          System.arraycopy(buf, pos, buf, 0, partial);
+        }
+        scan -= pos;
+        pos = 0;
+        limit = partial;
+        int n = in.read(buf, limit, buf.length - limit);
+        if (n < 0) {
+          eof = true;
+        } else {
+          limit += n;
+        }
+      }
+    }
+  }
+
+  private static Logger log = Logger.getLogger(SampleTable.class);
+
+  /**
+   * Loads samples from a MaxEnt samples CSV, in the format read by
+   * <code>Sample.fromCsv</code>, and returns them in a table. The file is
+   * parsed from bytes, and each distinct species column value is decoded
+   * once.
+   * 
+   * @param path path to samples CSV file
+   * @return the sample table
+   * @throws IOException problems reading path or a malformed row
+   */
+  public static SampleTable fromCsv(String path) throws IOException {
+    long start = System.currentTimeMillis();
+    InputStream in = new FileInputStream(path);
+    try {
+      SampleTable table = new CsvLoader(in, path).load();
+      log.info(String.format("Loaded %d samples from %s in %f sec", table
+          .size(), path, (System.currentTimeMillis() - start) / 1000.0));
+      return table;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Returns a table of the samples.
+   * 
+   * @param samples the samples
+   * @return the sample table
+   */
+  public static SampleTable fromSamples(List<Sample> samples) {
+    if (samples == null) {
+      throw new NullPointerException("Samples were null");
+    }
+    int n = samples.size();
+    int[] nameIds = new int[n];
+    int[] years = new int[n];
+    double[] lats = new double[n];
+    double[] lngs = new double[n];
+    List<String> names = new ArrayList<String>();
+    Map<String, Integer> ids = new HashMap<String, Integer>();
+    for (int i = 0; i < n; i++) {
+      Sample s = samples.get(i);
+      Integer id = ids.get(s.getName());
+      if (id == null) {
+        id = names.size();
+        ids.put(s.getName(), id);
+        names.add(s.getName());
+      }
+      nameIds[i] = id;
+      years[i] = s.getYear();
+      lats[i] = s.getPoint().getLatitude();
+      lngs[i] = s.getPoint().getLongitude();
+    }
+    return new SampleTable(names, nameIds, years, lats, lngs);
+  }
+
+  private final double[] lats;
+
+  private final double[] lngs;
+
+  private final int[] nameIds;
+
+  private final List<String> names;
+
+  private final int[] years;
+
+  private SampleTable(List<String> names, int[] nameIds, int[] years,
+      double[] lats, double[] lngs) {
+    this.names = Collections.unmodifiableList(new ArrayList<String>(names));
+    this.nameIds = nameIds;
+    this.years = years;
+    this.lats = lats;
+    this.lngs = lngs;
+  }
+
+  /**
+   * Returns the cells of a layer that contain the samples, packed with
+   * <code>Cell.pack</code>, or -1 for samples outside of the layer extent.
+   * 
+   * @param layer the layer
+   * @return the packed cells, in sample order
+   */
+  public long[] asCells(Layer layer) {
+    long[] cells = new long[lats.length];
+    layer.asCells(lats, lngs, cells);
+    return cells;
+  }
+
+  /**
+   * Returns a read-only list view of this table. Samples are created each time
+   * they're read from the list.
+   * 
+   * @return list of samples
+   */
+  public List<Sample> asList() {
+    return new AbstractList<Sample>() {
+      @Override
+      public Sample get(int index) {
+        return getSample(index);
+      }
+
+      @Override
+      public int size() {
+        return lats.length;
+      }
+    };
+  }
+
+  /**
+   * @param index the sample index
+   * @return the latitude of the sample
+   */
+  public double getLatitude(int index) {
+    return lats[index];
+  }
+
+  /**
+   * @param index the sample index
+   * @return the longitude of the sample
+   */
+  public double getLongitude(int index) {
+    return lngs[index];
+  }
+
+  /**
+   * @param index the sample index
+   * @return the name of the sample
+   */
+  public String getName(int index) {
+    return names.get(nameIds[index]);
+  }
+
+  /**
+   * Returns the id of the sample's name, which indexes the list returned by
+   * <code>getNames</code>.
+   * 
+   * @param index the sample index
+   * @return the name id
+   */
+  public int getNameId(int index) {
+    return nameIds[index];
+  }
+
+  /**
+   * Returns the distinct sample names, in the order they first appear.
+   * 
+   * @return the names
+   */
+  public List<String> getNames() {
+    return names;
+  }
+
+  /**
+   * Returns the sample at an index.
+   * 
+   * @param index the sample index
+   * @return the sample
+   */
+  public Sample getSample(int index) {
+    return Sample.newInstance(names.get(nameIds[index]), years[index], LatLng
+        .newInstance(lats[index], lngs[index]));
+  }
+
+  /**
+   * @param index the sample index
+   * @return the year of the sample
+   */
+  public int getYear(int index) {
+    return years[index];
+  }
+
+  /**
+   * @return the number of samples
+   */
+  public int size() {
+    return lats.length;
+  }
+}
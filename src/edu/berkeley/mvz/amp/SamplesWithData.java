@@ -16,10 +16,20 @@
 package edu.berkeley.mvz.amp;
 
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -27,11 +37,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
-import java.util.Map.Entry;
 
-import au.com.bytecode.opencsv.CSVReader;
-import au.com.bytecode.opencsv.CSVWriter;
+import org.apache.log4j.Logger;
+
 import edu.berkeley.mvz.amp.Layer.LayerProvider;
+import edu.berkeley.mvz.amp.SwdReader.SwdVisitor;
 
 /**
  * An immutable class that can be used to represent Samples With CellData (SWD).
@@ -42,6 +52,84 @@ import edu.berkeley.mvz.amp.Layer.LayerProvider;
  */
 public class SamplesWithData {
 
+  /**
+   * An open addressing index of samples to their positions. It avoids a map
+   * entry and a boxed integer per sample.
+   * 
+   */
+  private static class SampleIndex {
+    private Sample[] samples;
+    private int size;
+    private int[] slots;
+
+    SampleIndex(int expected) {
+      samples = new Sample[Math.max(expected, 16)];
+      slots = new int[Integer.highestOneBit(samples.length * 2 - 1) << 1];
+    }
+
+    /**
+     * Adds the sample if it isn't already indexed and returns its position.
+     */
+    int add(Sample sample) {
+      int mask = slots.length - 1;
+      int i = spread(sample.hashCode()) & mask;
+      while (slots[i] != 0) {
+        if (samples[slots[i] - 1].equals(sample)) {
+          return slots[i] - 1;
+        }
+        i = (i + 1) & mask;
+      }
+      if (size == samples.length) {
+        samples = Arrays.copyOf(samples, size * 2);
+      }
+      samples[size++] = sample;
+      slots[i] = size;
+      if (size * 2 > slots.length) {
+        rehash();
+      }
+      return size - 1;
+    }
+
+    Sample get(int i) {
+      return samples[i];
+    }
+
+    /**
+     * Returns the position of the sample or -1 if it isn't indexed.
+     */
+    int indexOf(Object sample) {
+      int mask = slots.length - 1;
+      int i = spread(sample.hashCode()) & mask;
+      while (slots[i] != 0) {
+        if (samples[slots[i] - 1].equals(sample)) {
+          return slots[i] - 1;
+        }
+        i = (i + 1) & mask;
+      }
+      return -1;
+    }
+
+    int size() {
+      return size;
+    }
+
+    private void rehash() {
+      slots = new int[slots.length * 2];
+      int mask = slots.length - 1;
+      for (int n = 0; n < size; n++) {
+        int i = spread(samples[n].hashCode()) & mask;
+        while (slots[i] != 0) {
+          i = (i + 1) & mask;
+        }
+        slots[i] = n + 1;
+      }
+    }
+
+    private static int spread(int h) {
+      return (h ^ (h >>> 16)) * 0x9E3779B9;
+    }
+  }
+
   /**
    * A builder pattern class that is used to build a {@link SamplesWithData}
    * instance.
@@ -49,10 +137,31 @@ public class SamplesWithData {
    */
   public static class SwdBuilder {
 
-    private final Map<Sample, Map<Layer, Double>> sampleData;
+    private int capacity = 16;
+    private final List<double[]> columns = new ArrayList<double[]>();
+    private final Map<Layer, Integer> layerIndex =
+        new HashMap<Layer, Integer>();
+    private final List<Layer> layers = new ArrayList<Layer>();
+    private final SampleIndex samples = new SampleIndex(16);
 
     public SwdBuilder() {
-      sampleData = new HashMap<Sample, Map<Layer, Double>>();
+    }
+
+    /**
+     * Constructs a builder with the given layers, in order, for use with
+     * <code>addRow</code>.
+     */
+    SwdBuilder(List<Layer> layers) {
+      for (Layer l : layers) {
+        if (l == null) {
+          throw new NullPointerException("Layer was null");
+        }
+        if (!layerIndex.containsKey(l)) {
+          layerIndex.put(l, this.layers.size());
+          this.layers.add(l);
+          columns.add(grow(new double[0], capacity));
+        }
+      }
     }
 
     /**
@@ -64,10 +173,45 @@ public class SamplesWithData {
      * @return the builder
      */
     public SwdBuilder addData(Sample sample, Layer Layer, double value) {
-      if (!sampleData.containsKey(sample)) {
-        sampleData.put(sample, new HashMap<Layer, Double>());
+      if (sample == null) {
+        throw new NullPointerException("Sample was null");
+      }
+      if (Layer == null) {
+        throw new NullPointerException("Layer was null");
+      }
+      int i = samples.add(sample);
+      if (i == capacity) {
+        capacity *= 2;
+        for (int l = 0; l < columns.size(); l++) {
+          columns.set(l, grow(columns.get(l), capacity));
+        }
+      }
+      Integer l = layerIndex.get(Layer);
+      if (l == null) {
+        l = layers.size();
+        layerIndex.put(Layer, l);
+        layers.add(Layer);
+        columns.add(grow(new double[0], capacity));
+      }
+      columns.get(l)[i] = value;
+      return this;
+    }
+
+    /**
+     * Adds the values of every layer for the sample. The values are in the
+     * order of the layers given to the constructor.
+     */
+    SwdBuilder addRow(Sample sample, double[] values) {
+      int i = samples.add(sample);
+      if (i == capacity) {
+        capacity *= 2;
+        for (int l = 0; l < columns.size(); l++) {
+          columns.set(l, grow(columns.get(l), capacity));
+        }
+      }
+      for (int l = 0; l < values.length; l++) {
+        columns.get(l)[i] = values[l];
       }
-      sampleData.get(sample).put(Layer, value);
       return this;
     }
 
@@ -77,19 +221,22 @@ public class SamplesWithData {
      * @return samples with CellData
      */
     public SamplesWithData build() {
-      Map<Sample, Data> data = new HashMap<Sample, Data>();
-      Sample s;
-      Cell c;
-      Map<Layer, Double> layerValues;
-      for (Entry<Sample, Map<Layer, Double>> e : sampleData.entrySet()) {
-        s = e.getKey();
-        layerValues = e.getValue();
-        c = layerValues.keySet().iterator().next().asCell(s.getPoint());
-        data.put(s, Data.newInstance(c, layerValues));
+      double[][] values = new double[columns.size()][];
+      for (int l = 0; l < values.length; l++) {
+        values[l] = Arrays.copyOf(columns.get(l), samples.size());
       }
-      return new SamplesWithData(data);
+      return new SamplesWithData(samples, layers, values);
     }
 
+    /**
+     * Returns a copy of the column with the given capacity where new values
+     * are NaN, which marks a value that was never added.
+     */
+    private static double[] grow(double[] column, int capacity) {
+      double[] c = Arrays.copyOf(column, capacity);
+      Arrays.fill(c, column.length, capacity, Double.NaN);
+      return c;
+    }
   }
 
   /**
@@ -102,56 +249,261 @@ public class SamplesWithData {
   }
 
   /**
-   * Returns samples from CellData loaded from a CSV file.
+   * Identifies binary SWD files. The bytes are "SWDB" in ASCII.
+   */
+  private static final int BINARY_MAGIC = 0x53574442;
+
+  private static final int BINARY_VERSION = 1;
+
+  /**
+   * Files are written in chunks of about this many characters or bytes.
+   */
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private static final String CSV_HEADER = "species,dd long,dd lat";
+
+  private static Logger log = Logger.getLogger(SamplesWithData.class);
+
+  /**
+   * Returns samples with data loaded from a file written by
+   * <code>toBinary</code>. The columns are read with memory mapping.
+   * 
+   * @param path the binary SWD file path
+   * @param provider provides the layer for each layer filename in the file
+   * @return samples with CellData
+   * @throws IOException problem reading binary SWD file
+   */
+  public static SamplesWithData fromBinary(String path, LayerProvider provider)
+      throws IOException {
+    RandomAccessFile file = new RandomAccessFile(path, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      if (channel.size() < 24) {
+        throw new IOException("Not a binary SWD file: " + path);
+      }
+      ByteBuffer header = map(channel, 0, 24);
+      if (header.getInt() != BINARY_MAGIC) {
+        throw new IOException("Not a binary SWD file: " + path);
+      }
+      int version = header.getInt();
+      if (version != BINARY_VERSION) {
+        throw new IOException(String.format(
+            "Unsupported binary SWD version %d: %s", version, path));
+      }
+      int headerLength = header.getInt();
+      int nSamples = header.getInt();
+      int nLayers = header.getInt();
+      int nNames = header.getInt();
+      long length = headerLength + (long) nSamples * (8 * (nLayers + 2) + 8);
+      if (channel.size() < length) {
+        throw new IOException("Truncated binary SWD file: " + path);
+      }
+
+      header = map(channel, 24, headerLength - 24);
+      List<Layer> layers = new ArrayList<Layer>(nLayers);
+      for (int l = 0; l < nLayers; l++) {
+        String filename = getString(header);
+        Layer layer = provider.getLayerByFilename(filename);
+        if (layer == null) {
+          throw new IllegalArgumentException("Unknown SWD layer: " + filename);
+        }
+        layers.add(layer);
+      }
+      String[] names = new String[nNames];
+      for (int i = 0; i < nNames; i++) {
+        names[i] = getString(header);
+      }
+
+      long offset = headerLength;
+      double[] lats = new double[nSamples];
+      map(channel, offset, nSamples * 8L).asDoubleBuffer().get(lats);
+      offset += nSamples * 8L;
+      double[] lngs = new double[nSamples];
+      map(channel, offset, nSamples * 8L).asDoubleBuffer().get(lngs);
+      offset += nSamples * 8L;
+      double[][] columns = new double[nLayers][nSamples];
+      for (int l = 0; l < nLayers; l++) {
+        map(channel, offset, nSamples * 8L).asDoubleBuffer().get(columns[l]);
+        offset += nSamples * 8L;
+      }
+      int[] nameIds = new int[nSamples];
+      map(channel, offset, nSamples * 4L).asIntBuffer().get(nameIds);
+      offset += nSamples * 4L;
+      int[] years = new int[nSamples];
+      map(channel, offset, nSamples * 4L).asIntBuffer().get(years);
+
+      SampleIndex index = new SampleIndex(nSamples);
+      for (int i = 0; i < nSamples; i++) {
+        index.add(Sample.newInstance(names[nameIds[i]], years[i], LatLng
+            .newInstance(lats[i], lngs[i])));
+      }
+      return new SamplesWithData(index, layers, columns);
+    } finally {
+      file.close();
+    }
+  }
+
+  /**
+   * Returns samples from CellData loaded from a CSV file. The file is read in a
+   * single streaming pass by {@link SwdReader}.
    * 
    * @param path the CSV file path
+   * @param provider provides the layer for each column of the CSV header
    * @return samples with CellData
    * @throws IOException problem reading SWD file
    */
-  public static SamplesWithData fromCsv(String path, LayerProvider provider)
+  public static SamplesWithData fromCsv(String path,
+      final LayerProvider provider) throws IOException {
+    final SwdBuilder[] builder = new SwdBuilder[1];
+    SwdReader.read(path, new SwdVisitor() {
+      public void header(List<String> layerNames) {
+        List<Layer> layers = new ArrayList<Layer>();
+        for (String name : layerNames) {
+          Layer l = provider.getLayerByFilename(String.format("%s.asc", name));
+          if (l == null) {
+            throw new IllegalArgumentException("Unknown SWD layer: " + name);
+          }
+          layers.add(l);
+        }
+        builder[0] = new SwdBuilder(layers);
+      }
+
+      public void row(String name, int year, double lng, double lat,
+          double[] values) {
+        builder[0].addRow(Sample.newInstance(name, year, LatLng.newInstance(
+            lat, lng)), values);
+      }
+    });
+    return builder[0].build();
+  }
+
+  /**
+   * Returns samples with data by reading the values of every layer of the
+   * stack at the point of each sample. This reads each sample's values from
+   * one place, so it's faster than sampling the layers one at a time. Samples
+   * that fall outside the extent of the layers are skipped.
+   * 
+   * @param samples the samples
+   * @param stack the stack of layers to sample
+   * @return samples with data
+   */
+  public static SamplesWithData fromLayers(List<Sample> samples,
+      LayerStack stack) {
+    if (samples == null) {
+      throw new NullPointerException("Samples were null");
+    }
+    if (stack == null) {
+      throw new NullPointerException("Stack was null");
+    }
+    SampleIndex index = new SampleIndex(samples.size());
+    int nLayers = stack.getLayers().size();
+    double[][] columns = new double[nLayers][samples.size()];
+    double[] values = new double[nLayers];
+    int skipped = 0;
+    for (Sample s : samples) {
+      LatLng p = s.getPoint();
+      if (!stack.containsPoint(p)) {
+        skipped++;
+        continue;
+      }
+      int n = index.size();
+      if (index.add(s) < n) {
+        continue;
+      }
+      stack.valuesAt(p, values);
+      for (int l = 0; l < nLayers; l++) {
+        columns[l][n] = values[l];
+      }
+    }
+    if (skipped > 0) {
+      log.warn(String.format("Skipped %d samples outside of layer extents",
+          skipped));
+    }
+    for (int l = 0; l < nLayers; l++) {
+      columns[l] = Arrays.copyOf(columns[l], index.size());
+    }
+    return new SamplesWithData(index, stack.getLayers(), columns);
+  }
+
+  /**
+   * Returns samples with data by reading the value of each layer at the point
+   * of each sample. Values are read directly from the layer grids so no
+   * intermediate files are written. Samples that fall outside the extent of any
+   * layer are skipped.
+   * 
+   * @param samples the samples
+   * @param layers the layers to sample
+   * @return samples with data
+   */
+  public static SamplesWithData fromLayers(List<Sample> samples,
+      List<Layer> layers) {
+    if (samples == null) {
+      throw new NullPointerException("Samples were null");
+    }
+    if (layers == null || layers.isEmpty()) {
+      throw new IllegalArgumentException("At least one layer is required");
+    }
+    SampleIndex index = new SampleIndex(samples.size());
+    int nLayers = layers.size();
+    double[][] columns = new double[nLayers][samples.size()];
+    int skipped = 0;
+    LatLng p;
+    for (Sample s : samples) {
+      p = s.getPoint();
+      int l = 0;
+      while (l < nLayers && layers.get(l).containsPoint(p)) {
+        l++;
+      }
+      if (l < nLayers) {
+        skipped++;
+        continue;
+      }
+      int n = index.size();
+      if (index.add(s) < n) {
+        continue;
+      }
+      for (l = 0; l < nLayers; l++) {
+        columns[l][n] = layers.get(l).getValue(p);
+      }
+    }
+    if (skipped > 0) {
+      log.warn(String.format("Skipped %d samples outside of layer extents",
+          skipped));
+    }
+    for (int l = 0; l < nLayers; l++) {
+      columns[l] = Arrays.copyOf(columns[l], index.size());
+    }
+    return new SamplesWithData(index, layers, columns);
+  }
+
+  /**
+   * Appends the species, year and coordinate columns of an SWD row. The
+   * coordinates are formatted like <code>%f</code>.
+   */
+  private static void appendSample(StringBuilder csv, Sample s,
+      boolean appendYear, double x, double y) {
+    csv.append(s.getName());
+    if (appendYear) {
+      csv.append('-').append(s.getYear());
+    }
+    AsciiNumbers.appendFixed(csv.append(','), x, 6);
+    AsciiNumbers.appendFixed(csv.append(','), y, 6);
+  }
+
+  private static String getString(ByteBuffer buffer) {
+    byte[] b = new byte[buffer.getInt()];
+    buffer.get(b);
+    return new String(b, StandardCharsets.UTF_8);
+  }
+
+  private static ByteBuffer map(FileChannel channel, long offset, long length)
       throws IOException {
-    SamplesWithData swd = null;
-    SwdBuilder sb = new SwdBuilder();
-    CSVReader reader = new CSVReader(new FileReader(path));
-    String[] line;
-
-    // Maps header index number to layer name:
-    String[] header = reader.readNext();
-    HashMap<Integer, String> map = new HashMap<Integer, String>();
-    for (int i = 3; i < header.length; i++) {
-      map.put(i, String.format("%s.asc", header[i]));
-    }
-
-    // Reads sample with CellData from CSV and adds CellData to the builder:
-    Sample s;
-    Layer l;
-    double lat, lng, value;
-    String name = null, nameYear;
-    int year;
-    while ((line = reader.readNext()) != null) {
-      lng = Double.parseDouble(line[1]);
-      lat = Double.parseDouble(line[2]);
-      if (line[0].contains("_")) {
-        nameYear = line[0].split("_")[0] + " " + line[0].split("_")[1];
-      } else {
-        nameYear = line[0];
-      }
-      name = nameYear.split("-")[0];
-      if (nameYear.contains("-")) {
-        year = Integer.parseInt(nameYear.split("-")[1]);
-        s = Sample.newInstance(name, year, LatLng.newInstance(lat, lng));
-      } else {
-        s = Sample.newInstance(name, -1, LatLng.newInstance(lat, lng));
-      }
-      for (Integer i : map.keySet()) {
-        l = provider.getLayerByFilename(map.get(i));
-        value = Double.parseDouble(line[i]);
-        sb.addData(s, l, value);
-      }
-    }
-
-    swd = sb.build();
-    return swd;
+    return channel.map(MapMode.READ_ONLY, offset, length).order(
+        ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static void putString(ByteBuffer buffer, byte[] b) {
+    buffer.putInt(b.length).put(b);
   }
 
   private static int randomSampleYear(List<Layer> layers) {
@@ -159,12 +511,54 @@ public class SamplesWithData {
     return layers.get(r).getYear();
   }
 
-  private final Map<Sample, Data> sampleData;
+  /**
+   * Packed cells of each sample, by sample position.
+   */
+  private final long[] cells;
+
+  /**
+   * Layer values, by layer position and then by sample position.
+   */
+  private final double[][] columns;
+
+  private final Map<Layer, Integer> layerIndex;
+
+  private final Layer[] layers;
+
+  private final SampleIndex samples;
 
   private final HashSet<String> sampleNames = new HashSet<String>();
 
-  private SamplesWithData(Map<Sample, Data> sampleData) {
-    this.sampleData = sampleData;
+  private SamplesWithData(SampleIndex samples, List<Layer> layers,
+      double[][] columns) {
+    if (samples.size() > 0 && layers.isEmpty()) {
+      throw new IllegalArgumentException("At least one layer is required");
+    }
+    this.samples = samples;
+    this.layers = layers.toArray(new Layer[layers.size()]);
+    this.columns = columns;
+    layerIndex = new HashMap<Layer, Integer>();
+    for (int l = 0; l < this.layers.length; l++) {
+      layerIndex.put(this.layers[l], l);
+    }
+    cells = new long[samples.size()];
+    if (cells.length > 0) {
+      double[] lats = new double[cells.length];
+      double[] lngs = new double[cells.length];
+      for (int i = 0; i < cells.length; i++) {
+        LatLng p = samples.get(i).getPoint();
+        lats[i] = p.getLatitude();
+        lngs[i] = p.getLongitude();
+      }
+      this.layers[0].asCells(lats, lngs, cells);
+      for (int i = 0; i < cells.length; i++) {
+        if (cells[i] == -1) {
+          throw new IllegalArgumentException(String.format(
+              "Sample %s is outside of layer %s", samples.get(i),
+              this.layers[0]));
+        }
+      }
+    }
   }
 
   public void bind(Sample sample, String layerId, Layer layer) {
@@ -180,12 +574,49 @@ public class SamplesWithData {
       return false;
     }
     SamplesWithData swd = (SamplesWithData) o;
-    boolean b = sampleData.equals(swd.sampleData);
-    return b;
+    if (size() != swd.size() || layers.length != swd.layers.length) {
+      return false;
+    }
+    int[] otherLayers = new int[layers.length];
+    for (int l = 0; l < layers.length; l++) {
+      Integer ol = swd.layerIndex.get(layers[l]);
+      if (ol == null) {
+        return false;
+      }
+      otherLayers[l] = ol;
+    }
+    for (int i = 0; i < cells.length; i++) {
+      int oi = swd.samples.indexOf(samples.get(i));
+      if (oi < 0 || cells[i] != swd.cells[oi]) {
+        return false;
+      }
+      for (int l = 0; l < layers.length; l++) {
+        double other = swd.columns[otherLayers[l]][oi];
+        if (Double.compare(columns[l][i], other) != 0) {
+          return false;
+        }
+      }
+    }
+    return true;
   }
 
+  /**
+   * Returns the cell and layer values associated with the given sample.
+   * 
+   * @param sample the sample
+   * @return the cell data or null if there is no data for the sample
+   */
   public Data getData(Sample sample) {
-    return sampleData.get(sample);
+    int i = samples.indexOf(sample);
+    if (i < 0) {
+      return null;
+    }
+    Map<Layer, Double> values = new HashMap<Layer, Double>();
+    for (int l = 0; l < layers.length; l++) {
+      values.put(layers[l], columns[l][i]);
+    }
+    return Data.newInstance(Cell.newInstance(Cell.unpackRow(cells[i]), Cell
+        .unpackColumn(cells[i])), values);
   }
 
   /**
@@ -193,10 +624,18 @@ public class SamplesWithData {
    * 
    * @param sample the sample
    * @param Layer the layer
+   * @throws IllegalArgumentException if there is no data for the sample or
+   *           layer
    * @return layer value associated with sample
    */
   public double getData(Sample sample, Layer Layer) {
-    return sampleData.get(sample).getValue(Layer);
+    int i = samples.indexOf(sample);
+    Integer l = layerIndex.get(Layer);
+    if (i < 0 || l == null) {
+      throw new IllegalArgumentException(String.format(
+          "No data for sample %s and layer %s", sample, Layer));
+    }
+    return columns[l][i];
   }
 
   /**
@@ -206,14 +645,13 @@ public class SamplesWithData {
    * @return list of layers
    */
   public List<Layer> getLayers() {
-    return new ArrayList<Layer>(sampleData.values().iterator().next()
-        .getLayers());
+    return new ArrayList<Layer>(Arrays.asList(layers));
   }
 
   public Set<String> getSampleNames() {
     if (sampleNames.isEmpty()) {
-      for (Sample s : sampleData.keySet()) {
-        sampleNames.add(s.getName());
+      for (int i = 0; i < samples.size(); i++) {
+        sampleNames.add(samples.get(i).getName());
       }
     }
     return sampleNames;
@@ -225,15 +663,65 @@ public class SamplesWithData {
    * @return list of samples
    */
   public List<Sample> getSamples() {
-    Set<Sample> samples = sampleData.keySet();
-    return new ArrayList<Sample>(samples);
+    List<Sample> result = new ArrayList<Sample>(samples.size());
+    for (int i = 0; i < samples.size(); i++) {
+      result.add(samples.get(i));
+    }
+    return result;
+  }
+
+  /**
+   * Returns the values of a layer for every sample, in the same order as
+   * <code>getSamples</code>.
+   * 
+   * @param layer the layer
+   * @throws IllegalArgumentException if there is no data for the layer
+   * @return layer values
+   */
+  public double[] getValues(Layer layer) {
+    Integer l = layerIndex.get(layer);
+    if (l == null) {
+      throw new IllegalArgumentException("No data for layer " + layer);
+    }
+    return columns[l].clone();
   }
 
   @Override
   public int hashCode() {
-    int result = 17;
-    result = 31 * result + sampleData.hashCode();
-    return result;
+    // Order independent so that equal samples with data hash equally:
+    int sum = 0;
+    for (int i = 0; i < cells.length; i++) {
+      int h = samples.get(i).hashCode() ^ (int) (cells[i] ^ (cells[i] >>> 32));
+      for (int l = 0; l < layers.length; l++) {
+        long bits = Double.doubleToLongBits(columns[l][i]);
+        h += layers[l].hashCode() ^ (int) (bits ^ (bits >>> 32));
+      }
+      sum += h;
+    }
+    return 31 * 17 + sum;
+  }
+
+  /**
+   * Returns samples with data for a subset of the layers. The returned object
+   * shares the samples and layer values of this one, so nothing is copied.
+   * 
+   * @param subset layers of this object
+   * @return samples with data for the subset
+   */
+  public SamplesWithData select(List<Layer> subset) {
+    if (subset == null) {
+      throw new NullPointerException("Layers were null");
+    }
+    double[][] selected = new double[subset.size()][];
+    for (int i = 0; i < selected.length; i++) {
+      Integer l = layerIndex.get(subset.get(i));
+      if (l == null) {
+        throw new IllegalArgumentException("No data for layer "
+            + subset.get(i));
+      }
+      selected[i] = columns[l];
+    }
+    return new SamplesWithData(samples, subset, selected);
   }
 
   /**
@@ -242,7 +730,91 @@ public class SamplesWithData {
    * @return
    */
   public int size() {
-    return sampleData.size();
+    return samples.size();
+  }
+
+  /**
+   * Writes SWD to a temporary binary file and returns the file path.
+   * 
+   * @return path to the binary SWD file
+   * @throws IOException problems writing the file
+   */
+  public String toBinary() throws IOException {
+    String path = File.createTempFile("swd", ".swdb").getPath();
+    toBinary(path);
+    return path;
+  }
+
+  /**
+   * Writes SWD to a compact binary file that can be loaded with
+   * <code>fromBinary</code>. The file has a header with the layer filenames
+   * and the distinct sample names, followed by little-endian columns of
+   * latitudes, longitudes, layer values, sample name indexes and years.
+   * 
+   * @param path path to write binary SWD file
+   * @throws IOException problems writing to path
+   */
+  public void toBinary(String path) throws IOException {
+    int n = samples.size();
+    double[] lats = new double[n];
+    double[] lngs = new double[n];
+    int[] nameIds = new int[n];
+    int[] years = new int[n];
+    Map<String, Integer> nameIndex = new HashMap<String, Integer>();
+    List<byte[]> names = new ArrayList<byte[]>();
+    int headerLength = 24;
+    for (int i = 0; i < n; i++) {
+      Sample s = samples.get(i);
+      lats[i] = s.getPoint().getLatitude();
+      lngs[i] = s.getPoint().getLongitude();
+      years[i] = s.getYear();
+      Integer id = nameIndex.get(s.getName());
+      if (id == null) {
+        id = names.size();
+        nameIndex.put(s.getName(), id);
+        names.add(s.getName().getBytes(StandardCharsets.UTF_8));
+        headerLength += 4 + names.get(id).length;
+      }
+      nameIds[i] = id;
+    }
+    byte[][] filenames = new byte[layers.length][];
+    for (int l = 0; l < layers.length; l++) {
+      filenames[l] = layers[l].getFilename().getBytes(StandardCharsets.UTF_8);
+      headerLength += 4 + filenames[l].length;
+    }
+    // Pads the header so that the columns are aligned:
+    headerLength = (headerLength + 7) & ~7;
+
+    ByteBuffer header = ByteBuffer.allocate(headerLength).order(
+        ByteOrder.LITTLE_ENDIAN);
+    header.putInt(BINARY_MAGIC).putInt(BINARY_VERSION).putInt(headerLength)
+        .putInt(n).putInt(layers.length).putInt(names.size());
+    for (byte[] b : filenames) {
+      putString(header, b);
+    }
+    for (byte[] b : names) {
+      putString(header, b);
+    }
+    header.position(0);
+
+    FileOutputStream out = new FileOutputStream(path);
+    try {
+      FileChannel channel = out.getChannel();
+      while (header.hasRemaining()) {
+        channel.write(header);
+      }
+      ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(
+          ByteOrder.LITTLE_ENDIAN);
+      write(channel, buffer, lats);
+      write(channel, buffer, lngs);
+      for (double[] column : columns) {
+        write(channel, buffer, column);
+      }
+      write(channel, buffer, nameIds);
+      write(channel, buffer, years);
+    } finally {
+      out.close();
+    }
   }
 
   /**
@@ -288,43 +860,34 @@ public class SamplesWithData {
    * @throws IOException problems writing to path
    */
   public void toCsv(String path, boolean appendYear) throws IOException {
-    CSVWriter writer = new CSVWriter(new FileWriter(path), ',',
-        CSVWriter.NO_QUOTE_CHARACTER);
-
-    // Writes the header that includes the layer filenames:
-    String[] header = new String[3 + getLayers().size()];
-    header[0] = "species";
-    header[1] = "dd long";
-    header[2] = "dd lat";
-    int count = 3;
-    for (Layer l : getLayers()) {
-      // MaxEnt header doesn't include file extension:
-      String[] name = l.getFilename().split(".asc");
-      header[count++] = name[0];
-      // header[count++] = l.getName();
-    }
-    writer.writeNext(header);
-
-    String[] line = null;
-    LatLng p = null;
-    for (Sample s : getSamples()) {
-      p = s.getPoint();
-      String cellData;
-      if (appendYear) {
-        cellData = String.format("%s-%d,%f,%f", s.getName(), s.getYear(), p
-            .getLongitude(), p.getLatitude());
-      } else {
-        cellData = String.format("%s,%f,%f", s.getName(), p.getLongitude(), p
-            .getLatitude());
+    Writer writer = new FileWriter(path);
+    try {
+      // Writes the header that includes the layer filenames:
+      StringBuilder csv = new StringBuilder(BUFFER_SIZE * 2);
+      csv.append(CSV_HEADER);
+      for (Layer l : layers) {
+        // MaxEnt header doesn't include file extension:
+        csv.append(',').append(l.getFilename().split(".asc")[0]);
       }
-
-      for (Layer l : getLayers()) {
-        cellData += "," + getData(s, l);
+      csv.append('\n');
+
+      for (int i = 0; i < samples.size(); i++) {
+        Sample s = samples.get(i);
+        LatLng p = s.getPoint();
+        appendSample(csv, s, appendYear, p.getLongitude(), p.getLatitude());
+        for (int l = 0; l < layers.length; l++) {
+          csv.append(',').append(columns[l][i]);
+        }
+        csv.append('\n');
+        if (csv.length() >= BUFFER_SIZE) {
+          writer.append(csv);
+          csv.setLength(0);
+        }
       }
-      line = cellData.split(",");
-      writer.writeNext(line);
+      writer.append(csv);
+    } finally {
+      writer.close();
     }
-    writer.close();
   }
 
   public void toCsv(String path, SwdSpec spec) throws IOException {
@@ -333,42 +896,55 @@ public class SamplesWithData {
 
   public void toCsv(String path, SwdSpec filter, boolean appendYear)
       throws IOException {
-    CSVWriter writer = new CSVWriter(new FileWriter(path), ',',
-        CSVWriter.NO_QUOTE_CHARACTER);
-    StringBuilder header = new StringBuilder();
-    header.append("species,dd long,dd lat");
     List<String> layerNames = filter.getLayerNames();
     Collections.sort(layerNames);
-    for (String name : layerNames) {
-      header.append(","
-          + (name.endsWith(".asc") ? name.replace(".asc", "") : name));
-    }
-    writer.writeNext(header.toString().split(","));
-    StringBuilder csv = new StringBuilder();
-    String sName;
-    double lat, lng;
-    for (Sample s : getSamples()) {
-      csv = new StringBuilder();
-      sName = s.getName();
-      lat = s.getPoint().getLatitude();
-      lng = s.getPoint().getLongitude();
-      csv.append(appendYear ? String.format("%s-%d,%f,%f", sName, s.getYear(),
-          lat, lng) : String.format("%s,%f,%f", sName, lat, lng));
+    Writer writer = new FileWriter(path);
+    try {
+      StringBuilder csv = new StringBuilder(BUFFER_SIZE * 2);
+      csv.append(CSV_HEADER);
       for (String name : layerNames) {
-        Layer l = filter.getLayer(name, s);
-        if (l == null) {
-          continue;
+        csv.append(',').append(
+            name.endsWith(".asc") ? name.replace(".asc", "") : name);
+      }
+      csv.append('\n');
+
+      for (int i = 0; i < samples.size(); i++) {
+        Sample s = samples.get(i);
+        LatLng p = s.getPoint();
+        appendSample(csv, s, appendYear, p.getLatitude(), p.getLongitude());
+        for (String name : layerNames) {
+          Layer l = filter.getLayer(name, s);
+          if (l == null) {
+            continue;
+          }
+          Integer column = layerIndex.get(l);
+          if (column == null) {
+            throw new IllegalArgumentException(String.format(
+                "No data for sample %s and layer %s", s, l));
+          }
+          csv.append(',').append(columns[column][i]);
+        }
+        csv.append('\n');
+        if (csv.length() >= BUFFER_SIZE) {
+          writer.append(csv);
+          csv.setLength(0);
         }
-        csv.append("," + getData(s, l));
       }
-      writer.writeNext(csv.toString().split(","));
+      writer.append(csv);
+    } finally {
+      writer.close();
     }
-    writer.close();
   }
 
   @Override
   public String toString() {
-    return sampleData.toString();
+    StringBuilder sb = new StringBuilder("{");
+    for (int i = 0; i < samples.size(); i++) {
+      Sample sample = samples.get(i);
+      sb.append(i == 0 ? "" : ", ").append(sample).append('=').append(
+          getData(sample));
+    }
+    return sb.append('}').toString();
   }
 
   public String toTempCsv(SwdSpec filter) throws IOException {
@@ -384,4 +960,33 @@ public class SamplesWithData {
     return path;
   }
 
+  private void write(FileChannel channel, ByteBuffer buffer, double[] values)
+      throws IOException {
+    for (int i = 0; i < values.length;) {
+      buffer.clear();
+      DoubleBuffer view = buffer.asDoubleBuffer();
+      int count = Math.min(view.remaining(), values.length - i);
+      view.put(values, i, count);
+      i += count;
+      buffer.limit(count * 8);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+  }
+
+  private void write(FileChannel channel, ByteBuffer buffer, int[] values)
+      throws IOException {
+    for (int i = 0; i < values.length;) {
+      buffer.clear();
+      IntBuffer view = buffer.asIntBuffer();
+      int count = Math.min(view.remaining(), values.length - i);
+      view.put(values, i, count);
+      i += count;
+      buffer.limit(count * 4);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+  }
 }
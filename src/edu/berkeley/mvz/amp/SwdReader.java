@@ -0,0 +1,308 @@
+/*
+ * Copyright 2009 University of California at Berkeley
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.berkeley.mvz.amp;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A streaming reader for MaxEnt SWD CSV files. The expected format is:
+ * 
+ * species,dd long,dd lat,layer1,layer2,...
+ * 
+ * The file is read in a single pass with a byte level tokenizer. Numbers are
+ * parsed without creating Strings and repeated species names are decoded once,
+ * so rows can be visited without allocating. Because rows are visited as they
+ * are read, files larger than the heap can be processed.
+ * 
+ * The species column is decoded the same way MaxEnt SWD output has always been
+ * loaded: underscores separating the first two words become a space, and a
+ * year may follow the name after a dash (for example
+ * <code>bradypus_variegatus-1990</code>). Names without a year get year -1.
+ * 
+ * Note: This class is not designed for instantiation.
+ */
+public class SwdReader {
+
+  /**
+   * This interface is implemented by clients that visit the rows of an SWD
+   * file.
+   * 
+   */
+  public static interface SwdVisitor {
+    /**
+     * Invoked once with the layer names from the header, which don't include
+     * the file extension.
+     * 
+     * @param layerNames the layer names in column order
+     */
+    public void header(List<String> layerNames);
+
+    /**
+     * Invoked for each row. The values array is reused between rows, so it
+     * must be copied if it's retained.
+     * 
+     * @param name the sample name
+     * @param year the sample year, or -1 if there isn't one
+     * @param lng the decimal longitude
+     * @param lat the decimal latitude
+     * @param values the layer values in header order
+     */
+    public void row(String name, int year, double lng, double lat,
+        double[] values);
+  }
+
+  /**
+   * A decoded species column value.
+   */
+  private static class Species {
+    final int hash;
+    final String name;
+    final byte[] raw;
+    final int year;
+
+    Species(byte[] raw, int hash, String name, int year) {
+      this.raw = raw;
+      this.hash = hash;
+      this.name = name;
+      this.year = year;
+    }
+  }
+
+  /**
+   * Decodes and remembers species column values so that a value repeated on
+   * many rows is only decoded once.
+   */
+  private static class SpeciesDictionary {
+    private Species[] slots = new Species[64];
+    private int size;
+
+    Species get(byte[] b, int start, int end) {
+      int hash = 1;
+      for (int i = start; i < end; i++) {
+        hash = 31 * hash + b[i];
+      }
+      int mask = slots.length - 1;
+      int i = hash & mask;
+      Species s;
+      while ((s = slots[i]) != null) {
+        if (s.hash == hash && equals(s.raw, b, start, end)) {
+          return s;
+        }
+        i = (i + 1) & mask;
+      }
+      s = decode(Arrays.copyOfRange(b, start, end), hash);
+      slots[i] = s;
+      if (++size * 2 > slots.length) {
+        Species[] old = slots;
+        slots = new Species[old.length * 2];
+        mask = slots.length - 1;
+        for (Species o : old) {
+          if (o != null) {
+            int j = o.hash & mask;
+            while (slots[j] != null) {
+              j = (j + 1) & mask;
+            }
+            slots[j] = o;
+          }
+        }
+      }
+      return s;
+    }
+
+    private static Species decode(byte[] raw, int hash) {
+      String nameYear = new String(raw, StandardCharsets.UTF_8);
+      if (nameYear.contains("_")) {
+        String[] words = nameYear.split("_");
+        nameYear = words.length > 1 ? words[0] + " " + words[1] : words[0];
+      }
+      int dash = nameYear.indexOf('-');
+      if (dash < 0) {
+        return new Species(raw, hash, nameYear, -1);
+      }
+      String name = nameYear.substring(0, dash);
+      String year = nameYear.substring(dash + 1);
+      int end = year.indexOf('-');
+      return new Species(raw, hash, name, Integer.parseInt(end < 0 ? year
+          : year.substring(0, end)));
+    }
+
+    private static boolean equals(byte[] raw, byte[] b, int start, int end) {
+      if (raw.length != end - start) {
+        return false;
+      }
+      for (int i = 0; i < raw.length; i++) {
+        if (raw[i] != b[start + i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Reads the SWD file at path and visits its header and rows.
+   * 
+   * @param path the SWD file path
+   * @param visitor the visitor
+   * @throws IOException problems reading the file or a malformed row
+   */
+  public static void read(String path, SwdVisitor visitor) throws IOException {
+    if (visitor == null) {
+      throw new NullPointerException("Visitor was null");
+    }
+    InputStream in = new FileInputStream(path);
+    try {
+      new SwdReader(in, path).read(visitor);
+    } finally {
+      in.close();
+    }
+  }
+
+  private byte[] buf = new byte[1 << 16];
+
+  private boolean eof;
+
+  private final InputStream in;
+
+  private int lineNumber;
+
+  private int limit;
+
+  private final String path;
+
+  private int pos;
+
+  private SwdReader(InputStream in, String path) {
+    this.in = in;
+    this.path = path;
+  }
+
+  /**
+   * Returns the end of the next line, which starts at <code>pos</code>,
+   * reading more of the file as needed, or -1 at the end of the file.
+   */
+  private int nextLine() throws IOException {
+    int scan = pos;
+    while (true) {
+      for (; scan < limit; scan++) {
+        if (buf[scan] == '\n') {
+          return scan;
+        }
+      }
+      if (eof) {
+        return pos < limit ? limit : -1;
+      }
+      // Moves the partial line to the front, growing the buffer if the line
+      // fills it:
+      int partial = limit - pos;
+      if (partial == buf.length) {
+        buf = Arrays.copyOf(buf, buf.length * 2);
+      } else {
+        System.arraycopy(buf, pos, buf, 0, partial);
+      }
+      scan -= pos;
+      pos = 0;
+      limit = partial;
+      int n = in.read(buf, limit, buf.length - limit);
+      if (n < 0) {
+        eof = true;
+      } else {
+        limit += n;
+      }
+    }
+  }
+
+  private void read(SwdVisitor visitor) throws IOException {
+    int end = nextLine();
+    if (end < 0) {
+      throw new IOException("Missing SWD header: " + path);
+    }
+    List<String> layerNames = new ArrayList<String>();
+    int field = 0;
+    for (int start = pos, i = pos; i <= end; i++) {
+      if (i == end || buf[i] == ',') {
+        if (field++ >= 3) {
+          layerNames.add(new String(buf, start, trim(start, i) - start,
+              StandardCharsets.UTF_8));
+        }
+        start = i + 1;
+      }
+    }
+    pos = end + 1;
+    lineNumber = 1;
+    visitor.header(layerNames);
+
+    int nValues = layerNames.size();
+    double[] values = new double[nValues];
+    SpeciesDictionary species = new SpeciesDictionary();
+    while ((end = nextLine()) >= 0) {
+      lineNumber++;
+      int lineEnd = trim(pos, end);
+      if (lineEnd == pos) {
+        pos = end + 1;
+        continue;
+      }
+      Species s = null;
+      double lng = 0, lat = 0;
+      field = 0;
+      try {
+        for (int start = pos, i = pos; i <= lineEnd; i++) {
+          if (i == lineEnd || buf[i] == ',') {
+            int a = start, b = i;
+            if (b - a >= 2 && buf[a] == '"' && buf[b - 1] == '"') {
+              a++;
+              b--;
+            }
+            if (field == 0) {
+              s = species.get(buf, a, b);
+            } else if (field == 1) {
+              lng = AsciiNumbers.parseDouble(buf, a, b);
+            } else if (field == 2) {
+              lat = AsciiNumbers.parseDouble(buf, a, b);
+            } else if (field - 3 < nValues) {
+              values[field - 3] = AsciiNumbers.parseDouble(buf, a, b);
+            }
+            field++;
+            start = i + 1;
+          }
+        }
+      } catch (NumberFormatException e) {
+        throw new IOException(String.format("%s line %d: %s", path,
+            lineNumber, e.getMessage()), e);
+      }
+      if (field != nValues + 3) {
+        throw new IOException(String.format(
+            "%s line %d: expected %d columns but found %d", path, lineNumber,
+            nValues + 3, field));
+      }
+      pos = end + 1;
+      visitor.row(s.name, s.year, lng, lat, values);
+    }
+  }
+
+  /**
+   * Returns end moved back past a trailing carriage return.
+   */
+  private int trim(int start, int end) {
+    return end > start && buf[end - 1] == '\r' ? end - 1 : end;
+  }
+}
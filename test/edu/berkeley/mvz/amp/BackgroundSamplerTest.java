@@ -0,0 +1,110 @@
+/*
+ * Copyright 2009 University of California at Berkeley
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.berkeley.mvz.amp;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import edu.berkeley.mvz.amp.Layer.LayerType;
+
+/**
+ * Unit tests for {@link BackgroundSampler}.
+ * 
+ */
+public class BackgroundSamplerTest {
+
+  private static List<Layer> getLayers(int nRows, int nCols)
+      throws IOException {
+    List<Layer> layers = new ArrayList<Layer>();
+    layers.add(Layer.newInstance(LayerType.CLIMATE, "a", 0, RasterTest
+        .writeGrid(nRows, nCols)));
+    layers.add(Layer.newInstance(LayerType.CLIMATE, "b", 0, RasterTest
+        .writeGrid(nRows, nCols)));
+    return layers;
+  }
+
+  @Test
+  public void geometry() throws IOException {
+    List<Layer> layers = getLayers(3, 4);
+    layers.add(Layer.newInstance(LayerType.CLIMATE, "c", 0, RasterTest
+        .writeGrid(4, 4)));
+    try {
+      BackgroundSampler.newInstance(layers);
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
+  @Test
+  public void shared() throws IOException {
+    String path = RasterTest.writeGrid(3, 4);
+    List<Layer> layers = new ArrayList<Layer>();
+    layers.add(Layer.newInstance(LayerType.CLIMATE, "a", 0, path));
+    Assert.assertEquals(11, BackgroundSampler.newInstance(layers)
+        .getValidCellCount());
+
+    // A sampler of the same layer file samples the layers it was created with:
+    List<Layer> renamed = new ArrayList<Layer>();
+    renamed.add(Layer.newInstance(LayerType.CLIMATE, "b", 0, path));
+    BackgroundSampler sampler = BackgroundSampler.newInstance(renamed);
+    Assert.assertEquals(11, sampler.getValidCellCount());
+    Assert.assertEquals("b", sampler.sample(5, new Random(1)).getLayers()
+        .get(0).getName());
+
+    // A changed layer file is masked again:
+    File f = new File(path);
+    FileWriter w = new FileWriter(f);
+    w.write("ncols 4\nnrows 3\nxllcorner 10\nyllcorner 0\ncellsize 1\n"
+        + "NODATA_value -9999\n-9999 -9999 1 1\n2 2 2 2\n3 3 3 3\n");
+    w.close();
+    f.setLastModified(f.lastModified() + 2000);
+    layers.set(0, Layer.newInstance(LayerType.CLIMATE, "a", 0, path));
+    Assert.assertEquals(10, BackgroundSampler.newInstance(layers)
+        .getValidCellCount());
+  }
+
+  @Test
+  public void sample() throws IOException {
+    List<Layer> layers = getLayers(20, 30);
+    BackgroundSampler sampler = BackgroundSampler.newInstance(layers);
+    Assert.assertEquals(20 * 30 - 1, sampler.getValidCellCount());
+
+    SamplesWithData swd = sampler.sample(100, new Random(1));
+    Assert.assertEquals(100, swd.size());
+    HashSet<Cell> cells = new HashSet<Cell>();
+    for (Sample s : swd.getSamples()) {
+      Assert.assertEquals(BackgroundSampler.SAMPLE_NAME, s.getName());
+      Assert.assertTrue(swd.getData(s, layers.get(0)) != -9999);
+      cells.add(swd.getData(s).getCell());
+    }
+    Assert.assertEquals(100, cells.size());
+
+    // Seeded draws are repeatable:
+    Assert.assertEquals(swd, sampler.sample(100, new Random(1)));
+
+    // Asking for more points than cells returns every cell with data:
+    Assert.assertEquals(20 * 30 - 1, sampler.sample(1000, new Random()).size());
+  }
+}
@@ -62,6 +62,19 @@ public class CellTest {
     Assert.assertEquals("cell", s);
   }
 
+  @Test
+  public void pack() {
+    Cell c = Cell.newInstance(40000, 20000);
+    long packed = c.asLong();
+    Assert.assertEquals(Cell.pack(40000, 20000), packed);
+    Assert.assertEquals(40000, Cell.unpackRow(packed));
+    Assert.assertEquals(20000, Cell.unpackColumn(packed));
+    Assert.assertEquals(c, Cell.newInstance(Cell.unpackRow(packed), Cell
+        .unpackColumn(packed)));
+    Assert.assertEquals(Integer.MAX_VALUE, Cell.unpackColumn(Cell.pack(0,
+        Integer.MAX_VALUE)));
+  }
+
   @Test
   public void newInstance() {
     createInvalidCell(-1, 0);
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2009 University of California at Berkeley
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.berkeley.mvz.amp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import edu.berkeley.mvz.amp.JackknifeResults.Measure;
+
+/**
+ * Unit tests for {@link JackknifeResults}.
+ * 
+ */
+public class JackknifeResultsTest {
+
+  private static void writeResults(File root, String model, String rows)
+      throws IOException {
+    File d = new File(root, model);
+    d.mkdirs();
+    Files.write(new File(d, Replicates.RESULTS_FILENAME).toPath(),
+        ("Species,#Training samples,Regularized training gain,Test gain,"
+            + "Test AUC\n" + rows).getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void read() throws IOException {
+    File root = Files.createTempDirectory("jackknife").toFile();
+    writeResults(root, JackknifeResults.FULL, "puma,20,1.5,1.25,0.9\n"
+        + "tapir,10,2.0,,\n");
+    writeResults(root, JackknifeResults.WITHOUT + "bio1",
+        "puma,20,1.25,1.0,0.85\ntapir,10,1.75,,\n");
+    writeResults(root, JackknifeResults.ONLY + "bio1",
+        "puma,20,0.5,0.25,0.7\ntapir,10,0.25,,\n");
+    writeResults(root, JackknifeResults.WITHOUT + "bio2",
+        "puma,20,1.0,0.75,0.8\ntapir,10,1.0,,\n");
+    writeResults(root, JackknifeResults.ONLY + "bio2",
+        "puma,20,0.75,0.5,0.75\ntapir,10,1.5,,\n");
+
+    JackknifeResults results = JackknifeResults.read(root, Arrays.asList(
+        "bio1", "bio2"));
+    Assert.assertEquals(Arrays.asList("bio1", "bio2"), results.getVariables());
+    Assert.assertEquals(2, results.getSpeciesNames().size());
+    Assert.assertEquals(1.5, results.getFull("puma", Measure.TRAINING_GAIN));
+    Assert.assertEquals(0.9, results.getFull("puma", Measure.TEST_AUC));
+    Assert.assertEquals(1.0, results.getWithout("puma", "bio1",
+        Measure.TEST_GAIN));
+    Assert.assertEquals(1.5, results.getOnly("tapir", "bio2",
+        Measure.TRAINING_GAIN));
+    Assert.assertTrue(Double.isNaN(results.getOnly("tapir", "bio2",
+        Measure.TEST_GAIN)));
+    Assert.assertTrue(Double.isNaN(results.getFull("bear",
+        Measure.TRAINING_GAIN)));
+
+    new File(root, JackknifeResults.ONLY + "bio2/"
+        + Replicates.RESULTS_FILENAME).delete();
+    try {
+      JackknifeResults.read(root, Arrays.asList("bio1", "bio2"));
+      Assert.fail();
+    } catch (IOException e) {
+    }
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2009 University of California at Berkeley
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.berkeley.mvz.amp;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import edu.berkeley.mvz.amp.LambdasModel.OutputFormat;
+import edu.berkeley.mvz.amp.Layer.LayerType;
+import edu.berkeley.mvz.amp.MaxentResults.ResultBuilder;
+
+/**
+ * Unit tests for {@link LambdasModel}.
+ * 
+ */
+public class LambdasModelTest {
+
+  /**
+   * Writes a lambdas file with one feature of each type over variables a and
+   * b, and returns its path.
+   */
+  static String writeLambdas(String species) throws IOException {
+    File f = new File(System.getProperty("java.io.tmpdir"), species
+        + ".lambdas");
+    f.deleteOnExit();
+    FileWriter w = new FileWriter(f);
+    w.write("a, 0.5, 0.0, 4000.0\n"
+        + "b^2, -0.25, 0.0, 1.0E7\n"
+        + "a*b, 0.0, 0.0, 1.0E7\n"
+        + "(1000.0<a), 1.0, 0.0, 1.0\n"
+        + "(b=2.5), 0.125, 0.0, 1.0\n"
+        + "'a, 2.0, 1000.0, 3000.0\n"
+        + "`b, 1.0, 0.0, 2000.0\n"
+        + "linearPredictorNormalizer, 1.0\n"
+        + "densityNormalizer, 10.0\n"
+        + "numBackgroundPoints, 100\n"
+        + "entropy, 2.0\n");
+    w.close();
+    return f.getPath();
+  }
+
+  @Test
+  public void parse() throws IOException {
+    LambdasModel model = LambdasModel.parse(writeLambdas("parse"));
+    Assert.assertEquals(Arrays.asList("a", "b"), model.getVariables());
+    // The product feature has a lambda of 0:
+    Assert.assertEquals(6, model.getFeatureCount());
+    Assert.assertEquals(1.0, model.getLinearPredictorNormalizer());
+    Assert.assertEquals(10.0, model.getDensityNormalizer());
+    Assert.assertEquals(100, model.getNumBackgroundPoints());
+    Assert.assertEquals(2.0, model.getEntropy());
+
+    File f = File.createTempFile("bad", ".lambdas");
+    f.deleteOnExit();
+    FileWriter w = new FileWriter(f);
+    w.write("a, 0.5, 0.0\n");
+    w.close();
+    try {
+      LambdasModel.parse(f.getPath());
+      Assert.fail();
+    } catch (IOException e) {
+    }
+  }
+
+  @Test
+  public void batch() throws IOException {
+    List<Layer> layers = new ArrayList<Layer>();
+    layers.add(Layer.newInstance(LayerType.CLIMATE, "b", 0, RasterTest
+        .writeGrid(3, 4)));
+    layers.add(Layer.newInstance(LayerType.CLIMATE, "a", 0, RasterTest
+        .writeGrid(3, 4)));
+    List<Sample> samples = new ArrayList<Sample>();
+    samples.add(Sample.newInstance("s1", 2000, LatLng.newInstance(0.5, 11.5)));
+    // The no data cell:
+    samples.add(Sample.newInstance("s2", 2000, LatLng.newInstance(2.5, 10.5)));
+    SamplesWithData swd = SamplesWithData.fromLayers(samples, layers);
+
+    String path = writeLambdas("batch");
+    LambdasModel model = new ResultBuilder(new File(path).getParent())
+        .build().getModel("batch");
+    double[] scores = model.score(swd);
+    Assert.assertEquals(2, scores.length);
+    double[] x = { 2001.5, 2001.5 };
+    Assert.assertEquals(model.score(x), scores[0]);
+    Assert.assertTrue(Double.isNaN(scores[1]));
+    Assert.assertEquals(model.score(x, OutputFormat.LOGISTIC), model.score(x));
+    try {
+      model.score(swd.select(layers.subList(0, 1)));
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
+  @Test
+  public void score() throws IOException {
+    LambdasModel model = LambdasModel.parse(writeLambdas("score"));
+    double[] x = { 2500, 500 };
+    double sum = 0.5 * 0.625 - 0.25 * 0.025 + 1 + 2 * 0.75 + 0.75;
+    double raw = Math.exp(sum - 1) / 10;
+    Assert.assertEquals(raw, model.score(x, OutputFormat.RAW), 1e-12);
+    double c = raw * Math.exp(2);
+    Assert.assertEquals(c / (1 + c), model.score(x, OutputFormat.LOGISTIC),
+        1e-12);
+    Assert.assertFalse(model.clamps(x));
+
+    // Outside of the training range of a:
+    x = new double[] { 5000, 2.5 };
+    sum = 0.5 - 0.25 * 6.25e-7 + 1 + 0.125 + 2 + 0.99875;
+    Assert.assertEquals(Math.exp(sum - 1) / 10, model.score(x,
+        OutputFormat.RAW), 1e-9);
+    Assert.assertTrue(model.clamps(x));
+    try {
+      model.score(new double[1], OutputFormat.RAW);
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+    }
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2009 University of California at Berkeley
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.berkeley.mvz.amp;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import edu.berkeley.mvz.amp.Layer.LayerType;
+
+/**
+ * Unit tests for {@link LayerRegistry}.
+ * 
+ */
+public class LayerRegistryTest {
+
+  @Test
+  public void index() throws IOException {
+    String path = RasterTest.writeGrid(3, 4);
+    Layer.newInstance(LayerType.CLIMATE, "a", 0, path);
+    File index = File.createTempFile("layers", ".idx");
+    index.deleteOnExit();
+    LayerRegistry.saveIndex(index.getPath());
+
+    // Layers are constructed from the index without reading their files, as
+    // shown by an index entry that doesn't match the file:
+    String contents = new String(Files.readAllBytes(index.toPath()),
+        StandardCharsets.UTF_8);
+    String entry = contents.substring(contents.indexOf(new File(path)
+        .getAbsolutePath()));
+    String[] f = entry.substring(0, entry.indexOf('\n')).split("\t");
+    FileWriter w = new FileWriter(index);
+    w.write(contents.replace(entry.substring(0, entry.indexOf('\n')), String
+        .format("%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s", f[0], f[1], f[2], f[3],
+            "7", f[5], f[6], f[7], f[8])));
+    w.close();
+    LayerRegistry.clear();
+    Assert.assertTrue(LayerRegistry.loadIndex(index.getPath()) >= 1);
+    Assert.assertEquals(7, Layer.newInstance(LayerType.CLIMATE, "a", 0, path)
+        .getNRows());
+
+    // A changed file is parsed again:
+    File file = new File(path);
+    file.setLastModified(file.lastModified() + 2000);
+    Assert.assertEquals(3, Layer.newInstance(LayerType.CLIMATE, "a", 0, path)
+        .getNRows());
+
+    Files.write(Paths.get(index.getPath()), "bad".getBytes());
+    try {
+      LayerRegistry.loadIndex(index.getPath());
+      Assert.fail();
+    } catch (IOException e) {
+    }
+  }
+
+  @Test
+  public void shared() throws IOException {
+    String path = RasterTest.writeGrid(3, 4);
+    Layer a = Layer.newInstance(LayerType.CLIMATE, "a", 0, path);
+    Layer b = Layer.newInstance(LayerType.FOREST, "b", 1, path);
+    Assert.assertSame(LayerRegistry.get(path), LayerRegistry.get(path));
+    Assert.assertSame(a.raster(), b.raster());
+    Assert.assertEquals(a.getValue(Cell.newInstance(1, 2)), b.getValue(Cell
+        .newInstance(1, 2)));
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2009 University of California at Berkeley
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.berkeley.mvz.amp;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import edu.berkeley.mvz.amp.Layer.LayerType;
+
+/**
+ * Unit tests for {@link LayerStack}.
+ * 
+ */
+public class LayerStackTest {
+
+  /**
+   * Returns the number of temporary files that stacks were written to.
+   */
+  private static int countTemporaryStacks() {
+    String[] names = new File(System.getProperty("java.io.tmpdir"))
+        .list(new FilenameFilter() {
+          public boolean accept(File dir, String name) {
+            return name.startsWith("stack") && name.endsWith(".flt");
+          }
+        });
+    return names == null ? 0 : names.length;
+  }
+
+  @Test
+  public void shared() throws IOException {
+    String path = RasterTest.writeGrid(3, 4);
+    List<Layer> layers = new ArrayList<Layer>();
+    layers.add(Layer.newInstance(LayerType.CLIMATE, "a", 0, path));
+    int temporaryStacks = countTemporaryStacks();
+    LayerStack stack = LayerStack.newInstance(layers);
+    Assert.assertEquals(temporaryStacks, countTemporaryStacks());
+    Assert.assertEquals(1002.5, stack.valuesAt(Cell.newInstance(1, 2))[0]);
+
+    // A stack of the same layer file has the layers it was created with:
+    List<Layer> renamed = new ArrayList<Layer>();
+    renamed.add(Layer.newInstance(LayerType.CLIMATE, "b", 0, path));
+    stack = LayerStack.newInstance(renamed);
+    Assert.assertEquals("b", stack.getLayers().get(0).getName());
+    Assert.assertEquals(1002.5, stack.valuesAt(Cell.newInstance(1, 2))[0]);
+
+    // A changed layer file is stacked again:
+    File f = new File(path);
+    FileWriter w = new FileWriter(f);
+    w.write("ncols 4\nnrows 3\nxllcorner 10\nyllcorner 0\ncellsize 1\n"
+        + "NODATA_value -9999\n1 1 1 1\n2 2 2 2\n3 3 3 3\n");
+    w.close();
+    f.setLastModified(f.lastModified() + 2000);
+    layers.set(0, Layer.newInstance(LayerType.CLIMATE, "a", 0, path));
+    stack = LayerStack.newInstance(layers);
+    Assert.assertEquals(2.0, stack.valuesAt(Cell.newInstance(1, 2))[0]);
+  }
+
+  @Test
+  public void valuesAt() throws IOException {
+    List<Layer> layers = new ArrayList<Layer>();
+    layers.add(Layer.newInstance(LayerType.CLIMATE, "a", 0, RasterTest
+        .writeGrid(3, 4)));
+    layers.add(Layer.newInstance(LayerType.CLIMATE, "b", 0, RasterTest
+        .writeGrid(3, 4)));
+    LayerStack stack = LayerStack.newInstance(layers);
+    Assert.assertEquals(layers, stack.getLayers());
+    for (int row = 0; row < 3; row++) {
+      for (int col = 0; col < 4; col++) {
+        Cell cell = Cell.newInstance(row, col);
+        double[] values = stack.valuesAt(cell);
+        Assert.assertEquals(2, values.length);
+        Assert.assertEquals(layers.get(0).getValue(cell), values[0]);
+        Assert.assertEquals(layers.get(1).getValue(cell), values[1]);
+      }
+    }
+
+    double[] out = new double[2];
+    LatLng p = LatLng.newInstance(0.5, 10.5);
+    Assert.assertSame(out, stack.valuesAt(p, out));
+    Assert.assertEquals(2000.5, out[0]);
+    Assert.assertEquals(2000.5, out[1]);
+    Assert.assertEquals(-9999.0, stack.valuesAt(LatLng.newInstance(2.5, 10.5),
+        null)[1]);
+    // Points outside the extent are no data:
+    stack.valuesAt(LatLng.newInstance(3.5, 10.5), out);
+    Assert.assertEquals(-9999.0, out[0]);
+    Assert.assertFalse(stack.containsPoint(LatLng.newInstance(3.5, 10.5)));
+    // Both overloads read the same cell, including the last row and column:
+    double[][] points = { { 0, 10 }, { 0.5, 13.5 }, { 2.999, 13.999 },
+        { 2.5, 11.5 }, { 1, 12 } };
+    for (double[] point : points) {
+      p = LatLng.newInstance(point[0], point[1]);
+      double[] values = stack.valuesAt(layers.get(0).asCell(p));
+      Assert.assertTrue(Arrays.equals(stack.valuesAt(p, null), values));
+    }
+    try {
+      stack.valuesAt(Cell.newInstance(3, 0));
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+    }
+
+    layers.add(Layer.newInstance(LayerType.CLIMATE, "c", 0, RasterTest
+        .writeGrid(2, 4)));
+    try {
+      LayerStack.newInstance(layers);
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2009 University of California at Berkeley
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.berkeley.mvz.amp;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import edu.berkeley.mvz.amp.Layer.LayerType;
+
+/**
+ * Unit tests for {@link LayerStager}.
+ * 
+ */
+public class LayerStagerTest {
+
+  @Test
+  public void delete() throws IOException {
+    List<Layer> layers = new ArrayList<Layer>();
+    layers.add(Layer.newInstance(LayerType.CLIMATE, "a.asc", 0, RasterTest
+        .writeGrid(3, 4)));
+    Path root = Files.createTempDirectory("stage");
+    Path dir = Paths.get(LayerStager.stage(root.resolve("EnvLayers")
+        .toString(), layers));
+    Files.createDirectories(dir.resolve("maxent.cache"));
+
+    // Deletes the links and directories but not the layers linked to:
+    LayerStager.delete(root);
+    Assert.assertFalse(Files.exists(root));
+    Assert.assertTrue(Files.isRegularFile(Paths.get(layers.get(0).getPath())));
+  }
+
+  @Test
+  public void stage() throws IOException {
+    List<Layer> layers = new ArrayList<Layer>();
+    layers.add(Layer.newInstance(LayerType.CLIMATE, "a.asc", 0, RasterTest
+        .writeGrid(3, 4)));
+    layers.add(Layer.newInstance(LayerType.CLIMATE, "b.asc", 0, RasterTest
+        .writeGrid(3, 4)));
+    Path dir = Files.createTempDirectory("stage").resolve("EnvLayers");
+    Assert.assertEquals(dir.toString(), LayerStager.stage(dir.toString(),
+        layers));
+    Path a = dir.resolve("a.asc");
+    Assert.assertTrue(Files.isSymbolicLink(a));
+    Assert.assertEquals(Paths.get(layers.get(0).getPath()).toAbsolutePath(),
+        Files.readSymbolicLink(a));
+    Assert.assertTrue(Files.isSymbolicLink(dir.resolve("b.asc")));
+    Assert.assertTrue(Files.exists(Paths.get(dir + LayerStager.MANIFEST_SUFFIX)));
+
+    // An unchanged layer set reuses the staged links and MaxEnt's cache:
+    Path cache = Files.createDirectories(dir.resolve("maxent.cache"));
+    Files.write(cache.resolve("a.mxe"), new byte[] { 1 });
+    Object key = Files.readAttributes(a, "unix:ino",
+        LinkOption.NOFOLLOW_LINKS).get("ino");
+    LayerStager.stage(dir.toString(), layers);
+    Assert.assertEquals(key, Files.readAttributes(a, "unix:ino",
+        LinkOption.NOFOLLOW_LINKS).get("ino"));
+    Assert.assertTrue(Files.exists(cache.resolve("a.mxe")));
+
+    // A changed layer set replaces them:
+    layers.remove(1);
+    LayerStager.stage(dir.toString(), layers);
+    Assert.assertTrue(Files.isSymbolicLink(a));
+    Assert.assertFalse(Files.exists(dir.resolve("b.asc"),
+        LinkOption.NOFOLLOW_LINKS));
+    Assert.assertFalse(Files.exists(cache));
+
+    Map<String, String> links = new TreeMap<String, String>();
+    links.put("c.asc", dir.resolve("missing.asc").toString());
+    try {
+      LayerStager.stage(dir.toString(), links);
+      Assert.fail();
+    } catch (FileNotFoundException e) {
+    }
+  }
+}
@@ -111,7 +111,7 @@ public class LayerTest {
     Assert.assertTrue(l.containsPoint(l.getSwPoint()));
     c = l.asCell(l.getSwPoint());
     Assert.assertEquals(c.getColumn(), 0);
-    Assert.assertEquals(c.getRow(), nrows);
+    Assert.assertEquals(c.getRow(), nrows - 1);
     log.info(String.format("%s ncols=%d nrows=%d", c, ncols, nrows));
 
     LatLng point = LatLng.newInstance(l.getSwPoint().getLatitude()
@@ -15,14 +15,27 @@
  */
 package edu.berkeley.mvz.amp;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.Assert;
 
 import org.apache.log4j.Logger;
 import org.junit.Test;
 
+import edu.berkeley.mvz.amp.LambdasModel.OutputFormat;
+import edu.berkeley.mvz.amp.Layer.LayerType;
+import edu.berkeley.mvz.amp.MaxentRun.Option;
+import edu.berkeley.mvz.amp.MaxentRun.RunConfig;
+import edu.berkeley.mvz.amp.MaxentRun.RunType;
+import edu.berkeley.mvz.amp.MaxentService.AsyncRunCallback;
 import edu.berkeley.mvz.amp.MaxentService.MaxEntException;
 
 /**
@@ -37,6 +50,121 @@ public class MaxentServiceTest {
     log.info(String.format("%s starting", MaxentServiceTest.class.getName()));
   }
 
+  @Test
+  public void executeAsync() throws Exception {
+    List<Layer> layers = new ArrayList<Layer>();
+    layers.add(Layer.newInstance(LayerType.CLIMATE, "a", 0, RasterTest
+        .writeGrid(10, 10)));
+    MaxentRun run = MaxentService.createSwdRun(50, layers);
+    MaxentResults results = MaxentService.executeAsync(run, 60,
+        TimeUnit.SECONDS).get();
+    Assert.assertEquals(50, results.getSamplesWithData().size());
+
+    final CountDownLatch done = new CountDownLatch(1);
+    final AtomicInteger size = new AtomicInteger();
+    MaxentService.executeAsync(run, new AsyncRunCallback() {
+      public void onFailure(Throwable t) {
+        done.countDown();
+      }
+
+      public void onSuccess(MaxentRun run, MaxentResults results) {
+        size.set(results.getSamplesWithData().size());
+        done.countDown();
+      }
+    });
+    Assert.assertTrue(done.await(60, TimeUnit.SECONDS));
+    Assert.assertEquals(50, size.get());
+  }
+
+  @Test
+  public void executeBatch() throws Exception {
+    List<Layer> layers = new ArrayList<Layer>();
+    layers.add(Layer.newInstance(LayerType.CLIMATE, "a", 0, RasterTest
+        .writeGrid(10, 10)));
+    List<Sample> samples = new ArrayList<Sample>();
+    samples.add(Sample.newInstance("s1", 2000, LatLng.newInstance(0.5, 11.5)));
+    samples.add(Sample.newInstance("s2", 2000, LatLng.newInstance(2.5, 13.5)));
+    List<MaxentRun> runs = new ArrayList<MaxentRun>();
+    runs.add(MaxentService.createSwdRun(samples, layers));
+    runs.add(MaxentService.createSwdRun(samples.subList(0, 1), layers));
+    runs.add(MaxentService.createSwdRun(samples, layers));
+    runs.add(MaxentService.createSwdRun(20, layers));
+
+    List<CompletableFuture<MaxentResults>> futures = MaxentService
+        .executeBatch(runs, 2);
+    Assert.assertEquals(4, futures.size());
+    Assert.assertEquals(2, futures.get(0).get(60, TimeUnit.SECONDS)
+        .getSamplesWithData().size());
+    Assert.assertEquals(1, futures.get(1).get(60, TimeUnit.SECONDS)
+        .getSamplesWithData().size());
+    // Identical runs are executed once and share results:
+    Assert.assertSame(futures.get(0).get(), futures.get(2).get());
+    Assert.assertEquals(20, futures.get(3).get(60, TimeUnit.SECONDS)
+        .getSamplesWithData().size());
+
+    final CountDownLatch done = new CountDownLatch(runs.size());
+    MaxentService.executeBatch(runs, 1, new AsyncRunCallback() {
+      public void onFailure(Throwable t) {
+      }
+
+      public void onSuccess(MaxentRun run, MaxentResults results) {
+        done.countDown();
+      }
+    });
+    Assert.assertTrue(done.await(60, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void projection() throws Exception {
+    List<Layer> layers = new ArrayList<Layer>();
+    layers.add(Layer.newInstance(LayerType.CLIMATE, "b", 0, RasterTest
+        .writeGrid(80, 3)));
+    layers.add(Layer.newInstance(LayerType.CLIMATE, "a", 0, RasterTest
+        .writeGrid(80, 3)));
+    String lambdas = LambdasModelTest.writeLambdas("projection");
+    File dir = Files.createTempDirectory("projection").toFile();
+    MaxentRun run = new RunConfig(RunType.PROJECTION).projectionLayers(layers)
+        .lambdasFile(lambdas).add(Option.OUTPUTDIRECTORY, dir.getPath())
+        .build();
+    MaxentResults results = MaxentService.execute(run);
+    Assert.assertEquals(dir.getPath(), results.getDirectory());
+
+    LambdasModel model = LambdasModel.parse(lambdas);
+    Layer grid = Layer.newInstance(LayerType.CLIMATE, "projection", 0,
+        new File(dir, "projection.asc").getPath());
+    Assert.assertEquals(80, grid.getNRows());
+    Assert.assertEquals(3, grid.getNColumns());
+    Assert.assertEquals(layers.get(0).getSwPoint(), grid.getSwPoint());
+    for (int row = 0; row < 80; row++) {
+      for (int col = 0; col < 3; col++) {
+        double v = grid.getValue(Cell.newInstance(row, col));
+        if (row == 0 && col == 0) {
+          Assert.assertEquals(-9999.0, v);
+        } else {
+          double x = row * 1000 + col + 0.5;
+          Assert.assertEquals((float) model.score(new double[] { x, x },
+              OutputFormat.LOGISTIC), (float) v);
+        }
+      }
+    }
+
+    // The bil option writes a BIL grid:
+    run = new RunConfig(RunType.PROJECTION).projectionLayers(layers)
+        .lambdasFile(lambdas).add(Option.OUTPUTDIRECTORY, dir.getPath()).add(
+            Option.BIL).build();
+    MaxentService.execute(run);
+    Assert.assertTrue(new File(dir, "projection.bil").isFile());
+
+    run = new RunConfig(RunType.PROJECTION).projectionLayers(
+        layers.subList(0, 1)).lambdasFile(lambdas).add(
+        Option.OUTPUTDIRECTORY, dir.getPath()).build();
+    try {
+      MaxentService.execute(run);
+      Assert.fail();
+    } catch (MaxEntException e) {
+    }
+  }
+
   @Test
   public void swd() throws MaxEntException, IOException {
     List<Sample> samples = SampleTest.getTestSamples();
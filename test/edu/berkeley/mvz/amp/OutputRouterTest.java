@@ -0,0 +1,86 @@
+/*
+ * Copyright 2009 University of California at Berkeley
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.berkeley.mvz.amp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link OutputRouter}.
+ * 
+ */
+public class OutputRouterTest {
+
+  @Test
+  public void concurrentRedirects() throws InterruptedException {
+    final int nThreads = 8, nLines = 1000;
+    final ByteArrayOutputStream[] outs = new ByteArrayOutputStream[nThreads];
+    Thread[] threads = new Thread[nThreads];
+    for (int i = 0; i < nThreads; i++) {
+      final int id = i;
+      outs[i] = new ByteArrayOutputStream();
+      threads[i] = new Thread(new Runnable() {
+        public void run() {
+          OutputRouter.redirect(new PrintStream(outs[id]));
+          try {
+            for (int j = 0; j < nLines; j++) {
+              System.out.println(id);
+            }
+          } finally {
+            OutputRouter.restore();
+          }
+        }
+      });
+    }
+    for (Thread t : threads) {
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    for (int i = 0; i < nThreads; i++) {
+      String[] lines = outs[i].toString().split("\n");
+      Assert.assertEquals(nLines, lines.length);
+      for (String line : lines) {
+        Assert.assertEquals(Integer.toString(i), line.trim());
+      }
+    }
+  }
+
+  @Test
+  public void notInherited() throws InterruptedException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    OutputRouter.redirect(new PrintStream(out));
+    try {
+      // A thread started while redirected writes to the original console:
+      Thread t = new Thread(new Runnable() {
+        public void run() {
+          System.out.println("child");
+        }
+      });
+      t.start();
+      t.join();
+      System.out.println("parent");
+    } finally {
+      OutputRouter.restore();
+    }
+    Assert.assertEquals("parent", out.toString().trim());
+  }
+}
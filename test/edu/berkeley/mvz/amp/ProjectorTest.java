@@ -0,0 +1,78 @@
+/*
+ * Copyright 2009 University of California at Berkeley
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.berkeley.mvz.amp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import edu.berkeley.mvz.amp.LambdasModel.OutputFormat;
+import edu.berkeley.mvz.amp.Layer.LayerType;
+
+/**
+ * Unit tests for {@link Projector}.
+ * 
+ */
+public class ProjectorTest {
+
+  @Test
+  public void bil() throws IOException {
+    List<Layer> layers = new ArrayList<Layer>();
+    layers.add(Layer.newInstance(LayerType.CLIMATE, "b", 0, RasterTest
+        .writeGrid(80, 3)));
+    layers.add(Layer.newInstance(LayerType.CLIMATE, "a", 0, RasterTest
+        .writeGrid(80, 3)));
+    LambdasModel model = LambdasModel.parse(LambdasModelTest
+        .writeLambdas("bil"));
+    File dir = Files.createTempDirectory("projector").toFile();
+    File asc = new File(dir, "bil.asc");
+    File bil = new File(dir, "bil.bil");
+    Projector.project(model, layers, OutputFormat.RAW, true, asc.getPath());
+    Projector.project(model, layers, OutputFormat.RAW, true, bil.getPath());
+
+    String header = new String(Files.readAllBytes(new File(dir, "bil.hdr")
+        .toPath()), StandardCharsets.US_ASCII);
+    Assert.assertTrue(header.contains("NROWS 80\n"));
+    Assert.assertTrue(header.contains("NCOLS 3\n"));
+    Assert.assertTrue(header.contains("ULYMAP 79.5\n"));
+    ByteBuffer values = ByteBuffer.wrap(Files.readAllBytes(bil.toPath()))
+        .order(ByteOrder.LITTLE_ENDIAN);
+    Assert.assertEquals(80 * 3 * 4, values.remaining());
+    Layer grid = Layer.newInstance(LayerType.CLIMATE, "bil", 0, asc.getPath());
+    for (int row = 0; row < 80; row++) {
+      for (int col = 0; col < 3; col++) {
+        Assert.assertEquals((float) grid.getValue(Cell.newInstance(row, col)),
+            values.getFloat());
+      }
+    }
+  }
+
+  @Test
+  public void tileRows() {
+    Assert.assertEquals(Projector.TILE_CELLS / 3, Projector.tileRows(3));
+    Assert.assertEquals(1, Projector.tileRows(40000));
+    Assert.assertEquals(1, Projector.tileRows(Projector.TILE_CELLS + 1));
+  }
+}
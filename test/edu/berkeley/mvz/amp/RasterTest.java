@@ -0,0 +1,218 @@
+/*
+ * Copyright 2009 University of California at Berkeley
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.berkeley.mvz.amp;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.FilenameFilter;
+import java.io.IOException;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import edu.berkeley.mvz.amp.Layer.LayerType;
+
+/**
+ * Unit tests for {@link Raster} and {@link Layer} cell values.
+ * 
+ */
+public class RasterTest {
+
+  /**
+   * Returns the number of temporary files that rasters were converted into.
+   */
+  private static int countTemporaryRasters() {
+    String[] names = new File(System.getProperty("java.io.tmpdir"))
+        .list(new FilenameFilter() {
+          public boolean accept(File dir, String name) {
+            return name.startsWith("raster") && name.endsWith(".flt");
+          }
+        });
+    return names == null ? 0 : names.length;
+  }
+
+  /**
+   * Writes a temporary ASCII grid with 1 degree cells whose south west corner
+   * is at latitude 0 and longitude 10. The value of each cell is
+   * <code>row * 1000 + col + 0.5</code> except for the north west cell which is
+   * no data (-9999).
+   * 
+   * @param nRows number of rows
+   * @param nCols number of columns
+   * @return path to the grid
+   * @throws IOException problems writing the grid
+   */
+  public static String writeGrid(int nRows, int nCols) throws IOException {
+    File f = File.createTempFile("grid", ".asc");
+    f.deleteOnExit();
+    new File(f.getPath() + Raster.CACHE_SUFFIX).deleteOnExit();
+    FileWriter w = new FileWriter(f);
+    w.write(String.format("ncols %d\nnrows %d\nxllcorner 10\nyllcorner 0\n"
+        + "cellsize 1\nNODATA_value -9999\n", nCols, nRows));
+    for (int row = 0; row < nRows; row++) {
+      StringBuilder sb = new StringBuilder();
+      for (int col = 0; col < nCols; col++) {
+        sb.append(row == 0 && col == 0 ? "-9999" : row * 1000 + col + ".5");
+        sb.append(' ');
+      }
+      w.write(sb.append('\n').toString());
+    }
+    w.close();
+    return f.getPath();
+  }
+
+  @Test
+  public void asCell() throws IOException {
+    Layer l = Layer.newInstance(LayerType.CLIMATE, "grid", 0, writeGrid(3, 4));
+    // The south west corner, the last row and column, and interior points:
+    double[][] points = { { 0, 10 }, { 0.5, 13.5 }, { 2.999, 13.999 },
+        { 2.5, 11.5 }, { 1, 12 } };
+    for (double[] p : points) {
+      LatLng point = LatLng.newInstance(p[0], p[1]);
+      Assert.assertEquals(l.getValue(point), l.getValue(l.asCell(point)));
+    }
+    Assert.assertEquals(Cell.newInstance(2, 0), l.asCell(l.getSwPoint()));
+    Assert.assertEquals(Cell.newInstance(0, 3), l.asCell(LatLng.newInstance(
+        2.5, 13.5)));
+    Assert.assertNull(l.asCell(LatLng.newInstance(3, 10)));
+  }
+
+  @Test
+  public void asCells() throws IOException {
+    Layer l = Layer.newInstance(LayerType.CLIMATE, "grid", 0, writeGrid(3, 4));
+    // The south west corner, interior points, the north edge, and outside:
+    double[] lats = { 0, 2.5, 0.25, 3, -1, Double.NaN };
+    double[] lngs = { 10, 11.5, 13.75, 10, 10, 10 };
+    long[] cells = new long[lats.length];
+    l.asCells(lats, lngs, cells);
+    // Each cell is the one getValue(LatLng) reads:
+    for (int i = 0; i < 3; i++) {
+      Assert.assertEquals(l.getValue(LatLng.newInstance(lats[i], lngs[i])), l
+          .getValue(Cell.newInstance(Cell.unpackRow(cells[i]), Cell
+              .unpackColumn(cells[i]))));
+    }
+    Assert.assertEquals(Cell.pack(2, 0), cells[0]);
+    Assert.assertEquals(Cell.pack(0, 1), cells[1]);
+    Assert.assertEquals(Cell.pack(2, 3), cells[2]);
+    Assert.assertEquals(-1, cells[3]);
+    Assert.assertEquals(-1, cells[4]);
+    Assert.assertEquals(-1, cells[5]);
+    try {
+      l.asCells(lats, lngs, new long[1]);
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
+  @Test
+  public void fromAsciiGrid() throws IOException {
+    Raster r = Raster.fromAsciiGrid(writeGrid(3, 4), 3, 4, -9999);
+    Assert.assertEquals(3, r.getNRows());
+    Assert.assertEquals(4, r.getNColumns());
+    Assert.assertEquals(-9999f, r.get(0, 0));
+    Assert.assertEquals(1.5f, r.get(0, 1));
+    Assert.assertEquals(2003.5f, r.get(2, 3));
+  }
+
+  @Test
+  public void fromAsciiGridChunks() throws IOException {
+    // Spans several chunks, which split rows:
+    int nRows = 90, nCols = 6000;
+    String path = writeGrid(nRows, nCols);
+    Assert.assertTrue(new File(path).length() > 2 * Raster.CHUNK_BYTES);
+    Raster r = Raster.fromAsciiGrid(path, nRows, nCols, -9999);
+    for (int row = 0; row < nRows; row++) {
+      for (int col = 0; col < nCols; col++) {
+        Assert.assertEquals(row == 0 && col == 0 ? -9999f : Float
+            .parseFloat(row * 1000 + col + ".5"), r.get(row, col));
+      }
+    }
+
+    // Missing values are no data and extra values are ignored:
+    r = Raster.fromAsciiGrid(writeGrid(2, 4), 3, 4, -1);
+    Assert.assertEquals(1003.5f, r.get(1, 3));
+    Assert.assertEquals(-1f, r.get(2, 0));
+    r = Raster.fromAsciiGrid(writeGrid(3, 4), 2, 4, -9999);
+    Assert.assertEquals(1003.5f, r.get(1, 3));
+  }
+
+  @Test
+  public void fromCache() throws IOException {
+    String path = writeGrid(3, 4);
+    File cache = new File(path + Raster.CACHE_SUFFIX);
+    cache.deleteOnExit();
+    int temporaryRasters = countTemporaryRasters();
+    Raster r = Raster.fromCache(path, 3, 4, -9999);
+    Assert.assertTrue(cache.isFile());
+    // The converted grid isn't left behind once it's cached:
+    Assert.assertEquals(temporaryRasters, countTemporaryRasters());
+    Assert.assertEquals(4, r.getBytesPerValue());
+    Assert.assertEquals(-9999f, r.get(0, 0));
+    Assert.assertEquals(2003.5f, r.get(2, 3));
+    long modified = cache.lastModified();
+    r = Raster.fromCache(path, 3, 4, -9999);
+    Assert.assertEquals(1002.5f, r.get(1, 2));
+    Assert.assertEquals(modified, cache.lastModified());
+
+    // Integer values are cached in the smallest type that holds them:
+    File f = File.createTempFile("grid", ".asc");
+    f.deleteOnExit();
+    cache = new File(f.getPath() + Raster.CACHE_SUFFIX);
+    cache.deleteOnExit();
+    FileWriter w = new FileWriter(f);
+    w.write("ncols 2\nnrows 2\nxllcorner 10\nyllcorner 0\ncellsize 1\n"
+        + "NODATA_value -9999\n-9999 127\n-127 0\n");
+    w.close();
+    r = Raster.fromCache(f.getPath(), 2, 2, -9999);
+    Assert.assertEquals(1, r.getBytesPerValue());
+    Assert.assertEquals(-9999f, r.get(0, 0));
+    Assert.assertEquals(127f, r.get(0, 1));
+    Assert.assertEquals(-127f, r.get(1, 0));
+
+    // A changed grid file replaces its cache:
+    w = new FileWriter(f);
+    w.write("ncols 2\nnrows 2\nxllcorner 10\nyllcorner 0\ncellsize 1\n"
+        + "NODATA_value -9999\n-9999 1000\n-128 0\n");
+    w.close();
+    f.setLastModified(f.lastModified() + 2000);
+    r = Raster.fromCache(f.getPath(), 2, 2, -9999);
+    Assert.assertEquals(2, r.getBytesPerValue());
+    Assert.assertEquals(-9999f, r.get(0, 0));
+    Assert.assertEquals(1000f, r.get(0, 1));
+    Assert.assertEquals(-128f, r.get(1, 0));
+  }
+
+  @Test
+  public void getValue() throws IOException {
+    Layer l = Layer.newInstance(LayerType.CLIMATE, "grid", 0, writeGrid(3, 4));
+    Assert.assertEquals(-9999.0, l.getValue(Cell.newInstance(0, 0)));
+    Assert.assertEquals(1002.5, l.getValue(Cell.newInstance(1, 2)));
+
+    // Row 0 is north, so latitude 2.5 is row 0 and latitude 0.5 is row 2:
+    Assert.assertEquals(3.5, l.getValue(LatLng.newInstance(2.5, 13.5)));
+    Assert.assertEquals(2000.5, l.getValue(LatLng.newInstance(0.5, 10.5)));
+    Assert.assertEquals(2000.5, l.getValue(l.getSwPoint()));
+
+    // Points outside the extent are no data:
+    Assert.assertEquals(-9999.0, l.getValue(LatLng.newInstance(3.5, 10.5)));
+    try {
+      l.getValue(Cell.newInstance(3, 0));
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+    }
+  }
+}
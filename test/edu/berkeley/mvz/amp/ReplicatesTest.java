@@ -0,0 +1,126 @@
+/*
+ * Copyright 2009 University of California at Berkeley
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.berkeley.mvz.amp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link Replicates}.
+ * 
+ */
+public class ReplicatesTest {
+
+  private static List<String> lines(String path) throws IOException {
+    return Files.readAllLines(new File(path).toPath(), StandardCharsets.UTF_8);
+  }
+
+  private static void write(File f, String content) throws IOException {
+    Files.write(f.toPath(), content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void merge() throws IOException {
+    File dir = Files.createTempDirectory("replicates").toFile();
+    List<File> dirs = new ArrayList<File>();
+    String header = "ncols 2\nnrows 1\nxllcorner 1\nyllcorner 0\n"
+        + "cellsize 1\nNODATA_value -9999\n";
+    for (int i = 0; i < 2; i++) {
+      File d = new File(dir, "replicates/" + i);
+      d.mkdirs();
+      dirs.add(d);
+      write(new File(d, "puma.lambdas"), "bio1, 1.0, 0.0, 1.0\n");
+      write(new File(d, "puma_bio1.asc"), header + (i == 0 ? "1 -9999\n"
+          : "2 5\n"));
+      write(new File(d, "maxentResults.csv"), "Species,Test AUC\npuma,0."
+          + (i + 7) + "\n");
+      write(new File(d, MaxentService.CONSOLE_FILENAME), "");
+    }
+    Replicates.merge(dir, dirs);
+
+    Assert.assertTrue(new File(dir, "puma_0.lambdas").isFile());
+    Assert.assertTrue(new File(dir, "puma_1_bio1.asc").isFile());
+    Assert.assertFalse(new File(dir, MaxentService.CONSOLE_FILENAME).exists());
+    List<String> grid = lines(new File(dir, "puma_bio1_avg.asc").getPath());
+    Assert.assertEquals(7, grid.size());
+    Assert.assertEquals("NODATA_value -9999", grid.get(5));
+    Assert.assertEquals("1.5 -9999", grid.get(6));
+    List<String> results = lines(new File(dir, "maxentResults.csv")
+        .getPath());
+    Assert.assertEquals(4, results.size());
+    Assert.assertEquals("puma_0,0.7", results.get(1));
+    Assert.assertEquals("puma_1,0.8", results.get(2));
+    Assert.assertTrue(results.get(3).startsWith("puma (average),0.75"));
+  }
+
+  @Test
+  public void split() throws IOException {
+    File dir = Files.createTempDirectory("replicates").toFile();
+    File samples = new File(dir, "samples.csv");
+    StringBuilder sb = new StringBuilder("species,dd long,dd lat\n");
+    for (int i = 0; i < 10; i++) {
+      sb.append(String.format("puma,%d,1\n", i));
+    }
+    for (int i = 0; i < 3; i++) {
+      sb.append(String.format("tapir,%d,2\n", i));
+    }
+    write(samples, sb.toString());
+
+    List<String[]> files = Replicates.split(samples.getPath(), 3, 0, true,
+        new Random(0), dir);
+    Assert.assertEquals(3, files.size());
+    Set<String> tested = new HashSet<String>();
+    for (String[] f : files) {
+      List<String> train = lines(f[0]);
+      List<String> test = lines(f[1]);
+      Assert.assertEquals("species,dd long,dd lat", train.get(0));
+      Assert.assertEquals("species,dd long,dd lat", test.get(0));
+      Assert.assertEquals(15, train.size() + test.size());
+      for (String row : test.subList(1, test.size())) {
+        Assert.assertTrue(tested.add(row));
+        Assert.assertFalse(train.contains(row));
+      }
+    }
+    Assert.assertEquals(13, tested.size());
+
+    files = Replicates.split(samples.getPath(), 2, 30, false, new Random(0),
+        dir);
+    for (String[] f : files) {
+      Assert.assertEquals(5, lines(f[1]).size());
+      Assert.assertEquals(10, lines(f[0]).size());
+    }
+    // Like MaxEnt, every replicate trains on all samples by default:
+    files = Replicates.split(samples.getPath(), 2, 0, false, new Random(0),
+        dir);
+    for (String[] f : files) {
+      Assert.assertNull(f[1]);
+      Assert.assertEquals(14, lines(f[0]).size());
+    }
+    Assert.assertNull(Replicates.split(samples.getPath(), 4, 0, true,
+        new Random(0), dir));
+  }
+}
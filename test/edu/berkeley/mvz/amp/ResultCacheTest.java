@@ -0,0 +1,136 @@
+/*
+ * Copyright 2009 University of California at Berkeley
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.berkeley.mvz.amp;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import edu.berkeley.mvz.amp.Layer.LayerType;
+import edu.berkeley.mvz.amp.MaxentResults.ResultBuilder;
+import edu.berkeley.mvz.amp.MaxentRun.Option;
+import edu.berkeley.mvz.amp.MaxentRun.RunConfig;
+
+/**
+ * Unit tests for {@link ResultCache}.
+ * 
+ */
+public class ResultCacheTest {
+
+  private static List<Sample> getSamples() {
+    List<Sample> samples = new ArrayList<Sample>();
+    samples.add(Sample.newInstance("s1", 2000, LatLng.newInstance(0.5, 11.5)));
+    samples.add(Sample.newInstance("s2", 2000, LatLng.newInstance(2.5, 13.5)));
+    return samples;
+  }
+
+  @Test
+  public void disk() throws IOException, InterruptedException {
+    List<Layer> layers = new ArrayList<Layer>();
+    layers.add(Layer.newInstance(LayerType.CLIMATE, "a", 0, RasterTest
+        .writeGrid(3, 4)));
+    MaxentRun run = MaxentService.createSwdRun(getSamples(), layers);
+    SamplesWithData swd = SamplesWithData.fromLayers(getSamples(), layers);
+    String dir = Files.createTempDirectory("cache").toString();
+
+    ResultCache cache = ResultCache.newInstance(1, 1, dir);
+    String key = ResultCache.fingerprint(run);
+    cache.put(key, new ResultBuilder().samplesWithData(swd).build());
+
+    // A new cache over the same directory loads the results:
+    cache = ResultCache.newInstance(1, 1, dir);
+    Assert.assertEquals(swd, cache.get(key, run).getSamplesWithData());
+
+    // The directory is bounded, evicting the least recently used results:
+    Thread.sleep(20);
+    run = MaxentService.createSwdRun(getSamples().subList(0, 1), layers);
+    cache.put(ResultCache.fingerprint(run), new ResultBuilder()
+        .samplesWithData(swd).build());
+    Assert.assertNull(ResultCache.newInstance(1, 1, dir).get(key, run));
+  }
+
+  @Test
+  public void outputs() throws IOException {
+    File dir = Files.createTempDirectory("outputs").toFile();
+    File lambdas = new File(dir, "puma.lambdas");
+    FileWriter writer = new FileWriter(lambdas);
+    writer.write("linear, 0.0, 0.0, 1.0\n");
+    writer.close();
+    String cacheDir = Files.createTempDirectory("cache").toString();
+    ResultCache cache = ResultCache.newInstance(1, 1, cacheDir);
+    MaxentResults results = new ResultBuilder(dir.getPath()).build();
+    cache.put("a", results);
+    Assert.assertSame(results, cache.get("a", null));
+    Assert.assertNotNull(ResultCache.newInstance(1, 1, cacheDir).get("a",
+        null));
+
+    // Overwritten outputs aren't served from memory or from the directory:
+    writer = new FileWriter(lambdas);
+    writer.write("linear, 0.0, 0.0, 2.0\n");
+    writer.close();
+    lambdas.setLastModified(lambdas.lastModified() + 1000);
+    Assert.assertNull(ResultCache.newInstance(1, 1, cacheDir).get("a", null));
+    Assert.assertNull(cache.get("a", null));
+  }
+
+  @Test
+  public void fingerprint() throws IOException {
+    String path = RasterTest.writeGrid(3, 4);
+    List<Layer> layers = new ArrayList<Layer>();
+    layers.add(Layer.newInstance(LayerType.CLIMATE, "a", 0, path));
+    String key = ResultCache.fingerprint(MaxentService.createSwdRun(
+        getSamples(), layers));
+    Assert.assertEquals(64, key.length());
+    Assert.assertEquals(key, ResultCache.fingerprint(MaxentService
+        .createSwdRun(getSamples(), layers)));
+    Assert.assertFalse(key.equals(ResultCache.fingerprint(MaxentService
+        .createSwdRun(getSamples().subList(0, 1), layers))));
+    Assert.assertNull(ResultCache.fingerprint(new RunConfig(MaxentService
+        .createSwdRun(getSamples(), layers)).add(Option.RANDOMSEED).build()));
+
+    // Changing the contents of a layer changes the fingerprint:
+    File f = new File(path);
+    FileWriter w = new FileWriter(f, true);
+    w.write("\n");
+    w.close();
+    f.setLastModified(f.lastModified() + 2000);
+    Assert.assertFalse(key.equals(ResultCache.fingerprint(MaxentService
+        .createSwdRun(getSamples(), layers))));
+  }
+
+  @Test
+  public void lru() {
+    ResultCache cache = ResultCache.newInstance(2);
+    MaxentResults a = new ResultBuilder().build();
+    MaxentResults b = new ResultBuilder().build();
+    MaxentResults c = new ResultBuilder().build();
+    cache.put("a", a);
+    cache.put("b", b);
+    Assert.assertSame(a, cache.get("a", null));
+    cache.put("c", c);
+    Assert.assertEquals(2, cache.size());
+    Assert.assertSame(a, cache.get("a", null));
+    Assert.assertNull(cache.get("b", null));
+    Assert.assertSame(c, cache.get("c", null));
+  }
+}
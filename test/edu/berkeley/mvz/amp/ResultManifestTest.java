@@ -0,0 +1,107 @@
+/*
+ * Copyright 2009 University of California at Berkeley
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.berkeley.mvz.amp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import edu.berkeley.mvz.amp.MaxentResults.ResultBuilder;
+import edu.berkeley.mvz.amp.ResultManifest.Entry;
+
+/**
+ * Unit tests for {@link ResultManifest}.
+ * 
+ */
+public class ResultManifestTest {
+
+  private static void write(File f, String content) throws IOException {
+    Files.write(f.toPath(), content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void scan() throws IOException {
+    File dir = Files.createTempDirectory("manifest").toFile();
+    for (String name : new String[] { "puma_0.lambdas", "puma_1.lambdas",
+        "puma_0_bio1.asc", "puma_bio1_avg.asc", "puma_concolor_0.lambdas",
+        "maxent.log" }) {
+      write(new File(dir, name), name);
+    }
+    write(new File(dir, Replicates.RESULTS_FILENAME),
+        "Species,Training AUC,Test AUC\npuma_0,0.9,0.8\npuma_1,0.7,0.6\n"
+            + "puma (average),0.8,0.7\npuma_concolor_0,0.95,\n");
+
+    ResultManifest manifest = ResultManifest.scan(dir, 2);
+    Assert.assertEquals(7, manifest.getEntries().size());
+    Assert.assertEquals(new HashSet<String>(Arrays.asList("puma_0", "puma_1",
+        "puma_concolor_0")), manifest.getNames());
+    Assert.assertEquals(4, manifest.getEntries("puma").size());
+    Assert.assertEquals(1, manifest.getEntries("puma_concolor").size());
+    Assert.assertTrue(manifest.getEntries("bear").isEmpty());
+    for (Entry e : manifest.getEntries("puma")) {
+      if (e.getFilename().equals("puma_0_bio1.asc")) {
+        Assert.assertEquals(0, e.getReplicate());
+        Assert.assertEquals(0.8, e.getTestAuc());
+        Assert.assertEquals(15, e.getSize());
+      }
+      if (e.getFilename().equals("puma_bio1_avg.asc")) {
+        Assert.assertEquals(-1, e.getReplicate());
+        Assert.assertEquals(0.8, e.getTrainingAuc());
+      }
+    }
+
+    manifest.write(dir);
+    ResultManifest read = ResultManifest.read(dir);
+    Assert.assertEquals(manifest.getEntries().size(), read.getEntries()
+        .size());
+    Assert.assertEquals(manifest.getNames(), read.getNames());
+    Entry e = read.getEntries("puma_concolor").get(0);
+    Assert.assertEquals(0.95, e.getTrainingAuc());
+    Assert.assertTrue(Double.isNaN(e.getTestAuc()));
+    Assert.assertNull(ResultManifest.read(dir.getParentFile()));
+  }
+
+  @Test
+  public void results() throws IOException {
+    File dir = Files.createTempDirectory("manifest").toFile();
+    write(new File(dir, "puma.lambdas"), "");
+    write(new File(dir, "puma.asc"), "");
+    write(new File(dir, Replicates.RESULTS_FILENAME),
+        "Species,Training AUC,Test AUC\npuma,0.9,0.8\n");
+
+    // Indexes the directory without a manifest:
+    MaxentResults results = new ResultBuilder(dir.getPath()).build();
+    Assert.assertEquals(1, results.size());
+    Assert.assertEquals(0.8, results.getTestAuc("puma"));
+
+    ResultManifest.scan(dir, 1).write(dir);
+    write(new File(dir, "bear.lambdas"), "");
+    results = new ResultBuilder(dir.getPath()).build();
+    Assert.assertEquals(1, results.size());
+    Assert.assertEquals(new HashSet<String>(Arrays.asList("puma")), results
+        .getSpeciesNames());
+    Assert.assertEquals(2, results.getFiles("puma").size());
+    Assert.assertEquals(0.9, results.getTrainingAuc("puma"));
+    Assert.assertTrue(Double.isNaN(results.getTestAuc("bear")));
+  }
+}
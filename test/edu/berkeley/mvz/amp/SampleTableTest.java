@@ -0,0 +1,95 @@
+/*
+ * Copyright 2009 University of California at Berkeley
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.berkeley.mvz.amp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import edu.berkeley.mvz.amp.Layer.LayerType;
+
+/**
+ * Unit tests for {@link SampleTable}.
+ * 
+ */
+public class SampleTableTest {
+
+  private static String write(String content) throws IOException {
+    File f = File.createTempFile("samples", ".csv");
+    f.deleteOnExit();
+    Files.write(f.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    return f.getPath();
+  }
+
+  @Test
+  public void fromCsv() throws IOException {
+    String path = write("species,dd long,dd lat\npuma,10.5,2.5\r\n"
+        + "\"tapir-1999\",-70.25,-12\npuma-2001,11.5,0.5,extra\n"
+        + "puma,13.75,1.125");
+    SampleTable table = SampleTable.fromCsv(path);
+    List<Sample> expected = Sample.fromCsv(path);
+    Assert.assertEquals(4, table.size());
+    Assert.assertEquals(expected.size(), table.asList().size());
+    for (int i = 0; i < expected.size(); i++) {
+      Assert.assertEquals(expected.get(i), table.asList().get(i));
+    }
+    Assert.assertEquals(Arrays.asList("puma", "tapir"), table.getNames());
+    Assert.assertEquals(0, table.getNameId(3));
+    Assert.assertEquals("tapir", table.getName(1));
+    Assert.assertEquals(1999, table.getYear(1));
+    Assert.assertEquals(Sample.UNKNOWN_YEAR, table.getYear(0));
+    Assert.assertEquals(-12.0, table.getLatitude(1));
+    Assert.assertEquals(-70.25, table.getLongitude(1));
+
+    Layer l = Layer.newInstance(LayerType.CLIMATE, "grid", 0, RasterTest
+        .writeGrid(3, 4));
+    long[] cells = table.asCells(l);
+    // Cells are located like getValue(LatLng) locates them:
+    Assert.assertEquals(Cell.pack(0, 0), cells[0]);
+    Assert.assertEquals(-1, cells[1]);
+
+    // Blank lines are skipped:
+    Assert.assertEquals(2, SampleTable.fromCsv(
+        write("species,dd long,dd lat\npuma,1,1\n\npuma,2,2\n")).size());
+    try {
+      SampleTable.fromCsv(write("species,dd long,dd lat\npuma,10.5,95\n"));
+      Assert.fail();
+    } catch (IOException e) {
+    }
+    try {
+      SampleTable.fromCsv(write("species,dd long,dd lat\npuma,x,1\n"));
+      Assert.fail();
+    } catch (IOException e) {
+    }
+  }
+
+  @Test
+  public void fromSamples() {
+    List<Sample> samples = Arrays.asList(Sample.newInstance("puma", 2000,
+        LatLng.newInstance(1.5, 10.5)), Sample.newInstance("tapir", 0, LatLng
+        .newInstance(-12, -70.25)), Sample.newInstance("puma", 2001, LatLng
+        .newInstance(2.5, 11.5)));
+    SampleTable table = SampleTable.fromSamples(samples);
+    Assert.assertEquals(samples, table.asList());
+  }
+}
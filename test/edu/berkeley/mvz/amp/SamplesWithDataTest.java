@@ -15,6 +15,8 @@
  */
 package edu.berkeley.mvz.amp;
 
+import java.io.BufferedReader;
+import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -24,8 +26,10 @@ import junit.framework.Assert;
 import org.apache.log4j.Logger;
 import org.junit.Test;
 
+import edu.berkeley.mvz.amp.Layer.LayerProvider;
 import edu.berkeley.mvz.amp.Layer.LayerType;
 import edu.berkeley.mvz.amp.MaxentService.MaxEntException;
+import edu.berkeley.mvz.amp.SamplesWithData.SwdBuilder;
 import edu.berkeley.mvz.amp.SamplesWithData.SwdSpec;
 
 /**
@@ -35,6 +39,44 @@ import edu.berkeley.mvz.amp.SamplesWithData.SwdSpec;
 public class SamplesWithDataTest {
   private static Logger log = Logger.getLogger(SamplesWithDataTest.class);
 
+  @Test
+  public void binary() throws IOException {
+    final List<Layer> layers = new ArrayList<Layer>();
+    layers.add(Layer.newInstance(LayerType.CLIMATE, "a", 0, RasterTest
+        .writeGrid(3, 4)));
+    layers.add(Layer.newInstance(LayerType.CLIMATE, "b", 0, RasterTest
+        .writeGrid(3, 4)));
+    List<Sample> samples = new ArrayList<Sample>();
+    samples.add(Sample.newInstance("puma concolor", 2000, LatLng.newInstance(
+        0.5, 11.5)));
+    samples.add(Sample.newInstance("puma concolor", 1990, LatLng.newInstance(
+        2.25, 13.75)));
+    samples.add(Sample.newInstance("s\u00e9", 0, LatLng.newInstance(1.5,
+        10.5)));
+    SamplesWithData swd = SamplesWithData.fromLayers(samples, layers);
+    LayerProvider provider = new LayerProvider() {
+      public Layer getLayerByFilename(String filename) {
+        for (Layer l : layers) {
+          if (l.getFilename().equals(filename)) {
+            return l;
+          }
+        }
+        return null;
+      }
+    };
+    SamplesWithData copy = SamplesWithData.fromBinary(swd.toBinary(),
+        provider);
+    Assert.assertEquals(swd, copy);
+    Assert.assertEquals(swd.getSamples(), copy.getSamples());
+    Assert.assertEquals(swd.getLayers(), copy.getLayers());
+
+    try {
+      SamplesWithData.fromBinary(swd.toCsv(), provider);
+      Assert.fail();
+    } catch (IOException e) {
+    }
+  }
+
   @Test
   public void builder() {
     String path = SamplesWithDataTest.class.getResource("samples.csv")
@@ -52,6 +94,35 @@ public class SamplesWithDataTest {
         lpath));
   }
 
+  @Test
+  public void columns() throws IOException {
+    Layer a = Layer.newInstance(LayerType.CLIMATE, "a", 0, RasterTest
+        .writeGrid(3, 4));
+    Layer b = Layer.newInstance(LayerType.CLIMATE, "b", 0, RasterTest
+        .writeGrid(3, 4));
+    Sample s1 = Sample.newInstance("s1", 2000, LatLng.newInstance(0.5, 11.5));
+    Sample s2 = Sample.newInstance("s2", 2000, LatLng.newInstance(2.5, 10.5));
+    SamplesWithData swd1 = new SwdBuilder().addData(s1, a, 1).addData(s1, b, 2)
+        .addData(s2, a, 3).addData(s2, b, 4).build();
+    SamplesWithData swd2 = new SwdBuilder().addData(s2, b, 4).addData(s1, b, 2)
+        .addData(s2, a, 3).addData(s1, a, 1).build();
+    Assert.assertEquals(swd1, swd2);
+    Assert.assertEquals(swd1.hashCode(), swd2.hashCode());
+    Assert.assertEquals(2, swd1.size());
+    Assert.assertEquals(4.0, swd2.getData(s2, b));
+    Assert.assertEquals(2.0, swd2.getData(s1).getValue(b));
+    Assert.assertEquals(Cell.newInstance(2, 1), swd2.getData(s1).getCell());
+
+    double[] values = swd1.getValues(b);
+    Assert.assertEquals(2, values.length);
+    Assert.assertEquals(2.0, values[swd1.getSamples().indexOf(s1)]);
+
+    // Values that were never added are NaN:
+    swd1 = new SwdBuilder().addData(s1, a, 1).addData(s2, b, 4).build();
+    Assert.assertTrue(Double.isNaN(swd1.getData(s1, b)));
+    Assert.assertFalse(swd1.equals(swd2));
+  }
+
   @Test
   public void csvFile() throws IOException, MaxEntException {
     List<Sample> samples = SampleTest.getTestSamples();
@@ -86,6 +157,98 @@ public class SamplesWithDataTest {
     log.info(path);
   }
 
+  @Test
+  public void fromLayers() throws IOException {
+    List<Layer> layers = new ArrayList<Layer>();
+    layers.add(Layer.newInstance(LayerType.CLIMATE, "a", 0, RasterTest
+        .writeGrid(3, 4)));
+    layers.add(Layer.newInstance(LayerType.CLIMATE, "b", 0, RasterTest
+        .writeGrid(3, 4)));
+    List<Sample> samples = new ArrayList<Sample>();
+    Sample s1 = Sample.newInstance("s1", 2000, LatLng.newInstance(0.5, 11.5));
+    Sample s2 = Sample.newInstance("s2", 2000, LatLng.newInstance(2.5, 10.5));
+    samples.add(s1);
+    samples.add(s2);
+    // Outside of the layer extents:
+    samples.add(Sample.newInstance("s3", 2000, LatLng.newInstance(5, 10.5)));
+
+    SamplesWithData swd = SamplesWithData.fromLayers(samples, layers);
+    Assert.assertEquals(2, swd.size());
+    Assert.assertEquals(2001.5, swd.getData(s1, layers.get(0)));
+    Assert.assertEquals(2001.5, swd.getData(s1, layers.get(1)));
+    Assert.assertEquals(-9999.0, swd.getData(s2, layers.get(1)));
+  }
+
+  @Test
+  public void select() throws IOException {
+    List<Layer> layers = new ArrayList<Layer>();
+    for (String name : new String[] { "a", "b", "c" }) {
+      layers.add(Layer.newInstance(LayerType.CLIMATE, name, 0, RasterTest
+          .writeGrid(3, 4)));
+    }
+    List<Sample> samples = new ArrayList<Sample>();
+    Sample s1 = Sample.newInstance("s1", 2000, LatLng.newInstance(0.5, 11.5));
+    samples.add(s1);
+    SamplesWithData swd = SamplesWithData.fromLayers(samples, layers);
+
+    List<Layer> subset = new ArrayList<Layer>();
+    subset.add(layers.get(2));
+    subset.add(layers.get(0));
+    SamplesWithData selected = swd.select(subset);
+    Assert.assertEquals(1, selected.size());
+    Assert.assertEquals(subset, selected.getLayers());
+    Assert.assertEquals(2001.5, selected.getData(s1, layers.get(2)));
+    try {
+      selected.getData(s1, layers.get(1));
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+    }
+    try {
+      selected.select(layers);
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
+  @Test
+  public void toCsv() throws IOException {
+    List<Layer> layers = new ArrayList<Layer>();
+    layers.add(Layer.newInstance(LayerType.CLIMATE, "a", 0, RasterTest
+        .writeGrid(3, 4)));
+    layers.add(Layer.newInstance(LayerType.CLIMATE, "b", 0, RasterTest
+        .writeGrid(3, 4)));
+    List<Sample> samples = new ArrayList<Sample>();
+    samples.add(Sample.newInstance("s1", 2000, LatLng.newInstance(0.5,
+        11.1234565)));
+    samples.add(Sample.newInstance("s2", 1990, LatLng.newInstance(2.0000004,
+        13.99999996)));
+    SamplesWithData swd = SamplesWithData.fromLayers(samples, layers);
+
+    // Rows match the previous String.format based output:
+    StringBuilder expected = new StringBuilder("species,dd long,dd lat");
+    for (Layer l : layers) {
+      expected.append(",").append(l.getFilename().split(".asc")[0]);
+    }
+    expected.append("\n");
+    for (Sample s : samples) {
+      expected.append(String.format("%s-%d,%f,%f", s.getName(), s.getYear(), s
+          .getPoint().getLongitude(), s.getPoint().getLatitude()));
+      for (Layer l : layers) {
+        expected.append("," + swd.getData(s, l));
+      }
+      expected.append("\n");
+    }
+    String path = swd.toCsv(true);
+    BufferedReader reader = new BufferedReader(new FileReader(path));
+    StringBuilder actual = new StringBuilder();
+    String line;
+    while ((line = reader.readLine()) != null) {
+      actual.append(line).append("\n");
+    }
+    reader.close();
+    Assert.assertEquals(expected.toString(), actual.toString());
+  }
+
   @Test
   public void toCsvWithSpec() {
 
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2009 University of California at Berkeley
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.berkeley.mvz.amp;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import edu.berkeley.mvz.amp.Layer.LayerProvider;
+import edu.berkeley.mvz.amp.Layer.LayerType;
+import edu.berkeley.mvz.amp.SwdReader.SwdVisitor;
+
+/**
+ * Unit tests for {@link SwdReader}.
+ * 
+ */
+public class SwdReaderTest {
+
+  private static String writeSwd(String content) throws IOException {
+    File f = File.createTempFile("swd", ".csv");
+    f.deleteOnExit();
+    FileWriter w = new FileWriter(f);
+    try {
+      w.write(content);
+    } finally {
+      w.close();
+    }
+    return f.getPath();
+  }
+
+  @Test
+  public void fromCsv() throws IOException {
+    final Layer a = Layer.newInstance(LayerType.CLIMATE, "a", 0, RasterTest
+        .writeGrid(3, 4));
+    final Layer b = Layer.newInstance(LayerType.CLIMATE, "b", 0, RasterTest
+        .writeGrid(3, 4));
+    LayerProvider provider = new LayerProvider() {
+      public Layer getLayerByFilename(String filename) {
+        if (filename.equals("a.asc")) {
+          return a;
+        }
+        return filename.equals("b.asc") ? b : null;
+      }
+    };
+    String path = writeSwd("species,dd long,dd lat,a,b\n"
+        + "puma_concolor-1990,11.5,1.5,1.5,2\n"
+        + "puma_concolor-1990,12.5,2.5,-3e2,4\n"
+        + "tapirus_bairdii,13.5,0.5,5,6\n");
+    SamplesWithData swd = SamplesWithData.fromCsv(path, provider);
+    Assert.assertEquals(3, swd.size());
+
+    Sample s = Sample.newInstance("puma concolor", 1990, LatLng.newInstance(
+        2.5, 12.5));
+    Assert.assertEquals(-300.0, swd.getData(s, a));
+    Assert.assertEquals(4.0, swd.getData(s, b));
+    s = Sample.newInstance("tapirus bairdii", -1, LatLng.newInstance(0.5,
+        13.5));
+    Assert.assertEquals(6.0, swd.getData(s, b));
+
+    path = writeSwd("species,dd long,dd lat,a,c\n");
+    try {
+      SamplesWithData.fromCsv(path, provider);
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
+  @Test
+  public void parseDouble() {
+    String[] numbers = { "0", "-0", "1", "-9999", "12.5", "0.1", "-0.0001",
+        "3.14159265358979", "123456789012345678", "1e10", "1.5E-7", "+2.25",
+        "4.9e-324", "1.7976931348623157e308", "0.30000000000000004",
+        "-122.41941550000001", "37.774929", ".5", "5." };
+    for (String n : numbers) {
+      byte[] b = (" " + n + " ").getBytes();
+      Assert.assertEquals(n, Double.parseDouble(n), AsciiNumbers.parseDouble(
+          b, 1, b.length - 1));
+    }
+    String[] bad = { "", "-", "abc", "1.2.3", "1e" };
+    for (String n : bad) {
+      byte[] b = n.getBytes();
+      try {
+        AsciiNumbers.parseDouble(b, 0, b.length);
+        Assert.fail(n);
+      } catch (NumberFormatException e) {
+      }
+    }
+    byte[] b = "-1990".getBytes();
+    Assert.assertEquals(-1990, AsciiNumbers.parseInt(b, 0, b.length));
+  }
+
+  @Test
+  public void read() throws IOException {
+    String path = writeSwd("species,dd long,dd lat,a,b\r\n"
+        + "\"puma_concolor-1990\",-122.5,37.75,1,2\r\n"
+        + "\r\n"
+        + "puma_concolor-1990,-121.5,36.75,3,4");
+    final List<String> rows = new ArrayList<String>();
+    SwdReader.read(path, new SwdVisitor() {
+      public void header(List<String> layerNames) {
+        rows.add(layerNames.toString());
+      }
+
+      public void row(String name, int year, double lng, double lat,
+          double[] values) {
+        rows.add(String.format("%s %d %s %s %s %s", name, year, lng, lat,
+            values[0], values[1]));
+      }
+    });
+    Assert.assertEquals(3, rows.size());
+    Assert.assertEquals("[a, b]", rows.get(0));
+    Assert.assertEquals("puma concolor 1990 -122.5 37.75 1.0 2.0", rows.get(1));
+    Assert.assertEquals("puma concolor 1990 -121.5 36.75 3.0 4.0", rows.get(2));
+
+    path = writeSwd("species,dd long,dd lat,a,b\npuma,1,2,3\n");
+    try {
+      SwdReader.read(path, null);
+      Assert.fail();
+    } catch (NullPointerException e) {
+    }
+    try {
+      SwdReader.read(path, new SwdVisitor() {
+        public void header(List<String> layerNames) {
+        }
+
+        public void row(String name, int year, double lng, double lat,
+            double[] values) {
+        }
+      });
+      Assert.fail();
+    } catch (IOException e) {
+    }
+  }
+}